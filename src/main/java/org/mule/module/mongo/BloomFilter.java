@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo;
+
+import java.util.BitSet;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * A Bloom filter over byte array keys. Answers <code>false</code> to
+ * {@link #mightContain(byte[])} only for keys that were definitely never added. Keys can't be
+ * removed: the filter is rebuilt instead.
+ * 
+ * @author MuleSoft Inc.
+ */
+public final class BloomFilter
+{
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final BitSet bits;
+    private final int size;
+    private final int hashFunctions;
+
+    /**
+     * @param expectedEntries the number of keys the filter is sized for
+     * @param falsePositiveRate the false positive rate expected once the filter holds
+     *            <code>expectedEntries</code> keys
+     */
+    public BloomFilter(final int expectedEntries, final double falsePositiveRate)
+    {
+        Validate.isTrue(expectedEntries > 0, "Expected entries must be positive");
+        Validate.isTrue(falsePositiveRate > 0 && falsePositiveRate < 1,
+            "False positive rate must be between 0 and 1");
+
+        final double size = -expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        this.size = (int) Math.min(Integer.MAX_VALUE - 8, Math.ceil(size));
+        this.bits = new BitSet(this.size);
+        this.hashFunctions = Math.max(1, (int) Math.round(this.size / (double) expectedEntries * Math.log(2)));
+    }
+
+    public synchronized void add(final byte[] key)
+    {
+        final long hash = hash(key);
+        for (int i = 0; i < hashFunctions; i++)
+        {
+            bits.set(index(hash, i));
+        }
+    }
+
+    public synchronized boolean mightContain(final byte[] key)
+    {
+        final long hash = hash(key);
+        for (int i = 0; i < hashFunctions; i++)
+        {
+            if (!bits.get(index(hash, i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public int getHashFunctions()
+    {
+        return hashFunctions;
+    }
+
+    private int index(final long hash, final int i)
+    {
+        // Kirsch-Mitzenmacher double hashing out of the two halves of a single 64 bit hash
+        final int combined = (int) hash + i * (int) (hash >>> 32);
+        return (combined & Integer.MAX_VALUE) % size;
+    }
+
+    private static long hash(final byte[] key)
+    {
+        long hash = FNV_OFFSET_BASIS;
+        for (final byte b : key)
+        {
+            hash ^= b & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        // final avalanche so that short keys spread over both halves
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.mule.util.SerializationUtils;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Iterates the serialized keys a cursor over the entries of a {@link MongoObjectStore} partition
+ * or of a {@link MongoQueueStore} returns. Each key is only deserialized when it is reached, so
+ * stores of any size can be walked in constant memory, and the cursor is closed once the iterator
+ * is exhausted.
+ *
+ * @author MuleSoft Inc.
+ */
+class KeysIterator implements Iterator<Serializable>
+{
+    private static final String ID_FIELD = "_id";
+
+    private final DBCursor cursor;
+    private final String keyField;
+    private Object lastId;
+
+    KeysIterator(final DBCursor cursor, final String keyField)
+    {
+        this.cursor = cursor;
+        this.keyField = keyField;
+    }
+
+    public boolean hasNext()
+    {
+        final boolean hasNext = cursor.hasNext();
+        if (!hasNext)
+        {
+            cursor.close();
+        }
+        return hasNext;
+    }
+
+    public Serializable next()
+    {
+        final DBObject keyObject = cursor.next();
+        lastId = keyObject.get(ID_FIELD);
+        return (Serializable) SerializationUtils.deserialize((byte[]) keyObject.get(keyField));
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException("Keys can only be removed through their store");
+    }
+
+    /**
+     * Reads the rest of the cursor as a page of keys. The cursor must include the _id of the
+     * entries and be limited to <code>pageSize</code> entries.
+     *
+     * @param afterId the last id of the previous page, kept when this page is empty
+     * @param pageSize the maximum number of keys of the page
+     * @return the page of keys, along with the id to resume from
+     */
+    KeysPage toPage(final String afterId, final int pageSize)
+    {
+        final List<Serializable> keys = new ArrayList<Serializable>(pageSize);
+        try
+        {
+            while (cursor.hasNext())
+            {
+                keys.add(next());
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return new KeysPage(keys, lastId != null ? String.valueOf(lastId) : afterId, keys.size() == pageSize);
+    }
+}
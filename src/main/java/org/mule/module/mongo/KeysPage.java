@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A page of keys of a {@link MongoObjectStore} partition or of a {@link MongoQueueStore}, listed
+ * in _id order, which is the queue order for the latter.
+ * 
+ * @author MuleSoft Inc.
+ */
+public class KeysPage implements Serializable
+{
+    private static final long serialVersionUID = -2406383262271577313L;
+
+    private final List<Serializable> keys;
+    private final String lastId;
+    private final boolean more;
+
+    public KeysPage(final List<Serializable> keys, final String lastId, final boolean more)
+    {
+        this.keys = keys;
+        this.lastId = lastId;
+        this.more = more;
+    }
+
+    public List<Serializable> getKeys()
+    {
+        return keys;
+    }
+
+    /**
+     * @return the id to pass as <code>afterId</code> to fetch the following page
+     */
+    public String getLastId()
+    {
+        return lastId;
+    }
+
+    /**
+     * @return whether there may be keys after this page. A full page always answers true, so the
+     *         last page of a partition might be an empty one.
+     */
+    public boolean hasMore()
+    {
+        return more;
+    }
+}
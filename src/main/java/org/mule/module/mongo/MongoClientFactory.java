@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+
+/**
+ * Builds the driver clients of the connector, the object store and the queue store, so that the
+ * three of them read their pool and timeout settings and their host lists the same way.
+ *
+ * @author MuleSoft Inc.
+ */
+final class MongoClientFactory
+{
+    private MongoClientFactory()
+    {
+    }
+
+    /**
+     * @return the options for the given pool and timeout settings. Settings that are
+     *         <code>null</code> keep the driver defaults.
+     */
+    static MongoClientOptions.Builder options(final Integer connectionsPerHost,
+                                              final Integer threadsAllowedToBlockForConnectionMultiplier,
+                                              final Integer maxWaitTime,
+                                              final Integer connectTimeout,
+                                              final Integer socketTimeout,
+                                              final Boolean autoConnectRetry)
+    {
+        final MongoClientOptions.Builder options = MongoClientOptions.builder();
+        if (connectionsPerHost != null)
+        {
+            options.connectionsPerHost(connectionsPerHost);
+        }
+        if (threadsAllowedToBlockForConnectionMultiplier != null)
+        {
+            options.threadsAllowedToBlockForConnectionMultiplier(threadsAllowedToBlockForConnectionMultiplier);
+        }
+        if (maxWaitTime != null)
+        {
+            options.maxWaitTime(maxWaitTime);
+        }
+        if (connectTimeout != null)
+        {
+            options.connectTimeout(connectTimeout);
+        }
+        if (socketTimeout != null)
+        {
+            options.socketTimeout(socketTimeout);
+        }
+        if (autoConnectRetry != null)
+        {
+            options.autoConnectRetry(autoConnectRetry);
+        }
+        return options;
+    }
+
+    /**
+     * Connects to <code>host</code>, which can also be a list of comma separated hosts for
+     * replica sets, all of them listening on <code>port</code>. A single host is connected to
+     * directly, while a list is used as the seed list of the replica set.
+     */
+    static MongoClient create(final String host, final int port, final MongoClientOptions options)
+        throws UnknownHostException
+    {
+        final String[] hosts = host.split(",\\s?");
+        if (hosts.length == 1)
+        {
+            return new MongoClient(new ServerAddress(hosts[0], port), options);
+        }
+
+        final List<ServerAddress> seeds = new ArrayList<ServerAddress>(hosts.length);
+        for (final String hostname : hosts)
+        {
+            seeds.add(new ServerAddress(hostname, port));
+        }
+        return new MongoClient(seeds, options);
+    }
+}
@@ -21,7 +21,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.UnknownHostException;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -39,16 +39,22 @@ import org.mule.api.annotations.param.ConnectionKey;
 import org.mule.api.annotations.param.Default;
 import org.mule.api.annotations.param.Optional;
 import org.mule.api.annotations.param.Payload;
+import org.mule.module.mongo.api.DumpCompression;
 import org.mule.module.mongo.api.IndexOrder;
 import org.mule.module.mongo.api.MongoClient;
 import org.mule.module.mongo.api.MongoClientAdaptor;
 import org.mule.module.mongo.api.MongoClientImpl;
 import org.mule.module.mongo.api.MongoCollection;
+import org.mule.module.mongo.api.ReadPreference;
 import org.mule.module.mongo.api.WriteConcern;
 import org.mule.module.mongo.tools.BackupConstants;
+import org.mule.module.mongo.tools.BackupUtils;
+import org.mule.module.mongo.tools.DumpQuery;
+import org.mule.module.mongo.tools.DumpVerifier;
 import org.mule.module.mongo.tools.IncrementalMongoDump;
 import org.mule.module.mongo.tools.MongoDump;
 import org.mule.module.mongo.tools.MongoRestore;
+import org.mule.module.mongo.tools.NamespaceFilter;
 import org.mule.transformer.types.MimeTypes;
 import org.mule.util.StringUtils;
 import org.slf4j.Logger;
@@ -135,6 +141,10 @@ public class MongoCloudConnector
 
     private String database;
 
+    private String username;
+
+    private String password;
+
     private Mongo mongo;
 
     private MongoClient client;
@@ -947,9 +957,44 @@ public class MongoCloudConnector
      * @param outputDirectory output directory path, if no output directory is provided the default
      *            /dump directory is assumed
      * @param outputName output file name, if it's not specified the database name is used
-     * @param zip whether to zip the created dump file or not
+     * @param zip whether to zip the created dump file or not. The zip is deflated by a single
+     *            thread once the dump is written, unless the files are gzipped while dumped, in
+     *            which case each one is stored in the zip as soon as its collection is done
      * @param oplog point in time backup (requires an oplog)
      * @param threads amount of threads to execute the dump
+     * @param segments number of segments big collections are split into by _id ranges, so that a
+     *            single collection is also dumped by several threads
+     * @param compression compression applied to the collection files while they are dumped
+     * @param compressionLevel compression level, from 1 (fastest) to 9 (smallest), 0 for none
+     * @param readPreference the replica set members collections are read from, secondaries by
+     *            default to keep the load off the primary. Dumps with the oplog read from the
+     *            primary, where the oplog start is taken from, and accept no other member.
+     * @param maxDocumentsPerSecond maximum documents read per second by all the dump threads, 0
+     *            for no limit
+     * @param maxBytesPerSecond maximum bytes read per second by all the dump threads, 0 for no
+     *            limit
+     * @param maxReplicationLag replication lag in seconds above which the dump pauses until the
+     *            secondaries catch up, 0 to ignore it
+     * @param maxLatency server latency in milliseconds above which the dump pauses, 0 to ignore
+     *            it
+     * @param resume whether to continue the latest dump with the same output name from the last
+     *            checkpoint of each collection, instead of starting a new one. A new dump is
+     *            started when the latest one completed.
+     * @param chunked whether to store collections as content-defined chunks, kept once in a chunk
+     *            store shared by the dumps of the output directory, skipping the collections that
+     *            haven't changed since the previous dump. Chunked dumps can't be zipped.
+     * @param hashCollections whether chunked dumps recognize unchanged collections by hashing them
+     *            with dbHash, which reads every document while holding the database lock. By
+     *            default their statistics are compared and the oplog is looked for writes to them
+     *            since the previous dump, without an oplog every collection is dumped.
+     * @param includeCollections patterns of the collections to dump, where * stands for any
+     *            characters and ? for a single one. All collections are dumped by default.
+     * @param excludeCollections patterns of the collections not to dump. When the oplog is dumped
+     *            along with filtered collections, only their entries are kept.
+     * @param collectionQueries queries selecting the documents to dump, by collection name, as
+     *            JSON strings or maps. The other collections are dumped whole.
+     * @param collectionProjections projections of the dumped documents, by collection name, as
+     *            JSON strings or maps. They must keep the _id field.
      * @throws IOException if an error occurs during the dump
      */
     @Processor
@@ -958,14 +1003,49 @@ public class MongoCloudConnector
                      @Optional final String outputName,
                      @Optional @Default("false") final boolean zip,
                      @Optional @Default("false") final boolean oplog,
-                     @Optional @Default(BACKUP_THREADS) final int threads) throws IOException
+                     @Optional @Default(BACKUP_THREADS) final int threads,
+                     @Optional @Default("1") final int segments,
+                     @Optional @Default("NONE") final DumpCompression compression,
+                     @Optional @Default("6") final int compressionLevel,
+                     @Optional final ReadPreference readPreference,
+                     @Optional @Default("0") final long maxDocumentsPerSecond,
+                     @Optional @Default("0") final long maxBytesPerSecond,
+                     @Optional @Default("60") final long maxReplicationLag,
+                     @Optional @Default("0") final long maxLatency,
+                     @Optional @Default("false") final boolean resume,
+                     @Optional @Default("false") final boolean chunked,
+                     @Optional @Default("false") final boolean hashCollections,
+                     @Placement(group = "Include Collections") @Optional final List<String> includeCollections,
+                     @Placement(group = "Exclude Collections") @Optional final List<String> excludeCollections,
+                     @Placement(group = "Collection Queries") @Optional final Map<String, Object> collectionQueries,
+                     @Placement(group = "Collection Projections") @Optional final Map<String, Object> collectionProjections) throws IOException
     {
         final MongoDump mongoDump = new MongoDump(client);
         mongoDump.setZip(zip);
-        if (oplog)
+        mongoDump.setSegments(segments);
+        mongoDump.setCompression(compression);
+        mongoDump.setCompressionLevel(compressionLevel);
+        mongoDump.setReadPreference(readPreference);
+        mongoDump.setMaxDocumentsPerSecond(maxDocumentsPerSecond);
+        mongoDump.setMaxBytesPerSecond(maxBytesPerSecond);
+        mongoDump.setMaxReplicationLag(maxReplicationLag);
+        mongoDump.setMaxLatency(maxLatency);
+        mongoDump.setResume(resume);
+        mongoDump.setChunked(chunked);
+        mongoDump.setHashCollections(hashCollections);
+        mongoDump.setCollectionFilter(new NamespaceFilter(includeCollections, excludeCollections));
+        if (collectionQueries != null)
+        {
+            mongoDump.setQueries(toDBObjects(collectionQueries));
+        }
+        if (collectionProjections != null)
+        {
+            mongoDump.setProjections(toDBObjects(collectionProjections));
+        }
+        mongoDump.addDB(mongo.getDB(BackupConstants.ADMIN_DB));
+        if (oplog || chunked)
         {
             mongoDump.setOplog(oplog);
-            mongoDump.addDB(mongo.getDB(BackupConstants.ADMIN_DB));
             mongoDump.addDB(mongo.getDB(BackupConstants.LOCAL_DB));
         }
         mongoDump.dump(outputDirectory, database, outputName != null ? outputName : database, threads);
@@ -981,23 +1061,53 @@ public class MongoCloudConnector
      *            /dump directory is assumed
      * @param incrementalTimestampFile file that keeps track of the last timestamp processed, if no
      *            file is provided one is created on the output directory
+     * @param continuous keep following the oplog with a tailable cursor, writing rolling segment
+     *            files, instead of dumping what it holds and returning
+     * @param maxSegmentSize size in bytes from which a continuous dump starts a new segment file
+     * @param maxSegmentAge milliseconds after which a continuous dump starts a new segment file
+     * @param flushInterval maximum milliseconds between checkpoints of the last timestamp of a
+     *            continuous dump
+     * @param maxDuration milliseconds a continuous dump runs for, 0 to run until interrupted
+     * @param snapshotDiff diff the collections against digests kept from the last run instead of
+     *            reading the oplog, writing the inserted, changed and deleted documents of each
+     *            collection to a delta file that restore applies. It works on standalone
+     *            servers, which have no oplog.
      * @throws IOException if an error occurs during the incremental dump
      */
     @Processor
 	@ReconnectOn(exceptions = IllegalStateException.class)
     public void incrementalDump(@Optional @Default(DEFAULT_OUTPUT_DIRECTORY) final String outputDirectory,
-                                @Optional final String incrementalTimestampFile) throws IOException
+                                @Optional final String incrementalTimestampFile,
+                                @Optional @Default("false") final boolean continuous,
+                                @Optional @Default("67108864") final long maxSegmentSize,
+                                @Optional @Default("3600000") final long maxSegmentAge,
+                                @Optional @Default("1000") final long flushInterval,
+                                @Optional @Default("0") final long maxDuration,
+                                @Optional @Default("false") final boolean snapshotDiff) throws IOException
     {
         final IncrementalMongoDump incrementalMongoDump = new IncrementalMongoDump();
+        if (snapshotDiff)
+        {
+            incrementalMongoDump.setSnapshotDiff(true);
+            incrementalMongoDump.addDB(mongo.getDB(database));
+            incrementalMongoDump.dump(outputDirectory, database);
+            return;
+        }
         incrementalMongoDump.addDB(mongo.getDB(BackupConstants.ADMIN_DB));
         incrementalMongoDump.addDB(mongo.getDB(BackupConstants.LOCAL_DB));
         incrementalMongoDump.setIncrementalTimestampFile(incrementalTimestampFile);
+        if (continuous)
+        {
+            incrementalMongoDump.setContinuous(maxSegmentSize, maxSegmentAge, flushInterval, maxDuration);
+        }
         incrementalMongoDump.dump(outputDirectory, database);
     }
 
     /**
      * Takes the output from the dump and restores it. Indexes will be created on a restore. It only
      * does inserts with the data to restore, if existing data is there, it will not be replaced.
+     * The delta files of snapshot diff incremental dumps are applied after the collections are
+     * restored, replacing the documents they changed and removing the ones they deleted.
      * <p/>
      * <p/>
      * {@sample.xml ../../../doc/mongo-connector.xml.sample mongo:restore}
@@ -1006,20 +1116,151 @@ public class MongoCloudConnector
      *            bson file
      * @param drop whether to drop existing collections before restore
      * @param oplogReplay replay oplog for point-in-time restore
+     * @param batchSize maximum number of documents sent in each insert
+     * @param collectionWorkers number of collections restored concurrently
+     * @param insertersPerCollection number of threads inserting the documents of each collection
+     *            file
+     * @param fastMode insert without waiting for acknowledgements, verifying instead the document
+     *            count of each restored collection that was empty or dropped before
+     * @param oplogLimit replay only the oplog entries before this timestamp, given as
+     *            &lt;seconds&gt;[:&lt;ordinal&gt;], for a point-in-time restore
+     * @param includeCollections patterns of the collections to restore, where * stands for any
+     *            characters and ? for a single one. All collections are restored by default.
+     * @param excludeCollections patterns of the collections not to restore, whose oplog entries
+     *            are skipped too
+     * @param targetDatabase the database to restore to, the one of the connection by default. The
+     *            oplog entries of the database of the connection are replayed on it.
+     * @param collectionRenames the names collections are restored as, by their name in the dump
      * @throws IOException if an error occurs during restore of the database
+     * @throws ConnectionException if the credentials of the connection are rejected by the
+     *             target database
      */
     @Processor
 	@ReconnectOn(exceptions = IllegalStateException.class)
     public void restore(@Optional @Default(DEFAULT_OUTPUT_DIRECTORY) final String inputPath,
                         @Optional @Default("false") final boolean drop,
-                        @Optional @Default("false") final boolean oplogReplay) throws IOException
-    {
-        final MongoRestore mongoRestore = new MongoRestore(client, database);
+                        @Optional @Default("false") final boolean oplogReplay,
+                        @Optional @Default("1000") final int batchSize,
+                        @Optional @Default(BACKUP_THREADS) final int collectionWorkers,
+                        @Optional @Default("2") final int insertersPerCollection,
+                        @Optional @Default("false") final boolean fastMode,
+                        @Optional final String oplogLimit,
+                        @Placement(group = "Include Collections") @Optional final List<String> includeCollections,
+                        @Placement(group = "Exclude Collections") @Optional final List<String> excludeCollections,
+                        @Optional final String targetDatabase,
+                        @Placement(group = "Collection Renames") @Optional final Map<String, String> collectionRenames) throws IOException, ConnectionException
+    {
+        final MongoRestore mongoRestore = targetDatabase != null
+            ? new MongoRestore(new MongoClientImpl(getDatabase(mongo, username, password, targetDatabase)), targetDatabase)
+            : new MongoRestore(client, database);
+        mongoRestore.setSourceDatabase(database);
+        mongoRestore.setCollectionFilter(new NamespaceFilter(includeCollections, excludeCollections));
+        if (collectionRenames != null)
+        {
+            mongoRestore.setCollectionRenames(collectionRenames);
+        }
         mongoRestore.setDrop(drop);
         mongoRestore.setOplogReplay(oplogReplay);
+        mongoRestore.setBatchSize(batchSize);
+        mongoRestore.setCollectionWorkers(collectionWorkers);
+        mongoRestore.setInsertersPerCollection(insertersPerCollection);
+        mongoRestore.setFastMode(fastMode);
+        if (oplogLimit != null)
+        {
+            mongoRestore.setOplogLimit(BackupUtils.parseTimestamp(oplogLimit));
+        }
         mongoRestore.restore(inputPath);
     }
 
+    /**
+     * Restores single documents of a collection from a dump, such as accidentally deleted ones,
+     * without restoring the whole collection. Dumps write an _id index next to each collection
+     * file, through which the documents of uncompressed files are read directly.
+     * <p/>
+     * {@sample.xml ../../../doc/mongo-connector.xml.sample mongo:restore-documents}
+     *
+     * @param inputPath input path to the dump files, it can be a directory, a zip file or just a
+     *            bson file
+     * @param collection the collection of the documents
+     * @param ids the _ids of the documents to restore
+     * @param replace whether to replace the documents that still exist
+     * @return the number of documents restored
+     * @throws IOException if an error occurs reading the dump
+     */
+    @Processor
+	@ReconnectOn(exceptions = IllegalStateException.class)
+    public int restoreDocuments(@Optional @Default(DEFAULT_OUTPUT_DIRECTORY) final String inputPath,
+                                final String collection,
+                                final List<Object> ids,
+                                @Optional @Default("false") final boolean replace) throws IOException
+    {
+        return new MongoRestore(client, database).restoreDocuments(inputPath, collection, ids, replace);
+    }
+
+    /**
+     * Queries a collection of a dump in place, without restoring it or needing a running server.
+     * The files and segments of the collection are scanned concurrently and their documents
+     * matched locally, supporting the common query operators. Matching documents are streamed as
+     * they are found, like the results of find-objects, so a broad query doesn't load the
+     * collection in memory. The order of the results is not defined.
+     * <p/>
+     * {@sample.xml ../../../doc/mongo-connector.xml.sample mongo:query-dump}
+     *
+     * @param inputPath input path to the dump files, it can be a directory, a zip file or just a
+     *            bson file
+     * @param collection the collection to query
+     * @param query the optional {@link DBObject} query object. If unspecified, all documents are
+     *            returned.
+     * @param fields alternative way of passing fields as a literal List
+     * @param limit limit of objects to return
+     * @param threads number of files scanned concurrently
+     * @return an iterable of {@link DBObject}
+     */
+    @Processor
+    public Iterable<DBObject> queryDump(@Optional @Default(DEFAULT_OUTPUT_DIRECTORY) final String inputPath,
+                                        final String collection,
+                                        @Optional @Default("") final DBObject query,
+                                        @Placement(group = "Fields") @Optional final List<String> fields,
+                                        @Optional final Integer limit,
+                                        @Optional @Default(BACKUP_THREADS) final int threads)
+    {
+        final DumpQuery dumpQuery = new DumpQuery(inputPath);
+        dumpQuery.setThreads(threads);
+        return new MongoCollection(dumpQuery.find(collection, query, fields, limit != null ? limit : 0));
+    }
+
+    /**
+     * Verifies a dump without restoring it, against the CRC32C checksum and document count of
+     * each of its files recorded when it was written. The files are read concurrently, each one
+     * once in large sequential blocks. Optionally, the files are also compared with their
+     * collections, or with the _id ranges of their segments, in the database.
+     * <p/>
+     * {@sample.xml ../../../doc/mongo-connector.xml.sample mongo:verify-dump}
+     *
+     * @param inputPath input path to the dump files, it can be a directory, a zip file or just a
+     *            bson file
+     * @param compareCounts whether to compare the number of documents of each file with the one
+     *            of its collection in the database
+     * @param compareHashes whether to compare the checksum of each file with the one of the
+     *            documents of its collection in the database, which reads all of them
+     * @param threads number of files verified concurrently
+     * @return the problems found, empty if the dump is intact
+     * @throws IOException if an error occurs reading the dump
+     */
+    @Processor
+	@ReconnectOn(exceptions = IllegalStateException.class)
+    public List<String> verifyDump(@Optional @Default(DEFAULT_OUTPUT_DIRECTORY) final String inputPath,
+                                   @Optional @Default("false") final boolean compareCounts,
+                                   @Optional @Default("false") final boolean compareHashes,
+                                   @Optional @Default(BACKUP_THREADS) final int threads) throws IOException
+    {
+        final DumpVerifier dumpVerifier = new DumpVerifier(client, inputPath);
+        dumpVerifier.setThreads(threads);
+        dumpVerifier.setCompareCounts(compareCounts);
+        dumpVerifier.setCompareHashes(compareHashes);
+        return dumpVerifier.verify();
+    }
+
     /**
      * Begins a consistent request, which allows you to be sure that each subsequent request to MongoDB happens in sequence.
      * {@sample.xml ../../../doc/mongo-connector.xml.sample mongo:start-consistent-request}
@@ -1045,6 +1286,22 @@ public class MongoCloudConnector
         client.requestDone();
     }
 
+    /**
+     * @return the given queries or projections as {@link DBObject}s, parsing the ones given as
+     *         JSON
+     */
+    private Map<String, DBObject> toDBObjects(final Map<String, Object> values)
+    {
+        final Map<String, DBObject> dbObjects = new HashMap<String, DBObject>();
+        for (final Map.Entry<String, Object> value : values.entrySet())
+        {
+            dbObjects.put(value.getKey(), value.getValue() instanceof String
+                ? (DBObject) JSON.parse((String) value.getValue())
+                : (DBObject) adapt(value.getValue()));
+        }
+        return dbObjects;
+    }
+
     /**
      * Convert JSON to DBObject.
      * <p/>
@@ -1169,8 +1426,11 @@ public class MongoCloudConnector
     {
         try
         {
-            mongo = new com.mongodb.MongoClient(getMongoClientURI(username, password, database));
+            mongo = MongoClientFactory.create(host, port, getMongoOptions(database).build());
             this.client = new MongoClientImpl(getDatabase(mongo, username, password, database));
+            // kept to authenticate on the other databases operations target
+            this.username = username;
+            this.password = password;
             
             DB db = mongo.getDB(database);
             db.getStats();
@@ -1191,45 +1451,10 @@ public class MongoCloudConnector
         }
     }
 
-    private MongoClientURI getMongoClientURI(final String username, final String password, final String database) {
-        List<String> hostsWithPort = new LinkedList<String>();
-        for (String hostname : host.split(",\\s?")) {
-            hostsWithPort.add(hostname + ":" + port);
-        }
-        return new MongoClientURI(MongoURI.MONGODB_PREFIX +
-//                        username + ":" + password + "@" +
-                        StringUtils.join(hostsWithPort, ",") +
-                        "/" + database
-                , getMongoOptions(database));
-    }
-
     private MongoClientOptions.Builder getMongoOptions(String database) {
-        final MongoClientOptions.Builder options = MongoClientOptions.builder();
-
-        if (connectionsPerHost != null)
-        {
-            options.connectionsPerHost(connectionsPerHost);
-        }
-        if (threadsAllowedToBlockForConnectionMultiplier != null)
-        {
-            options.threadsAllowedToBlockForConnectionMultiplier(threadsAllowedToBlockForConnectionMultiplier);
-        }
-        if (maxWaitTime != null)
-        {
-            options.maxWaitTime(maxWaitTime);
-        }
-        if (connectTimeout != null)
-        {
-            options.connectTimeout(connectTimeout);
-        }
-        if (socketTimeout != null)
-        {
-            options.socketTimeout(socketTimeout);
-        }
-        if (autoConnectRetry != null)
-        {
-            options.autoConnectRetry(autoConnectRetry);
-        }
+        final MongoClientOptions.Builder options = MongoClientFactory.options(connectionsPerHost,
+            threadsAllowedToBlockForConnectionMultiplier, maxWaitTime, connectTimeout, socketTimeout,
+            autoConnectRetry);
         if (database != null)
         {
             this.database = database;
@@ -11,10 +11,15 @@ package org.mule.module.mongo;
 import java.io.Serializable;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.PostConstruct;
 
@@ -33,14 +38,24 @@ import org.mule.api.store.PartitionableExpirableObjectStore;
 import org.mule.module.mongo.api.IndexOrder;
 import org.mule.module.mongo.api.MongoClient;
 import org.mule.module.mongo.api.MongoClientImpl;
+import org.mule.module.mongo.api.ReadPreference;
 import org.mule.module.mongo.api.WriteConcern;
 import org.mule.util.SerializationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.util.DigestUtils;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.QueryBuilder;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
 
 /**
  * A PartitionableExpirableObjectStore backed by MongoDB.
@@ -49,6 +64,8 @@ import com.mongodb.QueryBuilder;
  */
 public class MongoObjectStore implements PartitionableExpirableObjectStore<Serializable>, MuleContextAware
 {
+    private static final Logger logger = LoggerFactory.getLogger(MongoObjectStore.class);
+
     private static final String OBJECTSTORE_COLLECTION_PREFIX = "mule.objectstore.";
     private static final String OBJECTSTORE_DEFAULT_PARTITION_NAME = "_default";
 
@@ -56,10 +73,18 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
     private static final String KEY_FIELD = "key";
     private static final String TIMESTAMP_FIELD = "timestamp";
     private static final String VALUE_FIELD = "value";
-    private static final List<String> NO_FIELD_LIST = Collections.emptyList();
+    private static final String VALUE_REF_FIELD = "valueRef";
+    private static final String VALUE_SIZE_FIELD = "valueSize";
+    private static final String PARTITION_METADATA_FIELD = "partition";
 
     /**
-     * The host of the Mongo server
+     * Key listings walk the _id index. Keys are not indexed: serialized keys can exceed the
+     * 1024 bytes an index key is limited to, which fails their inserts from MongoDB 2.6 on.
+     */
+    private static final DBObject ID_INDEX = new BasicDBObject(ID_FIELD, 1);
+
+    /**
+     * The host of the Mongo server, it can also be a list of comma separated hosts for replicas
      */
     @Configurable
     @Optional
@@ -106,14 +131,144 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
     @Default("DATABASE_DEFAULT")
     private WriteConcern writeConcern;
 
+    /**
+     * The members of the replica set lookups are sent to: retrieve, contains and key listings.
+     * Secondaries can serve read-heavy caches, at the cost of possibly stale reads.
+     */
+    @Configurable
+    @Optional
+    @Default("PRIMARY")
+    private ReadPreference readPreference;
+
+    /**
+     * The number of connections allowed per host (the pool size, per host)
+     */
+    @Configurable
+    @Optional
+    private Integer connectionsPerHost;
+
+    /**
+     * Multiplier for connectionsPerHost for # of threads that can block
+     */
+    @Configurable
+    @Optional
+    private Integer threadsAllowedToBlockForConnectionMultiplier;
+
+    /**
+     * The max wait time for a blocking thread for a connection from the pool in ms.
+     */
+    @Configurable
+    @Optional
+    private Integer maxWaitTime;
+
+    /**
+     * The connection timeout in milliseconds; this is for establishing the socket connections
+     * (open). 0 is default and infinite.
+     */
+    @Configurable
+    @Optional
+    @Default("30000")
+    private Integer connectTimeout;
+
+    /**
+     * The socket timeout. 0 is default and infinite.
+     */
+    @Configurable
+    @Optional
+    private Integer socketTimeout;
+
+    /**
+     * This controls whether the system retries automatically on connection errors.
+     */
+    @Configurable
+    @Optional
+    private Boolean autoConnectRetry;
+
+    /**
+     * The number of keys fetched from Mongo on each round trip when listing the keys of a partition
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private int keysBatchSize;
+
+    /**
+     * Whether to keep an in-memory Bloom filter per partition so that lookups of keys that were
+     * never stored are answered without a round trip to Mongo. The filter only learns about the
+     * writes done through this object store: writes from other nodes are picked up when the
+     * filter is rebuilt. Removed keys are forgotten when the filter is rebuilt too.
+     */
+    @Configurable
+    @Optional
+    @Default("false")
+    private boolean bloomFilter;
+
+    /**
+     * The number of keys per partition the Bloom filters are sized for
+     */
+    @Configurable
+    @Optional
+    @Default("100000")
+    private int bloomFilterExpectedEntries;
+
+    /**
+     * The false positive rate of the Bloom filters when holding the expected number of keys
+     */
+    @Configurable
+    @Optional
+    @Default("0.01")
+    private double bloomFilterFalsePositiveRate;
+
+    /**
+     * How often, in milliseconds, the Bloom filter of a partition is rebuilt from Mongo. 0 never
+     * rebuilds it.
+     */
+    @Configurable
+    @Optional
+    @Default("300000")
+    private long bloomFilterRebuildInterval;
+
+    /**
+     * The size in bytes of serialized values above which they are stored in GridFS instead of
+     * inline in the entry document. Values near the 16MB document limit cannot be stored inline,
+     * and big inline values make every read of the entry pull the whole value. The default 0 keeps
+     * every value inline.
+     */
+    @Configurable
+    @Optional
+    @Default("0")
+    private int largeValueThreshold;
+
+    /**
+     * The GridFS bucket where values above the <code>largeValueThreshold</code> are stored. Its
+     * collections are never taken for partitions, even when it is named like them.
+     */
+    @Configurable
+    @Optional
+    @Default("mule.largevalues")
+    private String largeValueBucket;
+
     private MongoClient mongoClient;
 
+    private Mongo mongo;
+
+    private GridFS largeValues;
+
     private MuleContext context;
 
+    private final ConcurrentMap<String, PartitionFilter> partitionFilters = new ConcurrentHashMap<String, PartitionFilter>();
+
+    private ExecutorService filterBuilder;
+
     @PostConstruct
     public void initialize() throws UnknownHostException
     {
-        final DB db = new com.mongodb.MongoClient(host, port).getDB(database);
+        if (mongo == null)
+        {
+            mongo = createMongo();
+        }
+
+        final DB db = mongo.getDB(database);
         if (StringUtils.isNotEmpty(password))
         {
             Validate.notEmpty(username, "Username must not be empty if password is set");
@@ -170,7 +325,14 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
 
     public void open(final String partitionName) throws ObjectStoreException
     {
-        // NOOP
+        if (bloomFilter)
+        {
+            final PartitionFilter partitionFilter = new PartitionFilter(partitionName);
+            if (partitionFilters.putIfAbsent(partitionName, partitionFilter) == null)
+            {
+                partitionFilter.build();
+            }
+        }
     }
 
     public void close(final String partitionName) throws ObjectStoreException
@@ -181,25 +343,77 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
     public boolean contains(final Serializable key, final String partitionName) throws ObjectStoreException
     {
         final ObjectId objectId = getObjectIdFromKey(key);
+        if (bloomFilter && !getPartitionFilter(partitionName).mightContain(objectId))
+        {
+            return false;
+        }
         final DBObject query = getQueryForObjectId(objectId);
         final String collection = getCollectionName(partitionName);
-        return mongoClient.findObjects(collection, query, NO_FIELD_LIST, null, null, null).iterator().hasNext();
+        return mongoClient.getCollection(collection).findOne(query, new BasicDBObject(ID_FIELD, 1),
+            getMongoReadPreference()) != null;
     }
 
     public List<Serializable> allKeys(final String partitionName) throws ObjectStoreException
     {
-        final String collection = getCollectionName(partitionName);
-        final Iterable<DBObject> keyObjects = mongoClient.findObjects(collection, new BasicDBObject(),
-            Arrays.asList(KEY_FIELD), null, null, null);
-
         final List<Serializable> results = new ArrayList<Serializable>();
-        for (final DBObject keyObject : keyObjects)
+        final Iterator<Serializable> keys = keysIterator(partitionName);
+        while (keys.hasNext())
         {
-            results.add((Serializable) SerializationUtils.deserialize((byte[]) keyObject.get(KEY_FIELD)));
+            results.add(keys.next());
         }
         return results;
     }
 
+    /**
+     * Lazily iterates the keys of a partition. Keys are fetched in batches of
+     * <code>keysBatchSize</code>, projected on the key alone, and each one is only
+     * deserialized when it is reached, so partitions of any size can be walked in constant memory.
+     * The underlying cursor is closed once the iterator is exhausted.
+     * 
+     * @param partitionName the partition whose keys are listed
+     * @return an iterator over the keys of the partition
+     */
+    public Iterator<Serializable> keysIterator(final String partitionName) throws ObjectStoreException
+    {
+        final String collection = getCollectionName(partitionName);
+        if (!mongoClient.existsCollection(collection))
+        {
+            return Collections.<Serializable> emptyList().iterator();
+        }
+        return new KeysIterator(getKeysCursor(collection, new BasicDBObject(), false), KEY_FIELD);
+    }
+
+    /**
+     * Lists a page of keys of a partition, using keyset pagination on _id so that callers can
+     * resume a listing at any point without the server skipping over the previous pages.
+     * 
+     * @param partitionName the partition whose keys are listed
+     * @param afterId the last id of the previous page, or null to start from the beginning
+     * @param pageSize the maximum number of keys of the page
+     * @return the page of keys, along with the id to resume from
+     */
+    public KeysPage allKeys(final String partitionName, final String afterId, final int pageSize)
+        throws ObjectStoreException
+    {
+        Validate.isTrue(pageSize > 0, "Page size must be positive");
+
+        final String collection = getCollectionName(partitionName);
+        if (!mongoClient.existsCollection(collection))
+        {
+            return new KeysPage(new ArrayList<Serializable>(), afterId, false);
+        }
+
+        final DBObject query = new BasicDBObject();
+        if (afterId != null)
+        {
+            query.put(ID_FIELD, new BasicDBObject("$gt", new ObjectId(afterId)));
+        }
+
+        final DBCursor cursor = getKeysCursor(collection, query, true);
+        cursor.sort(new BasicDBObject(ID_FIELD, 1)).limit(pageSize);
+        return new KeysIterator(cursor, KEY_FIELD).toPage(afterId, pageSize);
+    }
+
     public List<String> allPartitions() throws ObjectStoreException
     {
         final List<String> results = new ArrayList<String>();
@@ -232,8 +446,58 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
         dbObject.put(ID_FIELD, objectId);
         dbObject.put(TIMESTAMP_FIELD, System.currentTimeMillis());
         dbObject.put(KEY_FIELD, keyAsBytes);
-        dbObject.put(VALUE_FIELD, SerializationUtils.serialize(value));
-        mongoClient.updateObjects(collection, query, dbObject, true, false, getWriteConcern());
+
+        final byte[] valueAsBytes = SerializationUtils.serialize(value);
+        if (largeValueThreshold > 0)
+        {
+            // files are named after their entry, so the ones the previous value left are found
+            // without reading the entry first
+            final String filename = collection + "/" + objectId;
+            final List<GridFSDBFile> previousFiles = getLargeValues(collection).find(filename);
+
+            GridFSInputFile file = null;
+            if (valueAsBytes.length > largeValueThreshold)
+            {
+                file = getLargeValues(collection).createFile(valueAsBytes);
+                file.setFilename(filename);
+                file.setMetaData(new BasicDBObject(PARTITION_METADATA_FIELD, partitionName));
+                file.save();
+                dbObject.put(VALUE_REF_FIELD, file.getId());
+                dbObject.put(VALUE_SIZE_FIELD, valueAsBytes.length);
+            }
+            else
+            {
+                dbObject.put(VALUE_FIELD, valueAsBytes);
+            }
+
+            try
+            {
+                mongoClient.updateObjects(collection, query, dbObject, true, false, getWriteConcern());
+            }
+            catch (final RuntimeException e)
+            {
+                if (file != null)
+                {
+                    getLargeValues(collection).remove(new BasicDBObject(ID_FIELD, file.getId()));
+                }
+                throw e;
+            }
+
+            for (final GridFSDBFile previousFile : previousFiles)
+            {
+                getLargeValues(collection).remove(new BasicDBObject(ID_FIELD, previousFile.getId()));
+            }
+        }
+        else
+        {
+            dbObject.put(VALUE_FIELD, valueAsBytes);
+            mongoClient.updateObjects(collection, query, dbObject, true, false, getWriteConcern());
+        }
+
+        if (bloomFilter)
+        {
+            getPartitionFilter(partitionName).add(objectId);
+        }
     }
 
     public Serializable retrieve(final Serializable key, final String partitionName)
@@ -242,7 +506,7 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
         final String collection = getCollectionName(partitionName);
         final ObjectId objectId = getObjectIdFromKey(key);
         final DBObject query = getQueryForObjectId(objectId);
-        return retrieveSerializedObject(collection, query);
+        return deserializeValue(collection, findEntry(collection, query, getMongoReadPreference()));
     }
 
     public Serializable remove(final Serializable key, final String partitionName)
@@ -252,8 +516,12 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
         final ObjectId objectId = getObjectIdFromKey(key);
         final DBObject query = getQueryForObjectId(objectId);
 
-        final Serializable result = retrieveSerializedObject(collection, query);
+        // the entry is about to be removed, so it is always read from the primary
+        final DBObject entry = findEntry(collection, query, com.mongodb.ReadPreference.primary());
+        final Serializable result = deserializeValue(collection, entry);
         mongoClient.removeObjects(collection, query, getWriteConcern());
+        removeLargeValue(collection, entry);
+        // the filter keeps the key until it is rebuilt
         return result;
     }
 
@@ -261,6 +529,11 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
     {
         final String collection = getCollectionName(partitionName);
         mongoClient.dropCollection(collection);
+        partitionFilters.remove(partitionName);
+        if (largeValueThreshold > 0)
+        {
+            getLargeValues(collection).remove(new BasicDBObject("metadata." + PARTITION_METADATA_FIELD, partitionName));
+        }
     }
 
     @Override
@@ -279,6 +552,24 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
         final String collection = getCollectionName(partitionName);
         final long expireAt = System.currentTimeMillis() - entryTtl;
         final DBObject query = QueryBuilder.start(TIMESTAMP_FIELD).lessThan(expireAt).get();
+        if (largeValueThreshold > 0)
+        {
+            final DBObject largeQuery = QueryBuilder.start(TIMESTAMP_FIELD).lessThan(expireAt)
+                .and(VALUE_REF_FIELD).exists(true).get();
+            final DBCursor expired = mongoClient.getCollection(collection).find(largeQuery,
+                new BasicDBObject(VALUE_REF_FIELD, 1));
+            try
+            {
+                while (expired.hasNext())
+                {
+                    removeLargeValue(collection, expired.next());
+                }
+            }
+            finally
+            {
+                expired.close();
+            }
+        }
         mongoClient.removeObjects(collection, query, getWriteConcern());
     }
 
@@ -344,8 +635,171 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
         this.writeConcern = writeConcern;
     }
 
+    public ReadPreference getReadPreference()
+    {
+        return readPreference;
+    }
+
+    public void setReadPreference(final ReadPreference readPreference)
+    {
+        this.readPreference = readPreference;
+    }
+
+    public Integer getConnectionsPerHost()
+    {
+        return connectionsPerHost;
+    }
+
+    public void setConnectionsPerHost(final Integer connectionsPerHost)
+    {
+        this.connectionsPerHost = connectionsPerHost;
+    }
+
+    public Integer getThreadsAllowedToBlockForConnectionMultiplier()
+    {
+        return threadsAllowedToBlockForConnectionMultiplier;
+    }
+
+    public void setThreadsAllowedToBlockForConnectionMultiplier(final Integer threadsAllowedToBlockForConnectionMultiplier)
+    {
+        this.threadsAllowedToBlockForConnectionMultiplier = threadsAllowedToBlockForConnectionMultiplier;
+    }
+
+    public Integer getMaxWaitTime()
+    {
+        return maxWaitTime;
+    }
+
+    public void setMaxWaitTime(final Integer maxWaitTime)
+    {
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    public Integer getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(final Integer connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Integer getSocketTimeout()
+    {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(final Integer socketTimeout)
+    {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public Boolean getAutoConnectRetry()
+    {
+        return autoConnectRetry;
+    }
+
+    public void setAutoConnectRetry(final Boolean autoConnectRetry)
+    {
+        this.autoConnectRetry = autoConnectRetry;
+    }
+
+    /**
+     * Shares an already connected pool, such as the one of a connector, instead of connecting to
+     * <code>host</code> and <code>port</code> with a pool of its own
+     */
+    public void setMongo(final Mongo mongo)
+    {
+        this.mongo = mongo;
+    }
+
+    public int getKeysBatchSize()
+    {
+        return keysBatchSize;
+    }
+
+    public void setKeysBatchSize(final int keysBatchSize)
+    {
+        this.keysBatchSize = keysBatchSize;
+    }
+
+    public boolean isBloomFilter()
+    {
+        return bloomFilter;
+    }
+
+    public void setBloomFilter(final boolean bloomFilter)
+    {
+        this.bloomFilter = bloomFilter;
+    }
+
+    public int getBloomFilterExpectedEntries()
+    {
+        return bloomFilterExpectedEntries;
+    }
+
+    public void setBloomFilterExpectedEntries(final int bloomFilterExpectedEntries)
+    {
+        this.bloomFilterExpectedEntries = bloomFilterExpectedEntries;
+    }
+
+    public double getBloomFilterFalsePositiveRate()
+    {
+        return bloomFilterFalsePositiveRate;
+    }
+
+    public void setBloomFilterFalsePositiveRate(final double bloomFilterFalsePositiveRate)
+    {
+        this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+    }
+
+    public long getBloomFilterRebuildInterval()
+    {
+        return bloomFilterRebuildInterval;
+    }
+
+    public void setBloomFilterRebuildInterval(final long bloomFilterRebuildInterval)
+    {
+        this.bloomFilterRebuildInterval = bloomFilterRebuildInterval;
+    }
+
+    public int getLargeValueThreshold()
+    {
+        return largeValueThreshold;
+    }
+
+    public void setLargeValueThreshold(final int largeValueThreshold)
+    {
+        this.largeValueThreshold = largeValueThreshold;
+    }
+
+    public String getLargeValueBucket()
+    {
+        return largeValueBucket;
+    }
+
+    public void setLargeValueBucket(final String largeValueBucket)
+    {
+        this.largeValueBucket = largeValueBucket;
+    }
+
     // --------- Support Methods ---------
 
+    private Mongo createMongo() throws UnknownHostException
+    {
+        final MongoClientOptions.Builder options = MongoClientFactory.options(connectionsPerHost,
+            threadsAllowedToBlockForConnectionMultiplier, maxWaitTime, connectTimeout, socketTimeout,
+            autoConnectRetry);
+        options.readPreference(getMongoReadPreference());
+        return MongoClientFactory.create(host, port, options.build());
+    }
+
+    private com.mongodb.ReadPreference getMongoReadPreference()
+    {
+        return (readPreference != null ? readPreference : ReadPreference.PRIMARY).toMongoReadPreference();
+    }
+
     private String getCollectionName(final String partitionName)
     {
         return OBJECTSTORE_COLLECTION_PREFIX + partitionName;
@@ -358,7 +812,9 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
 
     private boolean isPartition(final String collectionName)
     {
-        return StringUtils.startsWith(collectionName, OBJECTSTORE_COLLECTION_PREFIX);
+        return StringUtils.startsWith(collectionName, OBJECTSTORE_COLLECTION_PREFIX)
+               && !collectionName.equals(largeValueBucket + ".files")
+               && !collectionName.equals(largeValueBucket + ".chunks");
     }
 
     private ObjectId getObjectIdFromKey(final Serializable key)
@@ -367,7 +823,7 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
         return getObjectIdFromKey(keyAsBytes);
     }
 
-    private ObjectId getObjectIdFromKey(final byte[] keyAsBytes)
+    static ObjectId getObjectIdFromKey(final byte[] keyAsBytes)
     {
         // hash the key and combine the resulting 16 bytes down to 12
         final ObjectId objectId;
@@ -386,24 +842,224 @@ public class MongoObjectStore implements PartitionableExpirableObjectStore<Seria
         return new BasicDBObject(ID_FIELD, objectId);
     }
 
-    private Serializable retrieveSerializedObject(final String collection, final DBObject query)
+    private DBCursor getKeysCursor(final String collection, final DBObject query, final boolean includeId)
+    {
+        final DBCollection dbCollection = mongoClient.getCollection(collection);
+
+        final DBObject fields = new BasicDBObject(KEY_FIELD, 1);
+        if (!includeId)
+        {
+            fields.put(ID_FIELD, 0);
+        }
+
+        final DBCursor cursor = dbCollection.find(query, fields).hint(ID_INDEX);
+        cursor.setReadPreference(getMongoReadPreference());
+        if (keysBatchSize > 0)
+        {
+            cursor.batchSize(keysBatchSize);
+        }
+        return cursor;
+    }
+
+    private PartitionFilter getPartitionFilter(final String partitionName)
+    {
+        PartitionFilter partitionFilter = partitionFilters.get(partitionName);
+        if (partitionFilter == null)
+        {
+            final PartitionFilter newFilter = new PartitionFilter(partitionName);
+            partitionFilter = partitionFilters.putIfAbsent(partitionName, newFilter);
+            if (partitionFilter == null)
+            {
+                partitionFilter = newFilter;
+            }
+        }
+        partitionFilter.scheduleRebuildIfStale();
+        return partitionFilter;
+    }
+
+    private synchronized ExecutorService getFilterBuilder()
+    {
+        if (filterBuilder == null)
+        {
+            filterBuilder = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(final Runnable runnable)
+                {
+                    final Thread thread = new Thread(runnable, "mongo-objectstore-bloom-filter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return filterBuilder;
+    }
+
+    private DBObject findEntry(final String collection,
+                               final DBObject query,
+                               final com.mongodb.ReadPreference entryReadPreference)
         throws ObjectDoesNotExistException
     {
-        final Iterator<DBObject> iterator = mongoClient.findObjects(collection, query,
-            Arrays.asList(VALUE_FIELD), null, null, null).iterator();
+        final DBObject fields = new BasicDBObject(VALUE_FIELD, 1).append(VALUE_REF_FIELD, 1);
+        final DBObject entry = mongoClient.getCollection(collection).findOne(query, fields, entryReadPreference);
 
-        if (!iterator.hasNext())
+        if (entry == null)
         {
             throw new ObjectDoesNotExistException();
         }
 
-        final DBObject dbObject = iterator.next();
+        return entry;
+    }
+
+    private Serializable deserializeValue(final String collection, final DBObject dbObject)
+        throws ObjectDoesNotExistException
+    {
+        final Object valueRef = dbObject.get(VALUE_REF_FIELD);
+        if (valueRef == null)
+        {
+            return (Serializable) SerializationUtils.deserialize((byte[]) dbObject.get(VALUE_FIELD), context);
+        }
+
+        // large values are streamed back chunk by chunk instead of being loaded as a whole first
+        final GridFSDBFile file = getLargeValues(collection).findOne(new BasicDBObject(ID_FIELD, valueRef));
+        if (file == null)
+        {
+            throw new ObjectDoesNotExistException();
+        }
+        return (Serializable) SerializationUtils.deserialize(file.getInputStream(), context);
+    }
+
+    private void removeLargeValue(final String collection, final DBObject dbObject)
+    {
+        if (dbObject != null && dbObject.get(VALUE_REF_FIELD) != null)
+        {
+            getLargeValues(collection).remove(new BasicDBObject(ID_FIELD, dbObject.get(VALUE_REF_FIELD)));
+        }
+    }
 
-        return (Serializable) SerializationUtils.deserialize((byte[]) dbObject.get(VALUE_FIELD), context);
+    private synchronized GridFS getLargeValues(final String collection)
+    {
+        if (largeValues == null)
+        {
+            largeValues = new GridFS(mongoClient.getCollection(collection).getDB(), largeValueBucket);
+        }
+        return largeValues;
     }
 
     @Override
     public void setMuleContext(MuleContext context) {
         this.context = context;
     }
+
+    /**
+     * The Bloom filter of a partition. Until its first build completes every key might be
+     * contained. Writes done while a rebuild is streaming the partition are applied to both the
+     * current and the new filter, so a rebuild never produces false negatives for local writes.
+     * Keys can't be removed from it, so removed keys are left as false positives until the next
+     * rebuild.
+     */
+    private class PartitionFilter
+    {
+        private final String partitionName;
+        private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+        private volatile BloomFilter filter;
+        private volatile long builtAt;
+        private BloomFilter rebuilding;
+
+        PartitionFilter(final String partitionName)
+        {
+            this.partitionName = partitionName;
+        }
+
+        boolean mightContain(final ObjectId objectId)
+        {
+            final BloomFilter current = filter;
+            return current == null || current.mightContain(objectId.toByteArray());
+        }
+
+        synchronized void add(final ObjectId objectId)
+        {
+            final byte[] id = objectId.toByteArray();
+            if (filter != null)
+            {
+                filter.add(id);
+            }
+            if (rebuilding != null)
+            {
+                rebuilding.add(id);
+            }
+        }
+
+        void scheduleRebuildIfStale()
+        {
+            final boolean stale = filter == null
+                                  || (bloomFilterRebuildInterval > 0 && System.currentTimeMillis() - builtAt > bloomFilterRebuildInterval);
+            if (stale && rebuildScheduled.compareAndSet(false, true))
+            {
+                getFilterBuilder().execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        rebuild();
+                    }
+                });
+            }
+        }
+
+        void build()
+        {
+            if (rebuildScheduled.compareAndSet(false, true))
+            {
+                rebuild();
+            }
+        }
+
+        private void rebuild()
+        {
+            final BloomFilter fresh = new BloomFilter(bloomFilterExpectedEntries,
+                bloomFilterFalsePositiveRate);
+            synchronized (this)
+            {
+                rebuilding = fresh;
+            }
+
+            DBCursor cursor = null;
+            try
+            {
+                cursor = mongoClient.getCollection(getCollectionName(partitionName))
+                    .find(new BasicDBObject(), new BasicDBObject(ID_FIELD, 1))
+                    .hint(new BasicDBObject(ID_FIELD, 1));
+                cursor.setReadPreference(getMongoReadPreference());
+                if (keysBatchSize > 0)
+                {
+                    cursor.batchSize(keysBatchSize);
+                }
+                while (cursor.hasNext())
+                {
+                    fresh.add(((ObjectId) cursor.next().get(ID_FIELD)).toByteArray());
+                }
+
+                synchronized (this)
+                {
+                    filter = fresh;
+                    builtAt = System.currentTimeMillis();
+                }
+            }
+            catch (final RuntimeException e)
+            {
+                logger.warn("Failed to build the Bloom filter of partition " + partitionName, e);
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    rebuilding = null;
+                }
+                rebuildScheduled.set(false);
+                if (cursor != null)
+                {
+                    cursor.close();
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo;
+
+import java.io.Serializable;
+
+/**
+ * An entry claimed from a {@link MongoQueueStore}, to be either acknowledged or released by the
+ * consumer that claimed it.
+ *
+ * @author MuleSoft Inc.
+ */
+public class MongoQueueEntry implements Serializable
+{
+    private static final long serialVersionUID = 4471983327465502390L;
+
+    private final long sequence;
+    private final String consumer;
+    private final Serializable key;
+    private final Serializable value;
+
+    public MongoQueueEntry(final long sequence,
+                           final String consumer,
+                           final Serializable key,
+                           final Serializable value)
+    {
+        this.sequence = sequence;
+        this.consumer = consumer;
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     * @return the position of the entry in the queue
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    public String getConsumer()
+    {
+        return consumer;
+    }
+
+    public Serializable getKey()
+    {
+        return key;
+    }
+
+    public Serializable getValue()
+    {
+        return value;
+    }
+}
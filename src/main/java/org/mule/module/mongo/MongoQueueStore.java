@@ -0,0 +1,713 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo;
+
+import java.io.Serializable;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.Validate;
+import org.bson.types.ObjectId;
+import org.mule.api.MuleContext;
+import org.mule.api.annotations.Configurable;
+import org.mule.api.annotations.param.Default;
+import org.mule.api.annotations.param.Optional;
+import org.mule.api.context.MuleContextAware;
+import org.mule.api.store.ListableObjectStore;
+import org.mule.api.store.ObjectAlreadyExistsException;
+import org.mule.api.store.ObjectDoesNotExistException;
+import org.mule.api.store.ObjectStoreException;
+import org.mule.module.mongo.api.MongoClient;
+import org.mule.module.mongo.api.MongoClientImpl;
+import org.mule.module.mongo.api.WriteConcern;
+import org.mule.util.SerializationUtils;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+
+/**
+ * A ListableObjectStore backed by MongoDB that keeps its entries in insertion order, suited to
+ * persist Mule queues. Entries are keyed by monotonic sequences, so listing the keys returns them
+ * in FIFO order and the head of the queue is read from an index instead of scanning the whole
+ * collection. Besides the object store contract, consumers can {@link #claim(String)} the head
+ * of the queue and then {@link #acknowledge(MongoQueueEntry)} or {@link #release(MongoQueueEntry)}
+ * it, so that several nodes can safely consume the same queue.
+ * <p/>
+ * Each offer reserves its sequence from a counter shared by all the nodes, so the queue is FIFO
+ * across the cluster. Reserving sequences in blocks of <code>sequenceBlockSize</code> saves round
+ * trips, but entries offered concurrently from several nodes are then only ordered within the
+ * block each node reserved.
+ *
+ * @author MuleSoft Inc.
+ */
+public class MongoQueueStore implements ListableObjectStore<Serializable>, MuleContextAware
+{
+    private static final String QUEUESTORE_COLLECTION_PREFIX = "mule.queuestore.";
+    private static final String SEQUENCES_COLLECTION = "mule.queuestore_sequences";
+
+    private static final String ID_FIELD = "_id";
+    private static final String KEY_ID_FIELD = "keyId";
+    private static final String KEY_FIELD = "key";
+    private static final String VALUE_FIELD = "value";
+    private static final String STATE_FIELD = "state";
+    private static final String OWNER_FIELD = "owner";
+    private static final String LEASE_FIELD = "lease";
+    private static final String NEXT_SEQUENCE_FIELD = "next";
+
+    private static final int READY = 0;
+    private static final int CLAIMED = 1;
+
+    /**
+     * Covers head of queue reads: the first ready entry in sequence order
+     */
+    private static final DBObject HEAD_INDEX = new BasicDBObject(STATE_FIELD, 1).append(ID_FIELD, 1);
+    private static final DBObject KEY_ID_INDEX = new BasicDBObject(KEY_ID_FIELD, 1);
+    private static final DBObject SEQUENCE_ORDER = new BasicDBObject(ID_FIELD, 1);
+
+    /**
+     * The host of the Mongo server, it can also be a list of comma separated hosts for replicas
+     */
+    @Configurable
+    @Optional
+    @Default("localhost")
+    private String host;
+
+    /**
+     * The port of the Mongo server
+     */
+    @Configurable
+    @Optional
+    @Default("27017")
+    private int port;
+
+    /**
+     * The database name of the Mongo server
+     */
+    @Configurable
+    @Optional
+    @Default("test")
+    private String database;
+
+    /**
+     * The username used to connect to the Mongo server
+     */
+    @Configurable
+    @Optional
+    @Default("")
+    private String username;
+
+    /**
+     * The password used to connect to the Mongo server
+     */
+    @Configurable
+    @Optional
+    @Default("")
+    private String password;
+
+    /**
+     * The default concern to use to when writing to Mongo
+     */
+    @Configurable
+    @Optional
+    @Default("DATABASE_DEFAULT")
+    private WriteConcern writeConcern;
+
+    /**
+     * The number of connections allowed per host (the pool size, per host)
+     */
+    @Configurable
+    @Optional
+    private Integer connectionsPerHost;
+
+    /**
+     * Multiplier for connectionsPerHost for # of threads that can block
+     */
+    @Configurable
+    @Optional
+    private Integer threadsAllowedToBlockForConnectionMultiplier;
+
+    /**
+     * The max wait time for a blocking thread for a connection from the pool in ms.
+     */
+    @Configurable
+    @Optional
+    private Integer maxWaitTime;
+
+    /**
+     * The connection timeout in milliseconds; this is for establishing the socket connections
+     * (open). 0 is default and infinite.
+     */
+    @Configurable
+    @Optional
+    @Default("30000")
+    private Integer connectTimeout;
+
+    /**
+     * The socket timeout. 0 is default and infinite.
+     */
+    @Configurable
+    @Optional
+    private Integer socketTimeout;
+
+    /**
+     * This controls whether the system retries automatically on connection errors.
+     */
+    @Configurable
+    @Optional
+    private Boolean autoConnectRetry;
+
+    /**
+     * The name of the queue, each queue is kept in its own collection
+     */
+    @Configurable
+    private String queueName;
+
+    /**
+     * The number of sequences reserved from Mongo on each round trip. Blocks larger than 1 save
+     * round trips, but only keep the entries offered from one node in order across the cluster.
+     */
+    @Configurable
+    @Optional
+    @Default("1")
+    private int sequenceBlockSize;
+
+    /**
+     * The time in milliseconds a consumer holds a claimed entry before it is made available to
+     * other consumers again
+     */
+    @Configurable
+    @Optional
+    @Default("60000")
+    private long leaseTime;
+
+    /**
+     * The number of keys fetched from Mongo on each round trip when listing the keys of the queue
+     */
+    @Configurable
+    @Optional
+    @Default("1000")
+    private int keysBatchSize;
+
+    private MongoClient mongoClient;
+
+    private Mongo mongo;
+
+    private MuleContext context;
+
+    private long nextSequence;
+
+    private long sequenceBlockEnd;
+
+    @PostConstruct
+    public void initialize() throws UnknownHostException
+    {
+        Validate.notEmpty(queueName, "Queue name must not be empty");
+
+        if (mongoClient == null)
+        {
+            if (mongo == null)
+            {
+                mongo = MongoClientFactory.create(host, port, MongoClientFactory.options(connectionsPerHost,
+                    threadsAllowedToBlockForConnectionMultiplier, maxWaitTime, connectTimeout, socketTimeout,
+                    autoConnectRetry).build());
+            }
+
+            final DB db = mongo.getDB(database);
+            if (StringUtils.isNotEmpty(password))
+            {
+                Validate.notEmpty(username, "Username must not be empty if password is set");
+                db.authenticate(username, password.toCharArray());
+            }
+            mongoClient = new MongoClientImpl(db);
+        }
+
+        final DBCollection collection = getQueueCollection();
+        collection.ensureIndex(HEAD_INDEX);
+        collection.ensureIndex(KEY_ID_INDEX, new BasicDBObject("unique", true));
+    }
+
+    public boolean isPersistent()
+    {
+        return true;
+    }
+
+    public void open() throws ObjectStoreException
+    {
+        // NOOP
+    }
+
+    public void close() throws ObjectStoreException
+    {
+        // NOOP
+    }
+
+    public List<Serializable> allKeys() throws ObjectStoreException
+    {
+        final List<Serializable> results = new ArrayList<Serializable>();
+        final Iterator<Serializable> keys = keysIterator();
+        while (keys.hasNext())
+        {
+            results.add(keys.next());
+        }
+        return results;
+    }
+
+    /**
+     * Lazily iterates the keys of the queue in FIFO order. Keys are fetched in batches of
+     * <code>keysBatchSize</code> and each one is only deserialized when it is reached, so queues
+     * of any size can be walked in constant memory. The underlying cursor is closed once the
+     * iterator is exhausted.
+     *
+     * @return an iterator over the keys of the queue
+     */
+    public Iterator<Serializable> keysIterator()
+    {
+        return new KeysIterator(getKeysCursor(new BasicDBObject()), KEY_FIELD);
+    }
+
+    /**
+     * Lists a page of keys of the queue in FIFO order, using keyset pagination on the sequences
+     * so that callers can resume a listing at any point without the server skipping over the
+     * previous pages.
+     *
+     * @param afterId the last id of the previous page, or null to start from the head
+     * @param pageSize the maximum number of keys of the page
+     * @return the page of keys, along with the id to resume from
+     */
+    public KeysPage allKeys(final String afterId, final int pageSize)
+    {
+        Validate.isTrue(pageSize > 0, "Page size must be positive");
+
+        final DBObject query = new BasicDBObject();
+        if (afterId != null)
+        {
+            query.put(ID_FIELD, new BasicDBObject("$gt", Long.parseLong(afterId)));
+        }
+
+        return new KeysIterator(getKeysCursor(query).limit(pageSize), KEY_FIELD).toPage(afterId, pageSize);
+    }
+
+    public boolean contains(final Serializable key) throws ObjectStoreException
+    {
+        return getQueueCollection().findOne(getQueryForKey(key), new BasicDBObject(ID_FIELD, 1)) != null;
+    }
+
+    public void store(final Serializable key, final Serializable value) throws ObjectStoreException
+    {
+        final DBObject entry = newEntry(nextSequences(1), key, value);
+        try
+        {
+            getQueueCollection().insert(entry, getMongoWriteConcern());
+        }
+        catch (final MongoException.DuplicateKey e)
+        {
+            throw new ObjectAlreadyExistsException(e);
+        }
+    }
+
+    /**
+     * Appends several entries to the queue in a single batch, in the iteration order of the given
+     * map.
+     *
+     * @param entries the keys and values to append
+     */
+    public void storeAll(final Map<? extends Serializable, ? extends Serializable> entries)
+        throws ObjectStoreException
+    {
+        if (entries.isEmpty())
+        {
+            return;
+        }
+
+        long sequence = nextSequences(entries.size());
+        final List<DBObject> dbObjects = new ArrayList<DBObject>(entries.size());
+        for (final Map.Entry<? extends Serializable, ? extends Serializable> entry : entries.entrySet())
+        {
+            dbObjects.add(newEntry(sequence++, entry.getKey(), entry.getValue()));
+        }
+
+        try
+        {
+            getQueueCollection().insert(dbObjects, getMongoWriteConcern());
+        }
+        catch (final MongoException.DuplicateKey e)
+        {
+            throw new ObjectAlreadyExistsException(e);
+        }
+    }
+
+    public Serializable retrieve(final Serializable key) throws ObjectStoreException
+    {
+        final DBObject entry = getQueueCollection().findOne(getQueryForKey(key),
+            new BasicDBObject(VALUE_FIELD, 1));
+        if (entry == null)
+        {
+            throw new ObjectDoesNotExistException();
+        }
+        return deserializeValue(entry);
+    }
+
+    public Serializable remove(final Serializable key) throws ObjectStoreException
+    {
+        final DBObject entry = getQueueCollection().findAndModify(getQueryForKey(key),
+            new BasicDBObject(VALUE_FIELD, 1), null, true, null, false, false);
+        if (entry == null)
+        {
+            throw new ObjectDoesNotExistException();
+        }
+        return deserializeValue(entry);
+    }
+
+    public void clear() throws ObjectStoreException
+    {
+        getQueueCollection().remove(new BasicDBObject(), getMongoWriteConcern());
+    }
+
+    /**
+     * Claims the head of the queue for a consumer. The entry stays in the queue, hidden from
+     * other consumers, until it is acknowledged, released or its lease expires.
+     *
+     * @param consumer an identifier of the consumer claiming the entry
+     * @return the claimed entry, or null if the queue has no available entries
+     */
+    public MongoQueueEntry claim(final String consumer)
+    {
+        Validate.notNull(consumer);
+
+        final long now = System.currentTimeMillis();
+        final DBObject update = new BasicDBObject("$set", new BasicDBObject(STATE_FIELD, CLAIMED).append(
+            OWNER_FIELD, consumer).append(LEASE_FIELD, now + leaseTime));
+
+        DBObject entry = getQueueCollection().findAndModify(new BasicDBObject(STATE_FIELD, READY), null,
+            SEQUENCE_ORDER, false, update, true, false);
+        if (entry == null)
+        {
+            // take over entries whose consumers did not finish them in time
+            final DBObject expired = new BasicDBObject(STATE_FIELD, CLAIMED).append(LEASE_FIELD,
+                new BasicDBObject("$lt", now));
+            entry = getQueueCollection().findAndModify(expired, null, SEQUENCE_ORDER, false, update, true,
+                false);
+        }
+        if (entry == null)
+        {
+            return null;
+        }
+
+        return new MongoQueueEntry((Long) entry.get(ID_FIELD), consumer, deserializeKey(entry),
+            deserializeValue(entry));
+    }
+
+    /**
+     * Removes a claimed entry from the queue once its consumer is done with it
+     *
+     * @param entry the entry returned by {@link #claim(String)}
+     * @return whether the entry was still claimed by its consumer
+     */
+    public boolean acknowledge(final MongoQueueEntry entry)
+    {
+        return getQueueCollection().findAndModify(getQueryForClaim(entry), new BasicDBObject(ID_FIELD, 1),
+            null, true, null, false, false) != null;
+    }
+
+    /**
+     * Makes a claimed entry available again to all consumers, keeping its position in the queue
+     *
+     * @param entry the entry returned by {@link #claim(String)}
+     * @return whether the entry was still claimed by its consumer
+     */
+    public boolean release(final MongoQueueEntry entry)
+    {
+        final DBObject update = new BasicDBObject("$set", new BasicDBObject(STATE_FIELD, READY)).append(
+            "$unset", new BasicDBObject(OWNER_FIELD, "").append(LEASE_FIELD, ""));
+        return getQueueCollection().findAndModify(getQueryForClaim(entry), new BasicDBObject(ID_FIELD, 1),
+            null, false, update, false, false) != null;
+    }
+
+    /**
+     * @return the number of entries of the queue, claimed or not
+     */
+    public long size()
+    {
+        return getQueueCollection().count();
+    }
+
+    // --------- Java Accessor Festival ---------
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public void setHost(final String host)
+    {
+        this.host = host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public void setPort(final int port)
+    {
+        this.port = port;
+    }
+
+    public String getDatabase()
+    {
+        return database;
+    }
+
+    public void setDatabase(final String database)
+    {
+        this.database = database;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public void setUsername(final String username)
+    {
+        this.username = username;
+    }
+
+    public String getPassword()
+    {
+        return password;
+    }
+
+    public void setPassword(final String password)
+    {
+        this.password = password;
+    }
+
+    public WriteConcern getWriteConcern()
+    {
+        return writeConcern;
+    }
+
+    public void setWriteConcern(final WriteConcern writeConcern)
+    {
+        this.writeConcern = writeConcern;
+    }
+
+    public Integer getConnectionsPerHost()
+    {
+        return connectionsPerHost;
+    }
+
+    public void setConnectionsPerHost(final Integer connectionsPerHost)
+    {
+        this.connectionsPerHost = connectionsPerHost;
+    }
+
+    public Integer getThreadsAllowedToBlockForConnectionMultiplier()
+    {
+        return threadsAllowedToBlockForConnectionMultiplier;
+    }
+
+    public void setThreadsAllowedToBlockForConnectionMultiplier(final Integer threadsAllowedToBlockForConnectionMultiplier)
+    {
+        this.threadsAllowedToBlockForConnectionMultiplier = threadsAllowedToBlockForConnectionMultiplier;
+    }
+
+    public Integer getMaxWaitTime()
+    {
+        return maxWaitTime;
+    }
+
+    public void setMaxWaitTime(final Integer maxWaitTime)
+    {
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    public Integer getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(final Integer connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Integer getSocketTimeout()
+    {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(final Integer socketTimeout)
+    {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public Boolean getAutoConnectRetry()
+    {
+        return autoConnectRetry;
+    }
+
+    public void setAutoConnectRetry(final Boolean autoConnectRetry)
+    {
+        this.autoConnectRetry = autoConnectRetry;
+    }
+
+    public String getQueueName()
+    {
+        return queueName;
+    }
+
+    public void setQueueName(final String queueName)
+    {
+        this.queueName = queueName;
+    }
+
+    public int getSequenceBlockSize()
+    {
+        return sequenceBlockSize;
+    }
+
+    public void setSequenceBlockSize(final int sequenceBlockSize)
+    {
+        this.sequenceBlockSize = sequenceBlockSize;
+    }
+
+    public long getLeaseTime()
+    {
+        return leaseTime;
+    }
+
+    public void setLeaseTime(final long leaseTime)
+    {
+        this.leaseTime = leaseTime;
+    }
+
+    public int getKeysBatchSize()
+    {
+        return keysBatchSize;
+    }
+
+    public void setKeysBatchSize(final int keysBatchSize)
+    {
+        this.keysBatchSize = keysBatchSize;
+    }
+
+    /**
+     * Shares an already connected pool, such as the one of a connector, instead of connecting to
+     * <code>host</code> and <code>port</code> with a pool of its own
+     */
+    public void setMongo(final Mongo mongo)
+    {
+        this.mongo = mongo;
+    }
+
+    /**
+     * Uses an already connected client instead of connecting to <code>host</code> and
+     * <code>port</code>
+     */
+    public void setMongoClient(final MongoClient mongoClient)
+    {
+        this.mongoClient = mongoClient;
+    }
+
+    @Override
+    public void setMuleContext(final MuleContext context)
+    {
+        this.context = context;
+    }
+
+    // --------- Support Methods ---------
+
+    private DBCollection getQueueCollection()
+    {
+        return mongoClient.getCollection(QUEUESTORE_COLLECTION_PREFIX + queueName);
+    }
+
+    private com.mongodb.WriteConcern getMongoWriteConcern()
+    {
+        return (writeConcern != null ? writeConcern : WriteConcern.DATABASE_DEFAULT).toMongoWriteConcern(getQueueCollection().getDB());
+    }
+
+    /**
+     * Reserves consecutive sequences, fetching a new block from Mongo when the current one is
+     * exhausted
+     *
+     * @return the first of the reserved sequences
+     */
+    private synchronized long nextSequences(final int count)
+    {
+        if (nextSequence + count > sequenceBlockEnd)
+        {
+            final int blockSize = Math.max(count, Math.max(1, sequenceBlockSize));
+            final DBObject sequences = mongoClient.getCollection(SEQUENCES_COLLECTION).findAndModify(
+                new BasicDBObject(ID_FIELD, queueName), null, null, false,
+                new BasicDBObject("$inc", new BasicDBObject(NEXT_SEQUENCE_FIELD, (long) blockSize)), true, true);
+            sequenceBlockEnd = ((Number) sequences.get(NEXT_SEQUENCE_FIELD)).longValue();
+            nextSequence = sequenceBlockEnd - blockSize;
+        }
+        final long first = nextSequence;
+        nextSequence += count;
+        return first;
+    }
+
+    private DBObject newEntry(final long sequence, final Serializable key, final Serializable value)
+    {
+        final byte[] keyAsBytes = SerializationUtils.serialize(key);
+        final DBObject entry = new BasicDBObject(ID_FIELD, sequence);
+        entry.put(KEY_ID_FIELD, MongoObjectStore.getObjectIdFromKey(keyAsBytes));
+        entry.put(KEY_FIELD, keyAsBytes);
+        entry.put(VALUE_FIELD, SerializationUtils.serialize(value));
+        entry.put(STATE_FIELD, READY);
+        return entry;
+    }
+
+    private DBObject getQueryForKey(final Serializable key)
+    {
+        final ObjectId keyId = MongoObjectStore.getObjectIdFromKey(SerializationUtils.serialize(key));
+        return new BasicDBObject(KEY_ID_FIELD, keyId);
+    }
+
+    private DBObject getQueryForClaim(final MongoQueueEntry entry)
+    {
+        return new BasicDBObject(ID_FIELD, entry.getSequence()).append(STATE_FIELD, CLAIMED).append(
+            OWNER_FIELD, entry.getConsumer());
+    }
+
+    private DBCursor getKeysCursor(final DBObject query)
+    {
+        final DBCursor cursor = getQueueCollection().find(query, new BasicDBObject(KEY_FIELD, 1)).sort(SEQUENCE_ORDER);
+        if (keysBatchSize > 0)
+        {
+            cursor.batchSize(keysBatchSize);
+        }
+        return cursor;
+    }
+
+    private Serializable deserializeKey(final DBObject entry)
+    {
+        return (Serializable) SerializationUtils.deserialize((byte[]) entry.get(KEY_FIELD));
+    }
+
+    private Serializable deserializeValue(final DBObject entry)
+    {
+        return (Serializable) SerializationUtils.deserialize((byte[]) entry.get(VALUE_FIELD), context);
+    }
+}
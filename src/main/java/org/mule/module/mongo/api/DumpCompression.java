@@ -0,0 +1,20 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.api;
+
+/**
+ * How the files of a dump are compressed while they are written
+ */
+public enum DumpCompression
+{
+    /** Plain BSON files */
+    NONE,
+    /** Gzip compressed BSON files, compressed in parallel blocks */
+    GZIP
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.api;
+
+/**
+ * An enum wrapper of {@link com.mongodb.ReadPreference}
+ */
+public enum ReadPreference
+{
+    /** Reads only from the primary */
+    PRIMARY(com.mongodb.ReadPreference.primary()),
+    /** Reads from the primary, or from a secondary if the primary is unavailable */
+    PRIMARY_PREFERRED(com.mongodb.ReadPreference.primaryPreferred()),
+    /** Reads only from secondaries */
+    SECONDARY(com.mongodb.ReadPreference.secondary()),
+    /** Reads from a secondary, or from the primary if no secondary is available */
+    SECONDARY_PREFERRED(com.mongodb.ReadPreference.secondaryPreferred()),
+    /** Reads from the member with the lowest network latency, primary or secondary */
+    NEAREST(com.mongodb.ReadPreference.nearest());
+
+    private final com.mongodb.ReadPreference mongoReadPreference;
+
+    private ReadPreference(com.mongodb.ReadPreference mongoReadPreference)
+    {
+        this.mongoReadPreference = mongoReadPreference;
+    }
+
+    public com.mongodb.ReadPreference toMongoReadPreference()
+    {
+        return mongoReadPreference;
+    }
+
+}
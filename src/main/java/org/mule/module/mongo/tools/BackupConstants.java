@@ -15,6 +15,9 @@ public class BackupConstants
     public static final String LOCAL_DB = "local";
     public static final String TIMESTAMP_FIELD = "ts";
     public static final String NAMESPACE_FIELD = "ns";
+    public static final String NAMESPACES_COLLECTION = "system.namespaces";
+    public static final String INDEXES_COLLECTION = "system.indexes";
+    public static final String COMMAND_COLLECTION = "$cmd";
     
     private BackupConstants() {
     }
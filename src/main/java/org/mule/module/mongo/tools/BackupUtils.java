@@ -9,21 +9,83 @@
 
 package org.mule.module.mongo.tools;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.IOUtils;
+import org.bson.types.BSONTimestamp;
+
 
 public class BackupUtils
 {
+    public static final String CHUNKED_BSON_EXTENSION = "bson.chunks.json";
+    public static final String DELTA_BSON_EXTENSION = "bson.delta";
     private static final String SYSTEM_COLLECTION_PREFIX = "system.";
     private static final String BSON_EXTENSION = "bson";
+    private static final String GZIP_EXTENSION = "gz";
+    private static final String MANIFEST_EXTENSION = "manifest.json";
+    private static final String CHECKPOINT_EXTENSION = "checkpoint.json";
+    private static final String METADATA_EXTENSION = "metadata.json";
+    private static final String REPLAY_CHECKPOINT_FILE = "oplog.replay.json";
+    private static final String OPLOG_INDEX_EXTENSION = "index.json";
+    private static final String ID_INDEX_EXTENSION = "ids";
+    private static final String CHUNK_STORE_DIRECTORY = "chunks";
+    private static final String FINGERPRINTS_FILE = "fingerprints.json";
+    private static final String CHECKSUMS_FILE = "checksums.json";
+    private static final String COMPLETION_FILE = "complete.json";
+    private static final String DIGEST_DIRECTORY = "digests";
+    private static final String DIGEST_EXTENSION = "digest";
+    private static final String JSON_ENCODING = "UTF-8";
+    private static final String ID_FIELD = "_id";
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("(.+)\\.(\\d{4})");
     
     private BackupUtils() {
     }
     
     public static boolean isBsonFile(File file)
     {
-        return hasExtension(file, BSON_EXTENSION);
+        return isBsonFile(file.getName());
+    }
+
+    public static boolean isBsonFile(String name)
+    {
+        return name.endsWith("." + BSON_EXTENSION) || isGzipBsonFile(name) || isChunkedBsonFile(name)
+               || isDeltaBsonFile(name);
+    }
+
+    /**
+     * @return whether the file holds the changes of a collection found by a snapshot diff dump
+     */
+    public static boolean isDeltaBsonFile(String name)
+    {
+        return name.endsWith("." + DELTA_BSON_EXTENSION);
+    }
+
+    /**
+     * @return whether the file lists the chunks holding the BSON content of a collection
+     */
+    public static boolean isChunkedBsonFile(String name)
+    {
+        return name.endsWith("." + CHUNKED_BSON_EXTENSION);
+    }
+
+    public static boolean isGzipBsonFile(String name)
+    {
+        return name.endsWith("." + BSON_EXTENSION + "." + GZIP_EXTENSION);
     }
 
     public static boolean hasExtension(File file, String extension)
@@ -33,7 +95,16 @@ public class BackupUtils
 
     public static String getCollectionName(String fileName)
     {
-        return fileName.substring(0, fileName.lastIndexOf("."));
+        if(isChunkedBsonFile(fileName))
+        {
+            return fileName.substring(0, fileName.length() - CHUNKED_BSON_EXTENSION.length() - 1);
+        }
+        if(isDeltaBsonFile(fileName))
+        {
+            return fileName.substring(0, fileName.length() - DELTA_BSON_EXTENSION.length() - 1);
+        }
+        String name = fileName.endsWith("." + GZIP_EXTENSION) ? removeExtension(fileName) : fileName;
+        return name.substring(0, name.lastIndexOf("."));
     }
 
     public static boolean isSystemCollection(String collection)
@@ -56,4 +127,304 @@ public class BackupUtils
         return Pattern.compile("^" + database + ".*");
     }
 
+    /**
+     * @return the name under which the given segment of a collection is dumped
+     */
+    public static String getSegmentName(String collection, int segment)
+    {
+        return String.format("%s.%04d", collection, segment);
+    }
+
+    /**
+     * @return the matcher of a segment name, whose first group is the collection and second one
+     *         the segment number, or null if the name is not the one of a segment
+     */
+    public static Matcher matchSegment(String name)
+    {
+        Matcher matcher = SEGMENT_PATTERN.matcher(name);
+        return matcher.matches() ? matcher : null;
+    }
+
+    public static File getManifestFile(File directory, String collection)
+    {
+        return new File(directory, getManifestName(collection));
+    }
+
+    public static String getManifestName(String collection)
+    {
+        return collection + "." + MANIFEST_EXTENSION;
+    }
+
+    public static File getCheckpointFile(File directory, String collection)
+    {
+        return new File(directory, collection + "." + CHECKPOINT_EXTENSION);
+    }
+
+    public static File getMetadataFile(File directory, String collection)
+    {
+        return new File(directory, getMetadataName(collection));
+    }
+
+    public static String getMetadataName(String collection)
+    {
+        return collection + "." + METADATA_EXTENSION;
+    }
+
+    /**
+     * @return the file holding the timestamp of the last oplog entry replayed from a dump
+     */
+    public static File getReplayCheckpointFile(File directory)
+    {
+        return new File(directory, REPLAY_CHECKPOINT_FILE);
+    }
+
+    public static File getOplogIndexFile(File directory, String segment)
+    {
+        return new File(directory, getOplogIndexName(segment));
+    }
+
+    public static String getOplogIndexName(String segment)
+    {
+        return segment + "." + OPLOG_INDEX_EXTENSION;
+    }
+
+    public static File getIdIndexFile(File directory, String collection)
+    {
+        return new File(directory, getIdIndexName(collection));
+    }
+
+    /**
+     * @return the name of the _id index of the file of a collection or of a segment of it
+     */
+    public static String getIdIndexName(String collection)
+    {
+        return collection + "." + ID_INDEX_EXTENSION;
+    }
+
+    /**
+     * @return the chunk store shared by the chunked dumps of an output directory
+     */
+    public static File getChunkStoreDirectory(String outputDirectory)
+    {
+        return new File(outputDirectory, CHUNK_STORE_DIRECTORY);
+    }
+
+    /**
+     * @return the file holding the fingerprints of the collections of a chunked dump
+     */
+    public static File getFingerprintsFile(File directory)
+    {
+        return new File(directory, FINGERPRINTS_FILE);
+    }
+
+    /**
+     * @return the file holding the checksum and document count of every file of a dump
+     */
+    public static File getChecksumsFile(File directory)
+    {
+        return new File(directory, CHECKSUMS_FILE);
+    }
+
+    /**
+     * @return the file marking a dump as complete, written once everything else is
+     */
+    public static File getCompletionFile(File directory)
+    {
+        return new File(directory, COMPLETION_FILE);
+    }
+
+    public static String getChecksumsName()
+    {
+        return CHECKSUMS_FILE;
+    }
+
+    public static File getDeltaFile(File directory, String collection)
+    {
+        return new File(directory, collection + "." + DELTA_BSON_EXTENSION);
+    }
+
+    /**
+     * @return the directory holding the digests of the collections last diffed by a snapshot
+     *         diff dump
+     */
+    public static File getDigestDirectory(String outputDirectory)
+    {
+        return new File(outputDirectory, DIGEST_DIRECTORY);
+    }
+
+    public static File getDigestFile(File directory, String collection)
+    {
+        return new File(directory, collection + "." + DIGEST_EXTENSION);
+    }
+
+    public static boolean isDigestFile(File file)
+    {
+        return hasExtension(file, DIGEST_EXTENSION);
+    }
+
+    /**
+     * Bounds the cursor to the _id range from min, inclusive, to max, exclusive, as bounds of the
+     * _id index. Unlike $gte and $lt, which only match values of the type of their bound, index
+     * bounds follow the order of the values of every type, so collections with _ids of mixed
+     * types are split without leaving documents out of every range.
+     * 
+     * @param min the lower bound, null for none
+     * @param max the upper bound, null for none
+     */
+    public static void setIdRange(DBCursor cursor, Object min, Object max)
+    {
+        if(min == null && max == null)
+        {
+            return;
+        }
+        cursor.hint(new BasicDBObject(ID_FIELD, 1));
+        if(min != null)
+        {
+            cursor.addSpecial("$min", new BasicDBObject(ID_FIELD, min));
+        }
+        if(max != null)
+        {
+            cursor.addSpecial("$max", new BasicDBObject(ID_FIELD, max));
+        }
+    }
+
+    /**
+     * @return the specs of the indexes of the collection. They are listed with the listIndexes
+     *         command where the server has it, as system.indexes can't be read with every
+     *         storage engine.
+     */
+    public static List<DBObject> getIndexes(DBCollection dbCollection)
+    {
+        CommandResult result = dbCollection.getDB().command(new BasicDBObject("listIndexes", dbCollection.getName()));
+        if(result.ok())
+        {
+            return getFirstBatch(result);
+        }
+        return dbCollection.getIndexInfo();
+    }
+
+    /**
+     * @return whether the collection exists, looked up like {@link #getCollectionOptions}
+     */
+    public static boolean collectionExists(DBCollection dbCollection)
+    {
+        return getCollectionInfo(dbCollection) != null;
+    }
+
+    /**
+     * @return the options the collection was created with, such as capped and size
+     */
+    public static DBObject getCollectionOptions(DBCollection dbCollection)
+    {
+        DBObject collectionInfo = getCollectionInfo(dbCollection);
+        Object options = collectionInfo != null ? collectionInfo.get("options") : null;
+        if(options instanceof DBObject)
+        {
+            DBObject collectionOptions = (DBObject) options;
+            collectionOptions.removeField("create");
+            return collectionOptions;
+        }
+        return new BasicDBObject();
+    }
+
+    /**
+     * Looks the collection up with the listCollections command where the server has it, and in
+     * system.namespaces otherwise, which not every storage engine keeps
+     */
+    private static DBObject getCollectionInfo(DBCollection dbCollection)
+    {
+        DBObject command = new BasicDBObject("listCollections", 1);
+        command.put("filter", new BasicDBObject("name", dbCollection.getName()));
+        CommandResult result = dbCollection.getDB().command(command);
+        if(result.ok())
+        {
+            List<DBObject> collections = getFirstBatch(result);
+            return collections.isEmpty() ? null : collections.get(0);
+        }
+        return dbCollection.getDB()
+            .getCollection(BackupConstants.NAMESPACES_COLLECTION)
+            .findOne(new BasicDBObject("name", dbCollection.getFullName()));
+    }
+
+    /**
+     * @return the documents of the first batch of a command cursor, which hold all the indexes or
+     *         the single collection looked up
+     */
+    private static List<DBObject> getFirstBatch(CommandResult result)
+    {
+        List<DBObject> documents = new ArrayList<DBObject>();
+        for(Object document : (List<?>) ((DBObject) result.get("cursor")).get("firstBatch"))
+        {
+            documents.add((DBObject) document);
+        }
+        return documents;
+    }
+
+    public static int compareTimestamps(BSONTimestamp first, BSONTimestamp second)
+    {
+        if(first.getTime() != second.getTime())
+        {
+            return first.getTime() < second.getTime() ? -1 : 1;
+        }
+        return first.getInc() < second.getInc() ? -1 : (first.getInc() == second.getInc() ? 0 : 1);
+    }
+
+    /**
+     * @return the timestamp given as seconds since the epoch, optionally followed by a colon and
+     *         the ordinal of the operation within that second
+     */
+    public static BSONTimestamp parseTimestamp(String timestamp)
+    {
+        String[] parts = timestamp.trim().split(":");
+        if(parts.length > 2)
+        {
+            throw new IllegalArgumentException("Invalid timestamp " + timestamp + ", expected <seconds>[:<ordinal>]");
+        }
+        return new BSONTimestamp(Integer.parseInt(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+    }
+
+    public static DBObject readJsonFile(File file) throws IOException
+    {
+        InputStream inputStream = new FileInputStream(file);
+        try
+        {
+            return (DBObject) JSON.parse(IOUtils.toString(inputStream, JSON_ENCODING));
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Writes a document as JSON, replacing the file atomically so readers never see it half
+     * written
+     */
+    public static void writeJsonFile(File file, DBObject dbObject) throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(tempFile);
+        try
+        {
+            outputStream.write(JSON.serialize(dbObject).getBytes(JSON_ENCODING));
+            outputStream.getFD().sync();
+        }
+        finally
+        {
+            outputStream.close();
+        }
+        replaceFile(tempFile, file);
+    }
+
+    public static void replaceFile(File source, File target) throws IOException
+    {
+        if(!source.renameTo(target))
+        {
+            // renaming over an existing file is not atomic everywhere
+            if(!target.delete() || !source.renameTo(target))
+            {
+                throw new IOException("Couldn't replace " + target + " with " + source);
+            }
+        }
+    }
 }
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBObject;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the documents of a BSON file one at a time, so that files of any size are read with
+ * constant memory. Each document is read whole into a reusable buffer, guided by its length
+ * prefix, before being decoded, which makes a truncated trailing document detectable. Lazy
+ * readers hand out {@link LazyDBObject}s instead, only decoded when their fields are accessed.
+ */
+public class BsonDocumentReader implements BsonReader
+{
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final int INITIAL_DOCUMENT_SIZE = 16 * 1024;
+    private static final int MIN_DOCUMENT_SIZE = 5;
+    private static final int MAX_DOCUMENT_SIZE = 64 * 1024 * 1024;
+
+    private final InputStream inputStream;
+    private final String source;
+    private final DBDecoder decoder = new DefaultDBDecoder();
+    private final LazyDBCallback lazyCallback;
+    private byte[] document = new byte[INITIAL_DOCUMENT_SIZE];
+    private long offset;
+
+    /**
+     * @param inputStream the BSON content
+     * @param source the name of the content in error messages
+     */
+    public BsonDocumentReader(InputStream inputStream, String source)
+    {
+        this(inputStream, source, 0, false);
+    }
+
+    /**
+     * @param inputStream the BSON content, from the given offset
+     * @param source the name of the content in error messages
+     * @param offset the offset of the content where the stream starts
+     * @param lazy whether to hand out lazily decoded documents
+     */
+    public BsonDocumentReader(InputStream inputStream, String source, long offset, boolean lazy)
+    {
+        this.inputStream = new BufferedInputStream(inputStream, READ_BUFFER_SIZE);
+        this.source = source;
+        this.offset = offset;
+        this.lazyCallback = lazy ? new LazyDBCallback((DBCollection) null) : null;
+    }
+
+    public DBObject next() throws IOException
+    {
+        int read = readFully(0, 4);
+        if(read == 0)
+        {
+            return null;
+        }
+        if(read < 4)
+        {
+            throw truncated();
+        }
+
+        int size = (document[0] & 0xff) | (document[1] & 0xff) << 8 | (document[2] & 0xff) << 16 | (document[3] & 0xff) << 24;
+        if(size < MIN_DOCUMENT_SIZE || size > MAX_DOCUMENT_SIZE)
+        {
+            throw new IOException("Invalid document size " + size + " at offset " + offset + " of " + source);
+        }
+        if(size > document.length)
+        {
+            byte[] larger = new byte[Math.max(size, document.length * 2)];
+            System.arraycopy(document, 0, larger, 0, 4);
+            document = larger;
+        }
+        if(readFully(4, size - 4) < size - 4)
+        {
+            throw truncated();
+        }
+
+        offset += size;
+        if(lazyCallback != null)
+        {
+            return new LazyDBObject(Arrays.copyOf(document, size), lazyCallback);
+        }
+        return decoder.decode(document, (DBCollection) null);
+    }
+
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    public void close() throws IOException
+    {
+        inputStream.close();
+    }
+
+    private int readFully(int start, int length) throws IOException
+    {
+        int total = 0;
+        while(total < length)
+        {
+            int read = inputStream.read(document, start + total, length - total);
+            if(read == -1)
+            {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private EOFException truncated()
+    {
+        return new EOFException("Truncated document at offset " + offset + " of " + source);
+    }
+}
@@ -5,24 +5,57 @@
  * license, a copy of which has been included with this distribution in the
  * LICENSE.md file.
  */
-
 package org.mule.module.mongo.tools;
 
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CheckedOutputStream;
 
-import org.bson.BSON;
+import org.bson.BSONEncoder;
+import org.bson.io.PoolOutputBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Writes documents as BSON, keeping the file of each collection open and buffered for the whole
+ * dump. Files are only flushed and synced to disk when their collection is checkpointed or
+ * closed.
+ */
 public class BsonDumpWriter extends DumpWriter
 {
     private static final String BSON_EXTENSION = "bson";
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
     private static final Logger logger = LoggerFactory.getLogger(BsonDumpWriter.class);
 
+    private static final ThreadLocal<BSONEncoder> ENCODER = new ThreadLocal<BSONEncoder>()
+    {
+        @Override
+        protected BSONEncoder initialValue()
+        {
+            return new DefaultDBEncoder();
+        }
+    };
+
+    private static final ThreadLocal<PoolOutputBuffer> ENCODER_BUFFER = new ThreadLocal<PoolOutputBuffer>()
+    {
+        @Override
+        protected PoolOutputBuffer initialValue()
+        {
+            return new PoolOutputBuffer();
+        }
+    };
+
+    private final Map<String, DumpFile> files = new ConcurrentHashMap<String, DumpFile>();
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
     public BsonDumpWriter(String outputDirectory, String database)
     {
         super(outputDirectory, database);
@@ -40,25 +73,132 @@ public class BsonDumpWriter extends DumpWriter
     }
 
     @Override
-    public void writeObject(String collection, DBObject dbObject) throws IOException
+    public int writeObject(String collection, DBObject dbObject) throws IOException
     {
-        FileOutputStream outputStream = null;
-        File outputFile = new File(getFilePath(collection));
-        if(!outputFile.getParentFile().mkdirs())
-        {
-            logger.info("Couldn't create dir: " + outputFile.getParentFile());
-        }
+        OutputStream outputStream = getDumpFile(collection).stream;
+
+        PoolOutputBuffer encoded = ENCODER_BUFFER.get();
+        encoded.reset();
+        BSONEncoder encoder = ENCODER.get();
+        encoder.set(encoded);
         try
         {
-            outputStream = new FileOutputStream(outputFile, true);
-            outputStream.write(BSON.encode(dbObject));
+            encoder.putObject(dbObject);
         }
         finally
         {
-            if(outputStream != null)
+            encoder.done();
+        }
+
+        synchronized(outputStream)
+        {
+            return encoded.pipe(outputStream);
+        }
+    }
+
+    @Override
+    public long checkpoint(String collection) throws IOException
+    {
+        DumpFile dumpFile = files.get(collection);
+        if(dumpFile == null)
+        {
+            return new File(getFilePath(collection)).length();
+        }
+        synchronized(dumpFile.stream)
+        {
+            dumpFile.stream.flush();
+            dumpFile.file.sync();
+            return dumpFile.file.position();
+        }
+    }
+
+    @Override
+    public void close(String collection) throws IOException
+    {
+        DumpFile dumpFile = files.remove(collection);
+        if(dumpFile != null)
+        {
+            synchronized(dumpFile.stream)
+            {
+                dumpFile.stream.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        IOException failure = null;
+        for(String collection : new ArrayList<String>(files.keySet()))
+        {
+            try
+            {
+                close(collection);
+            }
+            catch(IOException e)
             {
-                outputStream.close();
+                logger.warn("Couldn't close dump file of " + collection, e);
+                failure = failure != null ? failure : e;
             }
         }
+        if(failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    public void setBufferSize(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+
+    private DumpFile getDumpFile(String collection) throws IOException
+    {
+        DumpFile dumpFile = files.get(collection);
+        if(dumpFile == null)
+        {
+            synchronized(files)
+            {
+                dumpFile = files.get(collection);
+                if(dumpFile == null)
+                {
+                    BufferedChannelOutputStream file = openOutputStream(new File(getFilePath(collection)));
+                    // the checksum is of the BSON content, the same whatever the compression
+                    dumpFile = new DumpFile(file, new CheckedOutputStream(wrap(file), getChecksumOf(collection)));
+                    files.put(collection, dumpFile);
+                }
+            }
+        }
+        return dumpFile;
+    }
+
+    /**
+     * Lets writers transform the BSON stream, for example compressing it, before it reaches the
+     * collection file
+     */
+    protected OutputStream wrap(BufferedChannelOutputStream fileOutputStream) throws IOException
+    {
+        return fileOutputStream;
+    }
+
+    private BufferedChannelOutputStream openOutputStream(File outputFile) throws IOException
+    {
+        if(!outputFile.getParentFile().exists() && !outputFile.getParentFile().mkdirs())
+        {
+            logger.info("Couldn't create dir: " + outputFile.getParentFile());
+        }
+        return new BufferedChannelOutputStream(new FileOutputStream(outputFile, true).getChannel(), bufferSize);
+    }
+
+    private static class DumpFile
+    {
+        private final BufferedChannelOutputStream file;
+        private final OutputStream stream;
+
+        private DumpFile(BufferedChannelOutputStream file, OutputStream stream)
+        {
+            this.file = file;
+            this.stream = stream;
+        }
     }
 }
@@ -0,0 +1,32 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import com.mongodb.DBObject;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads the documents of BSON content one at a time
+ */
+public interface BsonReader extends Closeable
+{
+    /**
+     * @return the next document, or null at the end of the content
+     * @throws EOFException if the content ends in the middle of a document
+     */
+    DBObject next() throws IOException;
+
+    /**
+     * @return the offset in the content right after the last document read
+     */
+    long getOffset();
+}
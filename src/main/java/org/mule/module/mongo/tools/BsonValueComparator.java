@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+
+/**
+ * Orders BSON values the way the server does: values of different types by the canonical order
+ * of their types, values of the same type by their content. Numbers of any type compare with
+ * each other by value.
+ */
+public final class BsonValueComparator implements Comparator<Object>
+{
+    public static final BsonValueComparator INSTANCE = new BsonValueComparator();
+
+    private BsonValueComparator()
+    {
+    }
+
+    /**
+     * @return the rank of the type of the value in the canonical order of BSON types
+     */
+    public static int getTypeOrder(Object value)
+    {
+        if(value instanceof MinKey)
+        {
+            return 1;
+        }
+        if(value == null)
+        {
+            return 2;
+        }
+        if(value instanceof Number)
+        {
+            return 3;
+        }
+        if(value instanceof String || value instanceof Symbol)
+        {
+            return 4;
+        }
+        if(value instanceof List)
+        {
+            return 6;
+        }
+        if(value instanceof BSONObject)
+        {
+            return 5;
+        }
+        if(value instanceof byte[] || value instanceof Binary)
+        {
+            return 7;
+        }
+        if(value instanceof ObjectId)
+        {
+            return 8;
+        }
+        if(value instanceof Boolean)
+        {
+            return 9;
+        }
+        if(value instanceof Date)
+        {
+            return 10;
+        }
+        if(value instanceof BSONTimestamp)
+        {
+            return 11;
+        }
+        if(value instanceof Pattern)
+        {
+            return 12;
+        }
+        if(value instanceof MaxKey)
+        {
+            return 13;
+        }
+        // other values, such as code, compare by their text after every other type
+        return 14;
+    }
+
+    public int compare(Object first, Object second)
+    {
+        int firstOrder = getTypeOrder(first);
+        int secondOrder = getTypeOrder(second);
+        if(firstOrder != secondOrder)
+        {
+            return firstOrder < secondOrder ? -1 : 1;
+        }
+
+        switch(firstOrder)
+        {
+            case 3:
+                return compareNumbers((Number) first, (Number) second);
+            case 4:
+                return first.toString().compareTo(second.toString());
+            case 5:
+                return compareDocuments((BSONObject) first, (BSONObject) second);
+            case 6:
+                return compareLists((List<?>) first, (List<?>) second);
+            case 7:
+                return compareBytes(getBytes(first), getBytes(second));
+            case 8:
+                return ((ObjectId) first).compareTo((ObjectId) second);
+            case 9:
+                return ((Boolean) first).compareTo((Boolean) second);
+            case 10:
+                return ((Date) first).compareTo((Date) second);
+            case 11:
+                return BackupUtils.compareTimestamps((BSONTimestamp) first, (BSONTimestamp) second);
+            case 12:
+                return ((Pattern) first).pattern().compareTo(((Pattern) second).pattern());
+            case 14:
+                return first.toString().compareTo(second.toString());
+            default:
+                return 0;
+        }
+    }
+
+    private int compareNumbers(Number first, Number second)
+    {
+        if(isIntegral(first) && isIntegral(second))
+        {
+            long firstValue = first.longValue();
+            long secondValue = second.longValue();
+            return firstValue < secondValue ? -1 : (firstValue == secondValue ? 0 : 1);
+        }
+        return Double.compare(first.doubleValue(), second.doubleValue());
+    }
+
+    private boolean isIntegral(Number number)
+    {
+        return number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte;
+    }
+
+    private int compareDocuments(BSONObject first, BSONObject second)
+    {
+        Iterator<String> firstKeys = first.keySet().iterator();
+        Iterator<String> secondKeys = second.keySet().iterator();
+        while(firstKeys.hasNext() && secondKeys.hasNext())
+        {
+            // like the server, elements compare by the type of their value, then by their name
+            // and only then by their value
+            String firstKey = firstKeys.next();
+            String secondKey = secondKeys.next();
+            Object firstValue = first.get(firstKey);
+            Object secondValue = second.get(secondKey);
+            int firstOrder = getTypeOrder(firstValue);
+            int secondOrder = getTypeOrder(secondValue);
+            if(firstOrder != secondOrder)
+            {
+                return firstOrder < secondOrder ? -1 : 1;
+            }
+            int comparison = firstKey.compareTo(secondKey);
+            if(comparison != 0)
+            {
+                return comparison;
+            }
+            comparison = compare(firstValue, secondValue);
+            if(comparison != 0)
+            {
+                return comparison;
+            }
+        }
+        return firstKeys.hasNext() ? 1 : (secondKeys.hasNext() ? -1 : 0);
+    }
+
+    private int compareLists(List<?> first, List<?> second)
+    {
+        for(int i = 0; i < first.size() && i < second.size(); i++)
+        {
+            int comparison = compare(first.get(i), second.get(i));
+            if(comparison != 0)
+            {
+                return comparison;
+            }
+        }
+        return first.size() < second.size() ? -1 : (first.size() == second.size() ? 0 : 1);
+    }
+
+    private byte[] getBytes(Object value)
+    {
+        return value instanceof Binary ? ((Binary) value).getData() : (byte[]) value;
+    }
+
+    private int compareBytes(byte[] first, byte[] second)
+    {
+        if(first.length != second.length)
+        {
+            return first.length < second.length ? -1 : 1;
+        }
+        for(int i = 0; i < first.length; i++)
+        {
+            int comparison = (first[i] & 0xff) - (second[i] & 0xff);
+            if(comparison != 0)
+            {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+}
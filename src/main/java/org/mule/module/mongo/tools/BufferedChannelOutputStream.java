@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An output stream over a {@link FileChannel} that gathers writes in a direct buffer, so that a
+ * file receiving many small writes is only written to in large sequential blocks.
+ */
+public class BufferedChannelOutputStream extends OutputStream
+{
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    public BufferedChannelOutputStream(FileChannel channel, int bufferSize)
+    {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (!buffer.hasRemaining())
+        {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            if (!buffer.hasRemaining())
+            {
+                drain();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        drain();
+    }
+
+    /**
+     * Flushes the buffer and forces the written data to the storage device
+     */
+    public void sync() throws IOException
+    {
+        drain();
+        channel.force(false);
+    }
+
+    /**
+     * @return the size of the file including the data still held in the buffer
+     */
+    public long position() throws IOException
+    {
+        return channel.position() + buffer.position();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            sync();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private void drain() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A directory of chunks of dumped collections, each one stored once under the SHA-1 of its
+ * content, in a subdirectory named after the first two digits of the hash. Chunks are written
+ * to a temporary file and renamed, so a chunk that exists is always complete. Chunks of
+ * compressed dumps are gzipped, and hashed before compression.
+ */
+public class ChunkStore
+{
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final int compressionLevel;
+
+    /**
+     * @param compressionLevel the deflate level of new chunks, 0 to store them uncompressed
+     */
+    public ChunkStore(File directory, int compressionLevel)
+    {
+        this.directory = directory;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Stores a chunk unless the store already holds it
+     *
+     * @return the hash of the chunk
+     */
+    public String put(byte[] buffer, int offset, int length) throws IOException
+    {
+        String hash = hash(buffer, offset, length);
+        if(exists(hash))
+        {
+            return hash;
+        }
+
+        File chunkFile = getFile(hash, compressionLevel > 0);
+        if(!chunkFile.getParentFile().exists() && !chunkFile.getParentFile().mkdirs()
+           && !chunkFile.getParentFile().exists())
+        {
+            throw new IOException("Couldn't create dir: " + chunkFile.getParentFile());
+        }
+        File tempFile = File.createTempFile(hash, ".tmp", chunkFile.getParentFile());
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        try
+        {
+            OutputStream outputStream = compressionLevel > 0 ? new LevelGzipOutputStream(fileOutputStream, compressionLevel)
+                                                             : fileOutputStream;
+            outputStream.write(buffer, offset, length);
+            outputStream.flush();
+            if(outputStream instanceof GZIPOutputStream)
+            {
+                ((GZIPOutputStream) outputStream).finish();
+            }
+            fileOutputStream.getFD().sync();
+        }
+        finally
+        {
+            fileOutputStream.close();
+        }
+        // another dump may have stored the same chunk meanwhile, either copy will do
+        if(!tempFile.renameTo(chunkFile) && !tempFile.delete())
+        {
+            tempFile.deleteOnExit();
+        }
+        return hash;
+    }
+
+    public boolean exists(String hash)
+    {
+        return getFile(hash, false).exists() || getFile(hash, true).exists();
+    }
+
+    /**
+     * @return the concatenated content of the chunks, opened one after the other as they are
+     *         read
+     */
+    public InputStream openInputStream(List<String> hashes)
+    {
+        final Iterator<String> iterator = hashes.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>()
+        {
+            public boolean hasMoreElements()
+            {
+                return iterator.hasNext();
+            }
+
+            public InputStream nextElement()
+            {
+                if(!iterator.hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                try
+                {
+                    return openChunk(iterator.next());
+                }
+                catch(IOException e)
+                {
+                    // surfaces through the read that needed the chunk
+                    return new FailingInputStream(e);
+                }
+            }
+        });
+    }
+
+    private InputStream openChunk(String hash) throws IOException
+    {
+        File compressed = getFile(hash, true);
+        if(compressed.exists())
+        {
+            return new GZIPInputStream(new FileInputStream(compressed), BUFFER_SIZE);
+        }
+        File chunk = getFile(hash, false);
+        if(!chunk.exists())
+        {
+            throw new IOException("Missing chunk " + hash + " in " + directory);
+        }
+        return new BufferedInputStream(new FileInputStream(chunk), BUFFER_SIZE);
+    }
+
+    private File getFile(String hash, boolean compressed)
+    {
+        return new File(new File(directory, hash.substring(0, 2)), compressed ? hash + GZIP_SUFFIX : hash);
+    }
+
+    private static String hash(byte[] buffer, int offset, int length)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(buffer, offset, length);
+            byte[] hash = digest.digest();
+            char[] hex = new char[hash.length * 2];
+            for(int i = 0; i < hash.length; i++)
+            {
+                hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+            }
+            return new String(hex);
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    private static class LevelGzipOutputStream extends GZIPOutputStream
+    {
+        LevelGzipOutputStream(OutputStream outputStream, int level) throws IOException
+        {
+            super(outputStream, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+
+    private static class FailingInputStream extends InputStream
+    {
+        private final IOException failure;
+
+        FailingInputStream(IOException failure)
+        {
+            this.failure = failure;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            throw failure;
+        }
+    }
+}
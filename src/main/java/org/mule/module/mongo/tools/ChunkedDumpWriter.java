@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.BasicBSONEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the BSON stream of each collection as content-defined chunks into a {@link ChunkStore}
+ * shared by all the dumps of an output directory, and the list of its chunks as the file of the
+ * collection. Chunk boundaries are found with a gear rolling hash over the stream, and placed at
+ * the end of the document where the hash hits, so that changed documents only change the
+ * chunks around them and unchanged data is stored once across dumps.
+ */
+public class ChunkedDumpWriter extends DumpWriter
+{
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedDumpWriter.class);
+    private static final String CHUNKED_EXTENSION = BackupUtils.CHUNKED_BSON_EXTENSION;
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+    // about one boundary every MB once past the minimum size
+    private static final long BOUNDARY_MASK = (1L << 20) - 1;
+    private static final long[] GEAR = new long[256];
+
+    static
+    {
+        // a fixed seed, so that every dump finds the same boundaries in the same data
+        long seed = 0x5DEECE66DL;
+        for(int i = 0; i < GEAR.length; i++)
+        {
+            seed += 0x9E3779B97F4A7C15L;
+            long value = seed;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = value ^ (value >>> 31);
+        }
+    }
+
+    private static final ThreadLocal<BasicBSONEncoder> ENCODER = new ThreadLocal<BasicBSONEncoder>()
+    {
+        @Override
+        protected BasicBSONEncoder initialValue()
+        {
+            return new BasicBSONEncoder();
+        }
+    };
+
+    private final ChunkStore chunkStore;
+    private final Map<String, ChunkedFile> files = new ConcurrentHashMap<String, ChunkedFile>();
+
+    public ChunkedDumpWriter(String outputDirectory, String database, ChunkStore chunkStore)
+    {
+        super(outputDirectory, database);
+        this.chunkStore = chunkStore;
+    }
+
+    @Override
+    public String getExtension()
+    {
+        return CHUNKED_EXTENSION;
+    }
+
+    @Override
+    public int writeObject(String collection, DBObject dbObject) throws IOException
+    {
+        byte[] document = ENCODER.get().encode(dbObject);
+        ChunkedFile file = getChunkedFile(collection);
+        synchronized(file)
+        {
+            file.append(document);
+            getChecksumOf(collection).update(document, 0, document.length);
+        }
+        return document.length;
+    }
+
+    /**
+     * Starts the collection over, chunked files being only written once complete
+     */
+    @Override
+    public void truncate(String collection, long offset) throws IOException
+    {
+        files.remove(collection);
+        File file = new File(getFilePath(collection));
+        if(file.exists() && !file.delete())
+        {
+            throw new IOException("Couldn't delete " + file);
+        }
+    }
+
+    @Override
+    public void close(String collection) throws IOException
+    {
+        ChunkedFile file = files.remove(collection);
+        if(file != null)
+        {
+            synchronized(file)
+            {
+                file.cut();
+                file.writeManifest(new File(getFilePath(collection)), collection);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for(String collection : new ArrayList<String>(files.keySet()))
+        {
+            close(collection);
+        }
+    }
+
+    private ChunkedFile getChunkedFile(String collection)
+    {
+        ChunkedFile file = files.get(collection);
+        if(file == null)
+        {
+            synchronized(files)
+            {
+                file = files.get(collection);
+                if(file == null)
+                {
+                    file = new ChunkedFile();
+                    files.put(collection, file);
+                }
+            }
+        }
+        return file;
+    }
+
+    private class ChunkedFile
+    {
+        private final BasicDBList chunks = new BasicDBList();
+        private byte[] buffer = new byte[MIN_CHUNK_SIZE * 2];
+        private int length;
+        private long hash;
+        private boolean boundary;
+        private long size;
+
+        void append(byte[] document) throws IOException
+        {
+            if(length + document.length > buffer.length)
+            {
+                byte[] larger = new byte[Math.max(buffer.length * 2, length + document.length)];
+                System.arraycopy(buffer, 0, larger, 0, length);
+                buffer = larger;
+            }
+            System.arraycopy(document, 0, buffer, length, document.length);
+            int start = length;
+            length += document.length;
+
+            // boundaries are only looked for past the minimum size of a chunk
+            for(int i = Math.max(start, MIN_CHUNK_SIZE); i < length && !boundary; i++)
+            {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                boundary = (hash & BOUNDARY_MASK) == 0;
+            }
+            if(boundary || length >= MAX_CHUNK_SIZE)
+            {
+                cut();
+            }
+        }
+
+        void cut() throws IOException
+        {
+            if(length == 0)
+            {
+                return;
+            }
+            chunks.add(chunkStore.put(buffer, 0, length));
+            size += length;
+            length = 0;
+            hash = 0;
+            boundary = false;
+        }
+
+        void writeManifest(File file, String collection) throws IOException
+        {
+            File directory = file.getParentFile();
+            if(!directory.exists() && !directory.mkdirs())
+            {
+                logger.info("Couldn't create dir: " + directory);
+            }
+            DBObject manifest = new BasicDBObject("collection", collection);
+            manifest.put("store", getRelativePath(directory, chunkStore.getDirectory()));
+            manifest.put("size", size);
+            manifest.put("chunks", chunks);
+            BackupUtils.writeJsonFile(file, manifest);
+            logger.debug("Wrote {} chunks of collection {}", chunks.size(), collection);
+        }
+    }
+
+    /**
+     * @return the path of the target relative to the directory, for dumps to be moved along with
+     *         their chunk store
+     */
+    static String getRelativePath(File directory, File target)
+    {
+        String[] from = directory.getAbsoluteFile().toURI().normalize().getPath().split("/");
+        String[] to = target.getAbsoluteFile().toURI().normalize().getPath().split("/");
+        int common = 0;
+        while(common < from.length && common < to.length && from[common].equals(to[common]))
+        {
+            common++;
+        }
+        StringBuilder path = new StringBuilder();
+        for(int i = common; i < from.length; i++)
+        {
+            path.append("../");
+        }
+        for(int i = common; i < to.length; i++)
+        {
+            path.append(to[i]).append('/');
+        }
+        return path.length() > 0 ? path.substring(0, path.length() - 1) : ".";
+    }
+}
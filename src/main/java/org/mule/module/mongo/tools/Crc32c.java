@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import java.util.zip.Checksum;
+
+/**
+ * The CRC32C (Castagnoli) checksum, computed eight bytes at a time through precomputed tables.
+ * A checksum can be continued from the value it had at some point of the data, so that the
+ * checksum of a file survives the resume of its dump.
+ */
+public class Crc32c implements Checksum
+{
+    // the Castagnoli polynomial, bit reversed
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+
+    static
+    {
+        for(int i = 0; i < 256; i++)
+        {
+            int crc = i;
+            for(int bit = 0; bit < 8; bit++)
+            {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for(int i = 0; i < 256; i++)
+        {
+            for(int table = 1; table < TABLES.length; table++)
+            {
+                int previous = TABLES[table - 1][i];
+                TABLES[table][i] = (previous >>> 8) ^ TABLES[0][previous & 0xff];
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    public Crc32c()
+    {
+    }
+
+    /**
+     * @param value the value of the checksum of the data it continues
+     */
+    public Crc32c(long value)
+    {
+        this.crc = ~(int) value;
+    }
+
+    public void update(int b)
+    {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+    }
+
+    public void update(byte[] bytes, int offset, int length)
+    {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int value = crc;
+        while(length >= 8)
+        {
+            value ^= (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+                     | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+            value = t7[value & 0xff] ^ t6[(value >>> 8) & 0xff] ^ t5[(value >>> 16) & 0xff] ^ t4[value >>> 24]
+                    ^ t3[bytes[offset + 4] & 0xff] ^ t2[bytes[offset + 5] & 0xff]
+                    ^ t1[bytes[offset + 6] & 0xff] ^ t0[bytes[offset + 7] & 0xff];
+            offset += 8;
+            length -= 8;
+        }
+        while(length-- > 0)
+        {
+            value = (value >>> 8) ^ t0[(value ^ bytes[offset++]) & 0xff];
+        }
+        crc = value;
+    }
+
+    public void update(byte[] bytes)
+    {
+        update(bytes, 0, bytes.length);
+    }
+
+    public long getValue()
+    {
+        return ~crc & 0xffffffffL;
+    }
+
+    public void reset()
+    {
+        crc = 0xffffffff;
+    }
+
+    /**
+     * @return the checksum as the eight hexadecimal digits it is recorded with
+     */
+    public static String toHex(long value)
+    {
+        return String.format("%08x", value);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Restores the BSON files found in a directory and its subdirectories
+ */
+public class DirectoryRestoreSource extends RestoreSource
+{
+    private final File directory;
+
+    public DirectoryRestoreSource(File directory)
+    {
+        this.directory = directory;
+    }
+
+    @Override
+    public List<String> getBsonFiles()
+    {
+        List<String> names = new ArrayList<String>();
+        addBsonFiles(directory, "", names);
+        return names;
+    }
+
+    private void addBsonFiles(File dir, String path, List<String> names)
+    {
+        File[] files = dir.listFiles();
+        if(files == null)
+        {
+            return;
+        }
+        for(File file : files)
+        {
+            if(file.isDirectory())
+            {
+                addBsonFiles(file, path + file.getName() + "/", names);
+            }
+            else if(BackupUtils.isBsonFile(file))
+            {
+                names.add(path + file.getName());
+            }
+        }
+    }
+
+    @Override
+    public boolean exists(String name)
+    {
+        return getFile(name).exists();
+    }
+
+    @Override
+    public InputStream openInputStream(String name) throws IOException
+    {
+        return new FileInputStream(getFile(name));
+    }
+
+    @Override
+    public File getLocalFile(String name)
+    {
+        return getFile(name);
+    }
+
+    @Override
+    public File getReplayCheckpointFile(String oplogName)
+    {
+        return BackupUtils.getReplayCheckpointFile(getFile(oplogName).getParentFile());
+    }
+
+    @Override
+    public String getDescription(String name)
+    {
+        return getFile(name).getPath();
+    }
+
+    private File getFile(String name)
+    {
+        return new File(directory, name.replace('/', File.separatorChar));
+    }
+}
@@ -0,0 +1,388 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.Validate;
+import org.bson.BSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queries a collection of a dump in place, without restoring it. The files and segments of the
+ * collection are scanned concurrently, their documents read lazily and only decoded as far as
+ * the query needs, so documents that don't match are never fully decoded. Matching documents are
+ * streamed to the caller through a bounded queue, so that scans never hold more than a few of
+ * them, whatever the size of the collection.
+ */
+public class DumpQuery
+{
+    private static final Logger logger = LoggerFactory.getLogger(DumpQuery.class);
+    private static final int QUEUED_DOCUMENTS = 1000;
+    private static final long OFFER_WAIT = 1000;
+    private static final long ABANDONED_TIMEOUT = 10 * 60 * 1000;
+    private static final Object END_OF_FILE = new Object();
+
+    private final String inputPath;
+    private int threads = 1;
+
+    /**
+     * @param inputPath the dump directory, zip archive or BSON file
+     */
+    public DumpQuery(String inputPath)
+    {
+        this.inputPath = inputPath;
+    }
+
+    /**
+     * @param collection the collection to query
+     * @param query the query the documents must match, null to match all of them
+     * @param fields the fields to return along with the _id, null or empty to return whole
+     *            documents
+     * @param limit the maximum number of documents to return, 0 for no limit
+     * @return the matching documents, in no defined order across files. Each iteration scans the
+     *         dump again, from when it starts, and releases the files once it is done, or once
+     *         nothing is read from it for 10 minutes.
+     */
+    public Iterable<DBObject> find(final String collection, DBObject query, final List<String> fields, int limit)
+    {
+        Validate.notNull(inputPath);
+        Validate.notNull(collection);
+        final QueryMatcher matcher = new QueryMatcher(query);
+        final int maxResults = limit > 0 ? limit : Integer.MAX_VALUE;
+        return new Iterable<DBObject>()
+        {
+            public Iterator<DBObject> iterator()
+            {
+                Results results = new Results(collection, matcher, fields, maxResults);
+                results.start();
+                return results;
+            }
+        };
+    }
+
+    /**
+     * Adds the matching documents of a file to the results, until they are closed
+     */
+    private void scan(RestoreFile restoreFile, Results results) throws IOException, InterruptedException
+    {
+        BsonReader reader = restoreFile.openReader(0, true);
+        try
+        {
+            DBObject document;
+            while(!results.closed && (document = reader.next()) != null)
+            {
+                if(!results.matcher.matches(document))
+                {
+                    continue;
+                }
+                List<String> fields = results.fields;
+                if(!results.put(copy(fields == null || fields.isEmpty() ? document : project(document, fields))))
+                {
+                    return;
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * The documents found by the scans of the files of a collection, which each end with an end
+     * of file marker, or with their failure
+     */
+    private class Results implements Iterator<DBObject>
+    {
+        private final String collection;
+        private final QueryMatcher matcher;
+        private final List<String> fields;
+        private final int maxResults;
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUED_DOCUMENTS);
+        private final List<RestoreSource> sources = new ArrayList<RestoreSource>();
+        private ExecutorService executor;
+        private volatile boolean closed;
+        private int pendingScans;
+        private int returned;
+        private DBObject next;
+
+        Results(String collection, QueryMatcher matcher, List<String> fields, int maxResults)
+        {
+            this.collection = collection;
+            this.matcher = matcher;
+            this.fields = fields;
+            this.maxResults = maxResults;
+        }
+
+        void start()
+        {
+            List<RestoreFile> collectionFiles = new ArrayList<RestoreFile>();
+            try
+            {
+                for(RestoreFile restoreFile : RestoreFiles.find(new File(inputPath), sources))
+                {
+                    if(collection.equals(restoreFile.getCollection()) && !restoreFile.isDelta())
+                    {
+                        collectionFiles.add(restoreFile);
+                    }
+                }
+            }
+            catch(IOException e)
+            {
+                close();
+                throw new IllegalStateException("Error querying " + collection + " in " + inputPath, e);
+            }
+            if(collectionFiles.isEmpty())
+            {
+                close();
+                return;
+            }
+
+            pendingScans = collectionFiles.size();
+            executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, collectionFiles.size())));
+            for(final RestoreFile restoreFile : collectionFiles)
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        Object end = END_OF_FILE;
+                        try
+                        {
+                            scan(restoreFile, Results.this);
+                        }
+                        catch(InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                        catch(Exception e)
+                        {
+                            end = e;
+                        }
+                        try
+                        {
+                            put(end);
+                        }
+                        catch(InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Waits for room in the queue for as long as the results are read from
+         *
+         * @return false if the results were closed, or abandoned by their reader
+         */
+        boolean put(Object element) throws InterruptedException
+        {
+            long waited = 0;
+            while(!closed)
+            {
+                if(queue.offer(element, OFFER_WAIT, TimeUnit.MILLISECONDS))
+                {
+                    return true;
+                }
+                waited += OFFER_WAIT;
+                if(waited >= ABANDONED_TIMEOUT)
+                {
+                    logger.warn("Closing the query of {} in {}, as its results are no longer read", collection,
+                        inputPath);
+                    close();
+                }
+            }
+            return false;
+        }
+
+        public boolean hasNext()
+        {
+            while(next == null && !closed)
+            {
+                if(returned >= maxResults || pendingScans == 0)
+                {
+                    close();
+                    break;
+                }
+                Object element;
+                try
+                {
+                    element = queue.take();
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new IllegalStateException("Interrupted while querying " + collection + " in " + inputPath, e);
+                }
+                if(element == END_OF_FILE)
+                {
+                    pendingScans--;
+                }
+                else if(element instanceof Exception)
+                {
+                    close();
+                    if(element instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) element;
+                    }
+                    throw new IllegalStateException("Error querying " + collection + " in " + inputPath,
+                        (Exception) element);
+                }
+                else
+                {
+                    next = (DBObject) element;
+                }
+            }
+            return next != null;
+        }
+
+        public DBObject next()
+        {
+            if(!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            DBObject result = next;
+            next = null;
+            returned++;
+            return result;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops the scans and releases the files of the dump
+         */
+        synchronized void close()
+        {
+            closed = true;
+            if(executor != null)
+            {
+                executor.shutdownNow();
+                executor = null;
+            }
+            for(RestoreSource source : sources)
+            {
+                try
+                {
+                    source.close();
+                }
+                catch(IOException e)
+                {
+                    logger.warn("Couldn't close " + inputPath, e);
+                }
+            }
+            sources.clear();
+        }
+    }
+
+    /**
+     * @return the _id and the given fields of the document, dotted fields keeping their
+     *         enclosing subdocuments
+     */
+    static DBObject project(DBObject document, List<String> fields)
+    {
+        DBObject projected = new BasicDBObject();
+        if(document.containsField("_id"))
+        {
+            projected.put("_id", document.get("_id"));
+        }
+        for(String field : fields)
+        {
+            copyField(document, projected, field);
+        }
+        return projected;
+    }
+
+    private static void copyField(DBObject source, DBObject target, String path)
+    {
+        int separator = path.indexOf('.');
+        if(separator < 0)
+        {
+            if(source.containsField(path))
+            {
+                target.put(path, source.get(path));
+            }
+            return;
+        }
+
+        String head = path.substring(0, separator);
+        Object value = source.get(head);
+        if(value instanceof DBObject && !(value instanceof List))
+        {
+            Object existing = target.get(head);
+            DBObject nested = existing instanceof BasicDBObject ? (DBObject) existing : new BasicDBObject();
+            copyField((DBObject) value, nested, path.substring(separator + 1));
+            if(!nested.keySet().isEmpty())
+            {
+                target.put(head, nested);
+            }
+        }
+        else if(value != null)
+        {
+            // arrays are returned whole
+            target.put(head, value);
+        }
+    }
+
+    /**
+     * @return the value with its lazy documents and arrays decoded, so that it outlives the
+     *         bytes they were read from
+     */
+    private static Object copy(Object value)
+    {
+        if(value instanceof List)
+        {
+            BasicDBList list = new BasicDBList();
+            for(Object element : (List<?>) value)
+            {
+                list.add(copy(element));
+            }
+            return list;
+        }
+        if(value instanceof BSONObject)
+        {
+            BSONObject document = (BSONObject) value;
+            BasicDBObject copy = new BasicDBObject();
+            for(String key : document.keySet())
+            {
+                copy.put(key, copy(document.get(key)));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+}
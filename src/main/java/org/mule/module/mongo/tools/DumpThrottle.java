@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Limits the load a dump puts on the server. It is shared by all the threads of a dump, which
+ * take from token buckets of documents and bytes per second, and pause all together while the
+ * replication lag or the latency of the server is above its threshold.
+ */
+public class DumpThrottle
+{
+    private static final Logger logger = LoggerFactory.getLogger(DumpThrottle.class);
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(60);
+    private static final int SECONDARY_STATE = 2;
+    private static final int PRIMARY_STATE = 1;
+
+    private final TokenBucket documentBucket;
+    private final TokenBucket byteBucket;
+    private final DB adminDb;
+    private long maxReplicationLag;
+    private long maxLatency;
+
+    private final Object healthLock = new Object();
+    private long nextCheck;
+    private long backoff = MIN_BACKOFF;
+    private volatile long pausedUntil;
+
+    /**
+     * @param adminDb the admin database of the dumped server, used to check its health
+     * @param documentsPerSecond the maximum documents read per second, 0 for no limit
+     * @param bytesPerSecond the maximum bytes read per second, 0 for no limit
+     */
+    public DumpThrottle(DB adminDb, long documentsPerSecond, long bytesPerSecond)
+    {
+        this.adminDb = adminDb;
+        this.documentBucket = documentsPerSecond > 0 ? new TokenBucket(documentsPerSecond) : null;
+        this.byteBucket = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+        this.nextCheck = System.nanoTime();
+    }
+
+    /**
+     * Accounts a dumped document, blocking the calling thread as long as needed to respect the
+     * rates and let an unhealthy server recover
+     */
+    public void acquire(int bytes) throws InterruptedException
+    {
+        checkHealth();
+
+        long wait = 0;
+        if(documentBucket != null)
+        {
+            wait = Math.max(wait, documentBucket.reserve(1));
+        }
+        if(byteBucket != null)
+        {
+            wait = Math.max(wait, byteBucket.reserve(bytes));
+        }
+        wait = Math.max(wait, pausedUntil - System.nanoTime());
+        if(wait > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Checks the server every few seconds, from whichever thread gets there first. While it is
+     * unhealthy dumps are paused with an exponential backoff.
+     */
+    private void checkHealth()
+    {
+        if(maxReplicationLag <= 0 && maxLatency <= 0 || adminDb == null)
+        {
+            return;
+        }
+
+        synchronized(healthLock)
+        {
+            long now = System.nanoTime();
+            if(now - nextCheck < 0)
+            {
+                return;
+            }
+
+            String problem = getHealthProblem();
+            if(problem != null)
+            {
+                logger.warn("Pausing dump for {} ms: {}", TimeUnit.NANOSECONDS.toMillis(backoff), problem);
+                pausedUntil = now + backoff;
+                nextCheck = pausedUntil;
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+            else
+            {
+                nextCheck = now + CHECK_INTERVAL;
+                backoff = MIN_BACKOFF;
+            }
+        }
+    }
+
+    private String getHealthProblem()
+    {
+        try
+        {
+            if(maxLatency > 0)
+            {
+                long start = System.nanoTime();
+                adminDb.command(new BasicDBObject("ping", 1));
+                long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if(latency > maxLatency)
+                {
+                    return "server latency " + latency + " ms is above " + maxLatency + " ms";
+                }
+            }
+            if(maxReplicationLag > 0)
+            {
+                long lag = getReplicationLag();
+                if(lag > maxReplicationLag)
+                {
+                    return "replication lag " + lag + " s is above " + maxReplicationLag + " s";
+                }
+            }
+        }
+        catch(MongoException e)
+        {
+            logger.debug("Couldn't check the health of the server", e);
+        }
+        return null;
+    }
+
+    /**
+     * @return the lag in seconds of the most delayed secondary, 0 if the server is not a replica
+     *         set
+     */
+    private long getReplicationLag()
+    {
+        CommandResult status = adminDb.command(new BasicDBObject("replSetGetStatus", 1));
+        if(!status.ok() || !(status.get("members") instanceof List))
+        {
+            return 0;
+        }
+
+        Date primaryOptime = null;
+        Date oldestSecondaryOptime = null;
+        for(Object member : (List<?>) status.get("members"))
+        {
+            DBObject memberStatus = (DBObject) member;
+            Object state = memberStatus.get("state");
+            Object optime = memberStatus.get("optimeDate");
+            if(!(state instanceof Number) || !(optime instanceof Date))
+            {
+                continue;
+            }
+            if(((Number) state).intValue() == PRIMARY_STATE)
+            {
+                primaryOptime = (Date) optime;
+            }
+            else if(((Number) state).intValue() == SECONDARY_STATE
+                     && (oldestSecondaryOptime == null || ((Date) optime).before(oldestSecondaryOptime)))
+            {
+                oldestSecondaryOptime = (Date) optime;
+            }
+        }
+        if(primaryOptime == null || oldestSecondaryOptime == null)
+        {
+            return 0;
+        }
+        return TimeUnit.MILLISECONDS.toSeconds(primaryOptime.getTime() - oldestSecondaryOptime.getTime());
+    }
+
+    /**
+     * @param maxReplicationLag the replication lag in seconds above which dumps are paused, 0 to
+     *            ignore it
+     */
+    public void setMaxReplicationLag(long maxReplicationLag)
+    {
+        this.maxReplicationLag = maxReplicationLag;
+    }
+
+    /**
+     * @param maxLatency the latency in milliseconds of a ping to the server above which dumps are
+     *            paused, 0 to ignore it
+     */
+    public void setMaxLatency(long maxLatency)
+    {
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * A bucket refilled at a constant rate and holding at most one second worth of tokens.
+     * Reservations may take it below zero, the reserving thread then waits for the debt to be
+     * refilled.
+     */
+    private static class TokenBucket
+    {
+        private final double rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(long perSecond)
+        {
+            this.rate = perSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            this.tokens = perSecond;
+        }
+
+        /**
+         * @return the nanoseconds to wait until the reserved tokens are available
+         */
+        synchronized long reserve(long amount)
+        {
+            long now = System.nanoTime();
+            tokens = Math.min(tokens + (now - lastRefill) * rate, rate * TimeUnit.SECONDS.toNanos(1));
+            lastRefill = now;
+            tokens -= amount;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate);
+        }
+    }
+}
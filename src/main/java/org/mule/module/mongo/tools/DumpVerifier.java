@@ -0,0 +1,369 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import org.mule.module.mongo.api.MongoClient;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies the files of a dump against the checksums and document counts recorded in it when it
+ * was written, without restoring it. Files are verified concurrently, each one read once from
+ * start to end in large blocks, checksumming its BSON content while walking the length prefixes
+ * of its documents. Optionally, the documents of each file are also compared with the ones of
+ * its collection, or of the _id range of its segment, in the database.
+ */
+public class DumpVerifier
+{
+    private static final Logger logger = LoggerFactory.getLogger(DumpVerifier.class);
+    private static final int READ_SIZE = 4 * 1024 * 1024;
+    private static final int MIN_DOCUMENT_SIZE = 5;
+    private static final int MAX_DOCUMENT_SIZE = 64 * 1024 * 1024;
+    private static final String ID_FIELD = "_id";
+
+    private final MongoClient mongoClient;
+    private final String inputPath;
+    private int threads = 1;
+    private boolean compareCounts;
+    private boolean compareHashes;
+
+    /**
+     * @param mongoClient the database the dump is compared with, only needed to compare counts
+     *            or hashes
+     */
+    public DumpVerifier(MongoClient mongoClient, String inputPath)
+    {
+        Validate.notNull(inputPath);
+        this.mongoClient = mongoClient;
+        this.inputPath = inputPath;
+    }
+
+    /**
+     * @return the problems found, one per line, or an empty list if the dump is intact
+     */
+    public List<String> verify() throws IOException
+    {
+        Validate.isTrue(mongoClient != null || !(compareCounts || compareHashes),
+            "Comparing with the database needs a connection");
+        long start = System.currentTimeMillis();
+        List<String> problems = new ArrayList<String>();
+        List<RestoreSource> sources = new ArrayList<RestoreSource>();
+        ExecutorService executor = null;
+        try
+        {
+            Map<String, Map<String, DBObject>> checksums = new HashMap<String, Map<String, DBObject>>();
+            Set<DBObject> verified = new HashSet<DBObject>();
+            List<Callable<List<String>>> verifications = new ArrayList<Callable<List<String>>>();
+            for(final RestoreFile restoreFile : RestoreFiles.find(new File(inputPath), sources))
+            {
+                // deltas of snapshot diff dumps have no checksums
+                if(restoreFile.isDelta())
+                {
+                    continue;
+                }
+                final DBObject expected = getChecksums(restoreFile, checksums).get(getFileName(restoreFile));
+                if(expected != null)
+                {
+                    verified.add(expected);
+                }
+                verifications.add(new Callable<List<String>>()
+                {
+                    public List<String> call() throws Exception
+                    {
+                        return verifyFile(restoreFile, expected);
+                    }
+                });
+            }
+            if(verifications.isEmpty())
+            {
+                problems.add("No dump files found in " + inputPath);
+                return problems;
+            }
+
+            executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, verifications.size())));
+            for(Future<List<String>> future : executor.invokeAll(verifications))
+            {
+                try
+                {
+                    problems.addAll(future.get());
+                }
+                catch(ExecutionException ee)
+                {
+                    logger.warn("Failed verification", ee.getCause());
+                    problems.add(String.valueOf(ee.getCause().getMessage()));
+                }
+            }
+
+            for(Map.Entry<String, Map<String, DBObject>> dumpChecksums : checksums.entrySet())
+            {
+                for(DBObject expected : dumpChecksums.getValue().values())
+                {
+                    if(!verified.contains(expected))
+                    {
+                        problems.add(dumpChecksums.getKey() + ": file " + expected.get("file") + " is missing");
+                    }
+                }
+            }
+            logger.info("Verified {} files of {} in {} ms: {} problems", new Object[]{verifications.size(),
+                inputPath, System.currentTimeMillis() - start, problems.size()});
+            return problems;
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            problems.add("Verification of " + inputPath + " was interrupted");
+            return problems;
+        }
+        finally
+        {
+            if(executor != null)
+            {
+                executor.shutdownNow();
+            }
+            for(RestoreSource source : sources)
+            {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * @return the recorded checksums of the dump the file belongs to, by file name, read once per
+     *         dump
+     */
+    private Map<String, DBObject> getChecksums(RestoreFile restoreFile,
+                                               Map<String, Map<String, DBObject>> checksums) throws IOException
+    {
+        String checksumsName = restoreFile.getSiblingName(BackupUtils.getChecksumsName());
+        String description = restoreFile.getSource().getDescription(checksumsName);
+        Map<String, DBObject> dumpChecksums = checksums.get(description);
+        if(dumpChecksums == null)
+        {
+            dumpChecksums = new HashMap<String, DBObject>();
+            if(restoreFile.getSource().exists(checksumsName))
+            {
+                for(Object file : (List<?>) restoreFile.getSource().readJsonFile(checksumsName).get("files"))
+                {
+                    dumpChecksums.put((String) ((DBObject) file).get("file"), (DBObject) file);
+                }
+            }
+            checksums.put(description, dumpChecksums);
+        }
+        return dumpChecksums;
+    }
+
+    private List<String> verifyFile(RestoreFile restoreFile, DBObject expected)
+    {
+        List<String> problems = new ArrayList<String>();
+        FileScan scan = new FileScan();
+        try
+        {
+            scan.read(restoreFile);
+        }
+        catch(IOException e)
+        {
+            problems.add(restoreFile + ": " + e.getMessage());
+            return problems;
+        }
+        if(expected == null)
+        {
+            problems.add(restoreFile + ": no checksum recorded");
+            return problems;
+        }
+
+        long documents = ((Number) expected.get("documents")).longValue();
+        if(scan.documents != documents)
+        {
+            problems.add(restoreFile + ": " + scan.documents + " documents instead of " + documents);
+        }
+        String crc32c = (String) expected.get("crc32c");
+        if(crc32c == null)
+        {
+            problems.add(restoreFile + ": no checksum recorded");
+        }
+        else if(!crc32c.equals(Crc32c.toHex(scan.checksum.getValue())))
+        {
+            problems.add(restoreFile + ": checksum " + Crc32c.toHex(scan.checksum.getValue()) + " instead of " + crc32c);
+        }
+
+        // the oplog keeps changing, there is nothing to compare it or its segments with
+        if((compareCounts || compareHashes) && !BackupConstants.OPLOG.equals(restoreFile.getCollection())
+           && !restoreFile.getCollection().startsWith(BackupConstants.OPLOG + "."))
+        {
+            compareWithCollection(restoreFile, expected, problems);
+        }
+        logger.debug("Verified {}: {} documents, checksum {}", new Object[]{restoreFile, scan.documents,
+            Crc32c.toHex(scan.checksum.getValue())});
+        return problems;
+    }
+
+    /**
+     * Compares the file with the documents of its collection in the range it was dumped from,
+     * counting them, or reading them all to checksum them the same way they were written
+     */
+    private void compareWithCollection(RestoreFile restoreFile, DBObject expected, List<String> problems)
+    {
+        DBCollection dbCollection = mongoClient.getCollection((String) expected.get("collection"));
+        DBObject query = expected.get("query") != null ? (DBObject) expected.get("query") : new BasicDBObject();
+        boolean ranged = expected.get("min") != null || expected.get("max") != null;
+        long documents = ((Number) expected.get("documents")).longValue();
+        if(!compareHashes && !ranged)
+        {
+            long count = dbCollection.count(query);
+            if(count != documents)
+            {
+                problems.add(restoreFile + ": collection has " + count + " documents instead of " + documents);
+            }
+            return;
+        }
+
+        // count ignores the index bounds of segments, their _ids are counted instead, and documents
+        // are hashed with the projection they were dumped with
+        Crc32c checksum = new Crc32c();
+        DefaultDBEncoder encoder = new DefaultDBEncoder();
+        long count = 0;
+        DBObject fields = compareHashes ? (DBObject) expected.get("fields") : new BasicDBObject(ID_FIELD, 1);
+        DBCursor cursor = dbCollection.find(query, fields).sort(new BasicDBObject(ID_FIELD, 1));
+        BackupUtils.setIdRange(cursor, expected.get("min"), expected.get("max"));
+        try
+        {
+            while(cursor.hasNext())
+            {
+                DBObject document = cursor.next();
+                if(compareHashes)
+                {
+                    checksum.update(encoder.encode(document));
+                }
+                count++;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        if(count != documents)
+        {
+            problems.add(restoreFile + ": collection has " + count + " documents instead of " + documents);
+        }
+        else if(compareHashes && !Crc32c.toHex(checksum.getValue()).equals(expected.get("crc32c")))
+        {
+            problems.add(restoreFile + ": collection documents differ, checksum " + Crc32c.toHex(checksum.getValue())
+                         + " instead of " + expected.get("crc32c"));
+        }
+    }
+
+    private String getFileName(RestoreFile restoreFile)
+    {
+        return restoreFile.getName().substring(restoreFile.getName().lastIndexOf('/') + 1);
+    }
+
+    /**
+     * The checksum and number of documents of the BSON content of a file, found in a single pass
+     * that follows the length prefixes of the documents across the blocks read
+     */
+    private static class FileScan
+    {
+        private final Crc32c checksum = new Crc32c();
+        private long documents;
+
+        void read(RestoreFile restoreFile) throws IOException
+        {
+            InputStream inputStream = restoreFile.openInputStream();
+            try
+            {
+                byte[] buffer = new byte[READ_SIZE];
+                long offset = 0;
+                long prefixOffset = 0;
+                int prefixBytes = 0;
+                int size = 0;
+                int read;
+                while((read = inputStream.read(buffer)) != -1)
+                {
+                    checksum.update(buffer, 0, read);
+                    while(prefixOffset < offset + read)
+                    {
+                        size |= (buffer[(int) (prefixOffset - offset)] & 0xff) << (8 * prefixBytes);
+                        prefixBytes++;
+                        if(prefixBytes < 4)
+                        {
+                            prefixOffset++;
+                            continue;
+                        }
+                        if(size < MIN_DOCUMENT_SIZE || size > MAX_DOCUMENT_SIZE)
+                        {
+                            throw new IOException("Invalid document size " + size + " at offset " + (prefixOffset - 3));
+                        }
+                        documents++;
+                        prefixOffset += size - 3;
+                        prefixBytes = 0;
+                        size = 0;
+                    }
+                    offset += read;
+                }
+                if(prefixBytes > 0 || prefixOffset != offset)
+                {
+                    throw new IOException("Truncated document at the end of " + offset + " bytes");
+                }
+            }
+            finally
+            {
+                inputStream.close();
+            }
+        }
+    }
+
+    /**
+     * @param threads the number of files verified concurrently
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * @param compareCounts whether to compare the number of documents of each file with the
+     *            documents of its collection in the database
+     */
+    public void setCompareCounts(boolean compareCounts)
+    {
+        this.compareCounts = compareCounts;
+    }
+
+    /**
+     * @param compareHashes whether to compare the checksum of each file with the one of the
+     *            documents of its collection in the database, which reads all of them
+     */
+    public void setCompareHashes(boolean compareHashes)
+    {
+        this.compareHashes = compareHashes;
+    }
+}
@@ -12,11 +12,21 @@ import com.mongodb.DBObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Checksum;
 
+/**
+ * Writes dumped documents to one file per collection. Writers may keep the files open between
+ * writes, so the files of a collection are only complete once {@link #close(String)} has been
+ * called for it, and every file once {@link #close()} has.
+ */
 public abstract class DumpWriter
 {
     private String outputDirectory;
     private String database;
+    private final Map<String, Checksum> checksums = new ConcurrentHashMap<String, Checksum>();
 
     public DumpWriter(String outputDirectory, String database)
     {
@@ -29,6 +39,14 @@ public abstract class DumpWriter
         this.outputDirectory = outputDirectory;
     }
 
+    /**
+     * @return the directory where the collection files are written
+     */
+    public File getDirectory()
+    {
+        return database != null ? new File(outputDirectory, database) : new File(outputDirectory);
+    }
+
     public String getFilePath(String collection)
     {
         StringBuilder path = new StringBuilder(outputDirectory);
@@ -48,6 +66,97 @@ public abstract class DumpWriter
 
     public abstract String getExtension();
 
-    public abstract void writeObject(String collection, DBObject dbObject) throws IOException;
+    /**
+     * @return the number of bytes the document took in the collection file
+     */
+    public abstract int writeObject(String collection, DBObject dbObject) throws IOException;
+
+    /**
+     * @return the CRC32C of the BSON content written for a collection so far, before any
+     *         compression
+     */
+    public long getChecksum(String collection)
+    {
+        return getChecksumOf(collection).getValue();
+    }
+
+    /**
+     * Continues the checksum of a collection from its value at a checkpoint, before appending to
+     * the file of a resumed dump
+     */
+    public void setChecksum(String collection, long checksum)
+    {
+        checksums.put(collection, new Crc32c(checksum));
+    }
+
+    /**
+     * @return the checksum the writer updates with the content written for a collection
+     */
+    protected Checksum getChecksumOf(String collection)
+    {
+        Checksum checksum = checksums.get(collection);
+        if(checksum == null)
+        {
+            synchronized(checksums)
+            {
+                checksum = checksums.get(collection);
+                if(checksum == null)
+                {
+                    checksum = new Crc32c();
+                    checksums.put(collection, checksum);
+                }
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Makes everything written so far for a collection durable, so that a dump can later be
+     * resumed from this point
+     *
+     * @return the size of the file of the collection after its last complete document, or -1 if
+     *         this writer can't checkpoint
+     */
+    public long checkpoint(String collection) throws IOException
+    {
+        return -1;
+    }
+
+    /**
+     * Drops whatever follows the given offset in the file of a collection, such as a partially
+     * written document, before appending to it again. The file must not be open.
+     */
+    public void truncate(String collection, long offset) throws IOException
+    {
+        File file = new File(getFilePath(collection));
+        if(file.exists())
+        {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try
+            {
+                randomAccessFile.getChannel().truncate(offset);
+            }
+            finally
+            {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    /**
+     * Completes the file of a collection, once all its documents have been written
+     */
+    public void close(String collection) throws IOException
+    {
+        // NOOP
+    }
+
+    /**
+     * Completes the files of all the collections that are still open
+     */
+    public void close() throws IOException
+    {
+        // NOOP
+    }
 
 }
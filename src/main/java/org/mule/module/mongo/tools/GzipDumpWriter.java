@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+package org.mule.module.mongo.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes documents as gzip compressed BSON, compressing while the dump streams instead of in a
+ * second pass. Blocks of every collection file are compressed concurrently by a pool shared by
+ * the whole dump.
+ */
+public class GzipDumpWriter extends BsonDumpWriter
+{
+    private static final String GZIP_EXTENSION = "bson.gz";
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final int level;
+    private final int compressorThreads = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService compressors = Executors.newFixedThreadPool(compressorThreads);
+
+    public GzipDumpWriter(String outputDirectory, String database, int level)
+    {
+        super(outputDirectory, database);
+        this.level = level;
+    }
+
+    public GzipDumpWriter(String outputDirectory, int level)
+    {
+        super(outputDirectory);
+        this.level = level;
+    }
+
+    @Override
+    public String getExtension()
+    {
+        return GZIP_EXTENSION;
+    }
+
+    @Override
+    protected OutputStream wrap(BufferedChannelOutputStream fileOutputStream) throws IOException
+    {
+        return new ParallelGzipOutputStream(fileOutputStream, compressors, level, BLOCK_SIZE, compressorThreads * 2);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            super.close();
+        }
+        finally
+        {
+            compressors.shutdown();
+        }
+    }
+}
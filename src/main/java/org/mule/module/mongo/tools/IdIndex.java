@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BasicBSONEncoder;
+
+/**
+ * The sidecar _id index of a collection file: the _id and offset of one document every
+ * interval, in the _id order the collection is dumped in, so that a document is found by
+ * reading at most one interval of documents. The index is a BSON file starting with a header
+ * holding the interval, followed by one entry per indexed document.
+ */
+public class IdIndex
+{
+    public static final int DEFAULT_INTERVAL = 64;
+    private static final String ID_FIELD = "_id";
+    private static final String OFFSET_FIELD = "o";
+    private static final String INTERVAL_FIELD = "interval";
+
+    private final int interval;
+    private final List<Object> ids = new ArrayList<Object>();
+    private final List<Long> offsets = new ArrayList<Long>();
+
+    private IdIndex(int interval)
+    {
+        this.interval = interval;
+    }
+
+    /**
+     * @return the offset of the last indexed document whose _id is at or before the given one,
+     *         from where reading at most {@link #getInterval()} documents finds it, or 0 if there
+     *         is none
+     */
+    public long getOffset(Object id)
+    {
+        int low = 0;
+        int high = ids.size() - 1;
+        long offset = 0;
+        while(low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            if(BsonValueComparator.INSTANCE.compare(ids.get(middle), id) <= 0)
+            {
+                offset = offsets.get(middle);
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        return offset;
+    }
+
+    public int getInterval()
+    {
+        return interval;
+    }
+
+    /**
+     * @param inputStream the content of an index file, closed once read
+     */
+    public static IdIndex read(InputStream inputStream, String source) throws IOException
+    {
+        BsonDocumentReader reader = new BsonDocumentReader(inputStream, source);
+        try
+        {
+            DBObject header = reader.next();
+            if(header == null || !(header.get(INTERVAL_FIELD) instanceof Number))
+            {
+                throw new IOException("Invalid _id index " + source);
+            }
+            IdIndex index = new IdIndex(((Number) header.get(INTERVAL_FIELD)).intValue());
+            DBObject entry;
+            while((entry = reader.next()) != null)
+            {
+                index.ids.add(entry.get(ID_FIELD));
+                index.offsets.add(((Number) entry.get(OFFSET_FIELD)).longValue());
+            }
+            return index;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the index of a collection file while it is dumped. Its content is made durable
+     * along with the checkpoints of the dump, and dropped past the last checkpoint when the dump
+     * is resumed.
+     */
+    public static class Writer implements Closeable
+    {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final int interval;
+        private final RandomAccessFile file;
+        private final OutputStream outputStream;
+        private final BasicBSONEncoder encoder = new BasicBSONEncoder();
+        private long documents;
+
+        /**
+         * @param offset the size of the index of a resumed dump at its last checkpoint, 0 to
+         *            start a new index
+         */
+        public Writer(File indexFile, int interval, long offset) throws IOException
+        {
+            this.interval = interval;
+            this.file = new RandomAccessFile(indexFile, "rw");
+            try
+            {
+                file.getChannel().truncate(offset);
+                file.seek(offset);
+            }
+            catch(IOException e)
+            {
+                file.close();
+                throw e;
+            }
+            this.outputStream = new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), BUFFER_SIZE);
+            if(offset == 0)
+            {
+                write(new BasicDBObject(INTERVAL_FIELD, interval));
+            }
+        }
+
+        /**
+         * Indexes the next document of the collection file
+         *
+         * @param offset the offset in the collection file where the document starts
+         */
+        public void add(Object id, long offset) throws IOException
+        {
+            // the first document after a resume is always indexed, keeping intervals bounded
+            if(documents % interval == 0)
+            {
+                DBObject entry = new BasicDBObject(ID_FIELD, id);
+                entry.put(OFFSET_FIELD, offset);
+                write(entry);
+            }
+            documents++;
+        }
+
+        /**
+         * Makes the index durable
+         *
+         * @return the size of the index
+         */
+        public long checkpoint() throws IOException
+        {
+            outputStream.flush();
+            file.getFD().sync();
+            return file.getChannel().position();
+        }
+
+        public void close() throws IOException
+        {
+            try
+            {
+                outputStream.flush();
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+
+        private void write(DBObject document) throws IOException
+        {
+            outputStream.write(encoder.encode(document));
+        }
+    }
+}
@@ -20,17 +20,53 @@ public class IncrementalMongoDump extends AbstractMongoUtility
 {
     private Map<String, DB> dbs = new HashMap<String, DB>();
     private String incrementalTimestampFile;
+    private boolean continuous;
+    private long maxSegmentSize;
+    private long maxSegmentAge;
+    private long flushInterval;
+    private long maxDuration;
+    private boolean snapshotDiff;
 
     public void dump(String outputDirectory, String database) throws IOException
     {
         ExecutorService executor = Executors.newSingleThreadExecutor();
+        if(snapshotDiff)
+        {
+            SnapshotDiffDump snapshotDiffDump = new SnapshotDiffDump();
+            snapshotDiffDump.setOutputDirectory(outputDirectory);
+            snapshotDiffDump.setDB(dbs.get(database));
+            try
+            {
+                propagateException(executor.submit(snapshotDiffDump));
+            }
+            finally
+            {
+                executor.shutdown();
+            }
+            return;
+        }
         IncrementalOplogDump incrementalOplogDump = new IncrementalOplogDump();
         incrementalOplogDump.setOutputDirectory(outputDirectory);
         incrementalOplogDump.setDatabase(database);
         incrementalOplogDump.setIncrementalTimestampFile(incrementalTimestampFile);
         incrementalOplogDump.setDBs(dbs);
+        if(continuous)
+        {
+            incrementalOplogDump.setContinuous(true);
+            incrementalOplogDump.setMaxSegmentSize(maxSegmentSize);
+            incrementalOplogDump.setMaxSegmentAge(maxSegmentAge);
+            incrementalOplogDump.setFlushInterval(flushInterval);
+            incrementalOplogDump.setMaxDuration(maxDuration);
+        }
         Future<Void> future = executor.submit(incrementalOplogDump);
-        propagateException(future);
+        try
+        {
+            propagateException(future);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
     }
 
     public void addDB(DB db)
@@ -42,4 +78,25 @@ public class IncrementalMongoDump extends AbstractMongoUtility
     {
         this.incrementalTimestampFile = incrementalTimestampFile;
     }
+
+    /**
+     * Makes the dump follow the oplog, writing rolling segments
+     */
+    public void setContinuous(long maxSegmentSize, long maxSegmentAge, long flushInterval, long maxDuration)
+    {
+        this.continuous = true;
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegmentAge = maxSegmentAge;
+        this.flushInterval = flushInterval;
+        this.maxDuration = maxDuration;
+    }
+
+    /**
+     * Makes the dump diff the collections against their digests from the last run instead of
+     * reading the oplog, for servers that don't have one
+     */
+    public void setSnapshotDiff(boolean snapshotDiff)
+    {
+        this.snapshotDiff = snapshotDiff;
+    }
 }
@@ -9,6 +9,7 @@
 
 package org.mule.module.mongo.tools;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.Bytes;
 import com.mongodb.DB;
@@ -22,27 +23,39 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.Callable;
+import java.util.zip.CheckedInputStream;
 
 import org.apache.commons.lang.Validate;
 import org.bson.types.BSONTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class IncrementalOplogDump implements Callable<Void>
 {
     private static final String INCREMENTAL_LAST_TIMESTAMP = "incremental_last_timestamp.txt";
+    private static final String SEGMENT_TIMESTAMP_FORMAT = "'.'yyyy-MM-dd-HH-mm-ss-SSS";
+    private static final long DEAD_CURSOR_WAIT = 1000;
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalOplogDump.class);
 
     private Map<String, DB> dbs = new HashMap<String, DB>();
     private String incrementalTimestampFile;
     private String outputDirectory;
     private String database;
+    private boolean continuous;
+    private long maxSegmentSize = 64 * 1024 * 1024;
+    private long maxSegmentAge = 60 * 60 * 1000;
+    private long flushInterval = 1000;
+    private long maxDuration;
 
     public Void call() throws Exception
     {
@@ -60,6 +73,21 @@ public class IncrementalOplogDump implements Callable<Void>
         BSONTimestamp lastTimestamp = getLastTimestamp(incrementalFilePath);
 
         DBCollection oplogCollection = new OplogCollection(dbs.get(BackupConstants.ADMIN_DB), dbs.get(BackupConstants.LOCAL_DB)).getOplogCollection();
+        if(continuous)
+        {
+            DumpWriter dumpWriter = new BsonDumpWriter(outputDirectory);
+            recoverLastSegment(dumpWriter, lastTimestamp);
+            try
+            {
+                tail(oplogCollection, dumpWriter, incrementalFilePath, lastTimestamp);
+            }
+            finally
+            {
+                dumpWriter.close();
+            }
+            return;
+        }
+
         DBCursor oplogCursor;
         if(lastTimestamp != null)
         {
@@ -77,8 +105,19 @@ public class IncrementalOplogDump implements Callable<Void>
         }
 
         DumpWriter dumpWriter = new BsonDumpWriter(outputDirectory);
-        String oplogCollectionTimestamp = BackupConstants.OPLOG + appendTimestamp();
+        String oplogCollectionTimestamp = BackupConstants.OPLOG + appendTimestamp(MongoDump.TIMESTAMP_FORMAT);
 
+        File indexFile = BackupUtils.getOplogIndexFile(dumpWriter.getDirectory(), oplogCollectionTimestamp);
+        OplogSegmentIndex index = OplogSegmentIndex.open(indexFile, OplogSegmentIndex.DEFAULT_INTERVAL);
+        long offset = new File(dumpWriter.getFilePath(oplogCollectionTimestamp)).length();
+        long documents = 0;
+        // a run within the same minute appends to the file, its checksum goes on from the recorded one
+        DBObject recorded = getRecordedChecksum(dumpWriter, oplogCollectionTimestamp);
+        if(offset > 0 && recorded != null)
+        {
+            dumpWriter.setChecksum(oplogCollectionTimestamp, Long.parseLong((String) recorded.get("crc32c"), 16));
+            documents = ((Number) recorded.get("documents")).longValue();
+        }
         try
         {
             while(oplogCursor.hasNext())
@@ -86,15 +125,308 @@ public class IncrementalOplogDump implements Callable<Void>
                 DBObject oplogEntry = oplogCursor.next();
                 lastTimestamp = (BSONTimestamp)oplogEntry.get("ts");
 
-                dumpWriter.writeObject(oplogCollectionTimestamp, oplogEntry);
+                index.add(lastTimestamp, offset);
+                offset += dumpWriter.writeObject(oplogCollectionTimestamp, oplogEntry);
+                documents++;
             }
         }
         finally
         {
+            dumpWriter.close();
+            if(!index.isEmpty())
+            {
+                index.write(indexFile);
+                recordChecksum(dumpWriter, oplogCollectionTimestamp, documents,
+                    dumpWriter.getChecksum(oplogCollectionTimestamp));
+            }
             writeLastTimestamp(incrementalFilePath, lastTimestamp);
         }
     }
 
+    /**
+     * Follows the oplog with a tailable cursor until interrupted or for the configured duration,
+     * writing entries into segments rotated by size and age. Written entries are flushed, synced
+     * and their last timestamp checkpointed after each batch, that is once the cursor is idle or
+     * every flush interval.
+     */
+    private void tail(DBCollection oplogCollection,
+                      DumpWriter dumpWriter,
+                      String incrementalFilePath,
+                      BSONTimestamp lastTimestamp) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        long lastFlush = start;
+        long segmentStart = 0;
+        long segmentBytes = 0;
+        long segmentDocuments = 0;
+        String segment = null;
+        OplogSegmentIndex index = null;
+        BSONTimestamp flushedTimestamp = lastTimestamp;
+        DBCursor oplogCursor = null;
+        try
+        {
+            while(!Thread.currentThread().isInterrupted() && (maxDuration <= 0 || System.currentTimeMillis() - start < maxDuration))
+            {
+                if(oplogCursor == null)
+                {
+                    oplogCursor = openTailableCursor(oplogCollection, lastTimestamp);
+                }
+
+                DBObject oplogEntry = oplogCursor.tryNext();
+                long now = System.currentTimeMillis();
+                if(oplogEntry != null)
+                {
+                    if(segment == null)
+                    {
+                        segment = BackupConstants.OPLOG + appendTimestamp(SEGMENT_TIMESTAMP_FORMAT);
+                        index = new OplogSegmentIndex(OplogSegmentIndex.DEFAULT_INTERVAL);
+                        segmentStart = now;
+                        segmentBytes = 0;
+                        segmentDocuments = 0;
+                    }
+                    lastTimestamp = (BSONTimestamp) oplogEntry.get(BackupConstants.TIMESTAMP_FIELD);
+                    index.add(lastTimestamp, segmentBytes);
+                    segmentBytes += dumpWriter.writeObject(segment, oplogEntry);
+                    segmentDocuments++;
+                }
+                else if(oplogCursor.getCursorId() == 0)
+                {
+                    // the server closed the cursor, e.g. as nothing matched yet
+                    oplogCursor.close();
+                    oplogCursor = null;
+                    Thread.sleep(DEAD_CURSOR_WAIT);
+                }
+
+                if(lastTimestamp != flushedTimestamp && (oplogEntry == null || now - lastFlush >= flushInterval))
+                {
+                    flush(dumpWriter, segment, index, incrementalFilePath, lastTimestamp);
+                    flushedTimestamp = lastTimestamp;
+                    lastFlush = now;
+                }
+                if(segment != null && (segmentBytes >= maxSegmentSize || now - segmentStart >= maxSegmentAge))
+                {
+                    if(lastTimestamp != flushedTimestamp)
+                    {
+                        flush(dumpWriter, segment, index, incrementalFilePath, lastTimestamp);
+                        flushedTimestamp = lastTimestamp;
+                        lastFlush = now;
+                    }
+                    dumpWriter.close(segment);
+                    recordChecksum(dumpWriter, segment, segmentDocuments, dumpWriter.getChecksum(segment));
+                    logger.info("Closed oplog segment {} of {} bytes", segment, segmentBytes);
+                    segment = null;
+                    index = null;
+                }
+            }
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            if(oplogCursor != null)
+            {
+                oplogCursor.close();
+            }
+            if(lastTimestamp != flushedTimestamp)
+            {
+                flush(dumpWriter, segment, index, incrementalFilePath, lastTimestamp);
+            }
+            // the next run starts a new segment, this one is complete
+            if(segment != null)
+            {
+                dumpWriter.close(segment);
+                recordChecksum(dumpWriter, segment, segmentDocuments, dumpWriter.getChecksum(segment));
+            }
+        }
+    }
+
+    /**
+     * Drops from the last segment of a previous continuous dump what was written after its last
+     * checkpoint, which a crash may have left partially written, and rebuilds its index to match.
+     * The entries dropped are read again from the oplog, after the checkpointed timestamp. Only
+     * the last segment needs it, the previous ones were completed when they were rotated. The
+     * checksum of what is kept is recorded, as the crash may also have prevented that.
+     */
+    private void recoverLastSegment(DumpWriter dumpWriter, BSONTimestamp lastTimestamp) throws IOException
+    {
+        File[] files = dumpWriter.getDirectory().listFiles();
+        int segmentNameLength = BackupConstants.OPLOG.length() + appendTimestamp(SEGMENT_TIMESTAMP_FORMAT).length();
+        String segment = null;
+        for(File file : files != null ? files : new File[0])
+        {
+            String name = file.getName();
+            if(name.startsWith(BackupConstants.OPLOG + ".") && BackupUtils.isBsonFile(name)
+               && BackupUtils.removeExtension(name).length() == segmentNameLength
+               && (segment == null || BackupUtils.removeExtension(name).compareTo(segment) > 0))
+            {
+                segment = BackupUtils.removeExtension(name);
+            }
+        }
+        if(segment == null)
+        {
+            return;
+        }
+
+        File segmentFile = new File(dumpWriter.getFilePath(segment));
+        OplogSegmentIndex index = new OplogSegmentIndex(OplogSegmentIndex.DEFAULT_INTERVAL);
+        long size = 0;
+        long documents = 0;
+        BsonReader reader = new BsonDocumentReader(new FileInputStream(segmentFile), segmentFile.getPath(), 0, true);
+        try
+        {
+            DBObject oplogEntry;
+            while(lastTimestamp != null && (oplogEntry = reader.next()) != null)
+            {
+                BSONTimestamp timestamp = (BSONTimestamp) oplogEntry.get(BackupConstants.TIMESTAMP_FIELD);
+                if(BackupUtils.compareTimestamps(timestamp, lastTimestamp) > 0)
+                {
+                    break;
+                }
+                index.add(timestamp, size);
+                size = reader.getOffset();
+                documents++;
+            }
+        }
+        catch(IOException e)
+        {
+            logger.debug("Oplog segment {} ends with a partial entry: {}", segment, e.getMessage());
+        }
+        catch(RuntimeException e)
+        {
+            logger.debug("Oplog segment {} ends with a partial entry: {}", segment, e.getMessage());
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        if(size != segmentFile.length())
+        {
+            logger.warn("Dropping {} bytes written to oplog segment {} after its last checkpoint",
+                segmentFile.length() - size, segment);
+            File indexFile = BackupUtils.getOplogIndexFile(dumpWriter.getDirectory(), segment);
+            if(index.isEmpty())
+            {
+                if(!segmentFile.delete() || indexFile.exists() && !indexFile.delete())
+                {
+                    throw new IOException("Couldn't delete the incomplete oplog segment " + segmentFile);
+                }
+                return;
+            }
+            dumpWriter.truncate(segment, size);
+            index.write(indexFile);
+        }
+        recordChecksum(dumpWriter, segment, documents, getChecksum(segmentFile));
+    }
+
+    private long getChecksum(File file) throws IOException
+    {
+        Crc32c checksum = new Crc32c();
+        CheckedInputStream inputStream = new CheckedInputStream(new FileInputStream(file), checksum);
+        try
+        {
+            byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+            while(inputStream.read(buffer) != -1)
+            {
+                // the stream updates the checksum
+            }
+        }
+        finally
+        {
+            inputStream.close();
+        }
+        return checksum.getValue();
+    }
+
+    private List<?> getRecordedChecksums(DumpWriter dumpWriter) throws IOException
+    {
+        File checksumsFile = BackupUtils.getChecksumsFile(dumpWriter.getDirectory());
+        return checksumsFile.exists() ? (List<?>) BackupUtils.readJsonFile(checksumsFile).get("files") : new BasicDBList();
+    }
+
+    /**
+     * @return the description of the file of a segment in the checksums of the output directory,
+     *         or null if none was recorded
+     */
+    private DBObject getRecordedChecksum(DumpWriter dumpWriter, String segment) throws IOException
+    {
+        String fileName = new File(dumpWriter.getFilePath(segment)).getName();
+        for(Object file : getRecordedChecksums(dumpWriter))
+        {
+            if(fileName.equals(((DBObject) file).get("file")))
+            {
+                return (DBObject) file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a closed segment to the checksums of the output directory, replacing any previous
+     * description of its file, so that the dump can be verified like a full one
+     */
+    private void recordChecksum(DumpWriter dumpWriter, String segment, long documents, long checksum)
+        throws IOException
+    {
+        String fileName = new File(dumpWriter.getFilePath(segment)).getName();
+        BasicDBList files = new BasicDBList();
+        for(Object file : getRecordedChecksums(dumpWriter))
+        {
+            if(!fileName.equals(((DBObject) file).get("file")))
+            {
+                files.add(file);
+            }
+        }
+        DBObject description = new BasicDBObject("file", fileName);
+        description.put("collection", BackupConstants.OPLOG);
+        description.put("documents", documents);
+        description.put("crc32c", Crc32c.toHex(checksum));
+        files.add(description);
+        BackupUtils.writeJsonFile(BackupUtils.getChecksumsFile(dumpWriter.getDirectory()),
+            new BasicDBObject("files", files));
+    }
+
+    private DBCursor openTailableCursor(DBCollection oplogCollection, BSONTimestamp lastTimestamp)
+    {
+        DBObject query = new BasicDBObject();
+        if(lastTimestamp != null)
+        {
+            query.put(BackupConstants.TIMESTAMP_FIELD, new BasicDBObject("$gt", lastTimestamp));
+        }
+        // Filter only oplogs for given database
+        query.put(BackupConstants.NAMESPACE_FIELD, BackupUtils.getNamespacePattern(database));
+
+        DBCursor oplogCursor = oplogCollection.find(query);
+        oplogCursor.addOption(Bytes.QUERYOPTION_TAILABLE);
+        oplogCursor.addOption(Bytes.QUERYOPTION_AWAITDATA);
+        oplogCursor.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+        if(lastTimestamp != null)
+        {
+            oplogCursor.addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+        }
+        return oplogCursor;
+    }
+
+    /**
+     * Makes the written entries durable, along with the index of their segment, before recording
+     * the timestamp of the last one, so the checkpoint never gets ahead of the data
+     */
+    private void flush(DumpWriter dumpWriter,
+                       String segment,
+                       OplogSegmentIndex index,
+                       String incrementalFilePath,
+                       BSONTimestamp lastTimestamp) throws IOException
+    {
+        if(segment != null)
+        {
+            dumpWriter.checkpoint(segment);
+            index.write(BackupUtils.getOplogIndexFile(dumpWriter.getDirectory(), segment));
+        }
+        writeLastTimestamp(incrementalFilePath, lastTimestamp);
+    }
+
     private BSONTimestamp getLastTimestamp(String incrementalFilePath) throws IOException
     {
         File incrementalFile = new File(incrementalFilePath);
@@ -128,12 +460,17 @@ public class IncrementalOplogDump implements Callable<Void>
     {
         if(lastTimestamp != null)
         {
+            // written aside and renamed, so that a crash never leaves a partial timestamp
+            File incrementalFile = new File(incrementalFilePath);
+            File tempFile = new File(incrementalFilePath + ".tmp");
+            FileOutputStream outputStream = new FileOutputStream(tempFile);
             Writer writer = null;
             try
             {
-                OutputStream outputStream = new FileOutputStream(new File(incrementalFilePath));
                 writer = new OutputStreamWriter(outputStream, "UTF-8");
                 writer.write(lastTimestamp.getTime() + "|" + lastTimestamp.getInc());
+                writer.flush();
+                outputStream.getFD().sync();
             }
             finally
             {
@@ -141,14 +478,18 @@ public class IncrementalOplogDump implements Callable<Void>
                 {
                     writer.close();
                 }
+                else
+                {
+                    outputStream.close();
+                }
             }
-
+            BackupUtils.replaceFile(tempFile, incrementalFile);
         }
     }
 
-    private String appendTimestamp()
+    private String appendTimestamp(String format)
     {
-        SimpleDateFormat dateFormat = new SimpleDateFormat(MongoDump.TIMESTAMP_FORMAT);
+        SimpleDateFormat dateFormat = new SimpleDateFormat(format);
         dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
         return dateFormat.format(new Date());
     }
@@ -172,4 +513,44 @@ public class IncrementalOplogDump implements Callable<Void>
     {
         this.database = database;
     }
+
+    /**
+     * @param continuous whether to keep following the oplog instead of dumping what it holds
+     */
+    public void setContinuous(boolean continuous)
+    {
+        this.continuous = continuous;
+    }
+
+    /**
+     * @param maxSegmentSize the size in bytes from which a continuous dump starts a new segment
+     */
+    public void setMaxSegmentSize(long maxSegmentSize)
+    {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * @param maxSegmentAge the milliseconds after which a continuous dump starts a new segment
+     */
+    public void setMaxSegmentAge(long maxSegmentAge)
+    {
+        this.maxSegmentAge = maxSegmentAge;
+    }
+
+    /**
+     * @param flushInterval the maximum milliseconds between checkpoints of a busy continuous dump
+     */
+    public void setFlushInterval(long flushInterval)
+    {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * @param maxDuration the milliseconds a continuous dump runs for, 0 to run until interrupted
+     */
+    public void setMaxDuration(long maxDuration)
+    {
+        this.maxDuration = maxDuration;
+    }
 }
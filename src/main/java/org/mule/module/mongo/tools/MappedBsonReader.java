@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBObject;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a BSON file through a memory mapped window, moved along the file as documents are read,
+ * so files larger than what a single mapping can hold are read too. Document boundaries are
+ * found from their length prefixes and documents are handed out as {@link LazyDBObject}s, whose
+ * fields are only decoded when accessed and whose bytes can be sent to the server as they are
+ * with a {@link com.mongodb.LazyDBEncoder}. The bytes of each document are copied out of the
+ * window, so that documents stay valid once it moves.
+ */
+public class MappedBsonReader implements BsonReader
+{
+    private static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+    private static final int MIN_DOCUMENT_SIZE = 5;
+    private static final int MAX_DOCUMENT_SIZE = 64 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private final String source;
+    private final LazyDBCallback callback = new LazyDBCallback((DBCollection) null);
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    /**
+     * @param offset where to start reading, which must be the start of a document
+     */
+    public MappedBsonReader(File file, long offset) throws IOException
+    {
+        this(file, offset, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param offset where to start reading, which must be the start of a document
+     * @param windowSize the number of bytes mapped at once. The window is widened for documents
+     *            larger than it.
+     */
+    public MappedBsonReader(File file, long offset, long windowSize) throws IOException
+    {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        this.source = file.getPath();
+        this.position = offset;
+    }
+
+    public DBObject next() throws IOException
+    {
+        if(position >= size)
+        {
+            return null;
+        }
+        if(size - position < 4)
+        {
+            throw truncated();
+        }
+
+        map(4);
+        int length = window.getInt((int) (position - windowStart));
+        if(length < MIN_DOCUMENT_SIZE || length > MAX_DOCUMENT_SIZE)
+        {
+            throw new IOException("Invalid document size " + length + " at offset " + position + " of " + source);
+        }
+        if(size - position < length)
+        {
+            throw truncated();
+        }
+
+        map(length);
+        byte[] document = new byte[length];
+        window.position((int) (position - windowStart));
+        window.get(document);
+        position += length;
+        return new LazyDBObject(document, callback);
+    }
+
+    public long getOffset()
+    {
+        return position;
+    }
+
+    public void close() throws IOException
+    {
+        window = null;
+        file.close();
+    }
+
+    /**
+     * Moves the window to the current position if the given number of bytes from there are not
+     * mapped
+     */
+    private void map(int length) throws IOException
+    {
+        if(window == null || position < windowStart || position + length > windowStart + window.limit())
+        {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                Math.min(Math.max(windowSize, length), size - windowStart));
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private EOFException truncated()
+    {
+        return new EOFException("Truncated document at offset " + position + " of " + source);
+    }
+}
@@ -11,38 +11,77 @@ package org.mule.module.mongo.tools;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.Validate;
 import org.bson.types.BSONTimestamp;
+import org.mule.module.mongo.api.DumpCompression;
 import org.mule.module.mongo.api.MongoClient;
+import org.mule.module.mongo.api.ReadPreference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.Bytes;
+import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 
 public class MongoDump extends AbstractMongoUtility
 {
     public static final String TIMESTAMP_FORMAT = "'.'yyyy-MM-dd-HH-mm";
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 30000;
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoDump.class);
+    private static final String STATS_FINGERPRINT_PREFIX = "stats:";
+    // collection names can't hold a $
+    private static final String OPTIME_FINGERPRINT = "$optime";
 
     private final MongoClient mongoClient;
     private boolean zip;
+    private DumpCompression compression = DumpCompression.NONE;
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
     private boolean oplog;
+    private int segments = 1;
+    private ReadPreference readPreference;
+    private long maxDocumentsPerSecond;
+    private long maxBytesPerSecond;
+    private long maxReplicationLag;
+    private long maxLatency;
+    private boolean resume;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private int idIndexInterval = IdIndex.DEFAULT_INTERVAL;
+    private boolean chunked;
+    private boolean hashCollections;
+    private NamespaceFilter collectionFilter = new NamespaceFilter(null, null);
+    private Map<String, DBObject> queries = Collections.emptyMap();
+    private Map<String, DBObject> projections = Collections.emptyMap();
     private final Map<String, DB> dbs = new HashMap<String, DB>();
     private DBCollection oplogCollection;
     private BSONTimestamp oplogStart;
+    private ZipOutputStream zipOutputStream;
 
     public MongoDump(final MongoClient mongoClient)
     {
@@ -55,82 +94,706 @@ public class MongoDump extends AbstractMongoUtility
         Validate.notNull(outputDirectory);
         Validate.notNull(outputName);
         Validate.notNull(database);
+        Validate.isTrue(!(zip && chunked), "Chunked dumps can't be zipped");
+        // the oplog start is taken from the primary, a lagging secondary would miss the writes in between
+        Validate.isTrue(!oplog || readPreference == null || readPreference == ReadPreference.PRIMARY,
+            "Dumps with the oplog read collections from the primary");
         
-        String opName = outputName;
-        opName += appendTimestamp();
-
-        initOplog(database);
+        String opName = resume ? getLatestDump(outputDirectory, outputName, null) : null;
+        if (opName != null && BackupUtils.getCompletionFile(new File(outputDirectory, opName)).exists())
+        {
+            logger.info("Dump {} is complete, starting a new one", opName);
+            opName = null;
+        }
+        if (opName == null)
+        {
+            opName = outputName + appendTimestamp();
+        }
+        else
+        {
+            logger.info("Resuming dump {}", opName);
+        }
 
-        final Collection<String> collections = mongoClient.listCollections();
+        final Collection<String> collections = filterCollections(mongoClient.listCollections());
         if (collections != null)
         {
             final ExecutorService executor = Executors.newFixedThreadPool(threads);
-            final DumpWriter dumpWriter = new BsonDumpWriter(outputDirectory, opName);
-            for (final String collectionName : collections)
+            final DumpWriter dumpWriter = createDumpWriter(outputDirectory, opName);
+            final DumpThrottle throttle = createThrottle();
+            final String dbDumpPath = outputDirectory + File.separator + opName;
+            // gzipped files are complete once their collection is, so they are stored in the zip
+            // as they finish instead of zipping the whole dump afterwards. The zip can't be
+            // resumed, so resumed dumps are still zipped once written.
+            zipOutputStream = zip && compression == DumpCompression.GZIP && !resume
+                ? ZipUtils.createZip(dbDumpPath, compressionLevel) : null;
+            try
             {
-                final DBCollection dbCollection = mongoClient.getCollection(collectionName);
-                final MongoDumpCollection dumpCollection = new MongoDumpCollection(dbCollection);
-                dumpCollection.setDumpWriter(dumpWriter);
+                initOplog(database, dumpWriter);
 
-                final Future<Void> future = executor.submit(dumpCollection);
-                propagateException(future);
-            }
+                Collection<String> changedCollections = collections;
+                Map<String, String> fingerprints = Collections.emptyMap();
+                final BasicDBList checksums = new BasicDBList();
+                if (chunked)
+                {
+                    fingerprints = getFingerprints(collections);
+                    changedCollections = getChangedCollections(collections, fingerprints, dumpWriter.getDirectory(),
+                        getLatestDump(outputDirectory, outputName, opName), checksums);
+                }
 
-            executor.shutdown();
-            try
-            {
-                if (!executor.awaitTermination(60, TimeUnit.SECONDS))
+                final Map<String, List<MongoDumpCollection>> segmentedCollections = new HashMap<String, List<MongoDumpCollection>>();
+                final List<MongoDumpCollection> dumpCollections = getDumpCollections(changedCollections, dumpWriter,
+                    throttle, segmentedCollections);
+                writeMetadata(dumpWriter, collections);
+                // the manifests are written first, so that a resumed dump splits collections the same way
+                writeManifests(dumpWriter, segmentedCollections);
+                dumpCollections(executor, dumpWriter, dumpCollections);
+                writeManifests(dumpWriter, segmentedCollections);
+                for (final MongoDumpCollection dumpCollection : dumpCollections)
                 {
-                    executor.shutdownNow();
+                    checksums.add(dumpCollection.getChecksumDescription());
+                }
+                if (!fingerprints.isEmpty())
+                {
+                    // only once every collection is dumped, for the next dump to rely on them
+                    BackupUtils.writeJsonFile(BackupUtils.getFingerprintsFile(dumpWriter.getDirectory()),
+                        new BasicDBObject(fingerprints));
                 }
 
                 if (oplog)
                 {
-                    final ExecutorService singleExecutor = Executors.newSingleThreadExecutor();
                     final MongoDumpCollection dumpCollection = new MongoDumpCollection(oplogCollection);
                     dumpCollection.setName(BackupConstants.OPLOG);
+                    // read in ts order, which the oplog index and the replay rely on
+                    dumpCollection.setNaturalOrder(true);
                     dumpCollection.addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
-                    dumpCollection.addOption(Bytes.QUERYOPTION_SLAVEOK);
+                    // the same member the collections and the oplog start were read from
+                    dumpCollection.setReadPreference(com.mongodb.ReadPreference.primary());
                     final DBObject query = new BasicDBObject();
                     query.put(BackupConstants.TIMESTAMP_FIELD, new BasicDBObject("$gt", oplogStart));
                     // Filter only oplogs for given database
-                    query.put(BackupConstants.NAMESPACE_FIELD, BackupUtils.getNamespacePattern(database));
+                    query.put(BackupConstants.NAMESPACE_FIELD, getOplogNamespaces(database, collections));
                     dumpCollection.setQuery(query);
                     dumpCollection.setDumpWriter(dumpWriter);
-                    final Future<Void> future = singleExecutor.submit(dumpCollection);
-                    propagateException(future);
+                    dumpCollection.setThrottle(throttle);
+                    dumpCollection.setOplogIndex(new OplogSegmentIndex(OplogSegmentIndex.DEFAULT_INTERVAL));
+                    // oplog entries have no _id to resume after, they are dumped again
+                    dumpWriter.truncate(BackupConstants.OPLOG, 0);
+                    dumpCollections(executor, dumpWriter, Collections.singletonList(dumpCollection));
+                    checksums.add(dumpCollection.getChecksumDescription());
                 }
+                dumpWriter.close();
+                BackupUtils.writeJsonFile(BackupUtils.getChecksumsFile(dumpWriter.getDirectory()),
+                    new BasicDBObject("files", checksums));
+                // only dumps without it are resumed
+                BackupUtils.writeJsonFile(BackupUtils.getCompletionFile(dumpWriter.getDirectory()),
+                    new BasicDBObject("completed", new Date()));
 
-                if (zip)
+                if (zipOutputStream != null)
+                {
+                    // what remains are the metadata, indexes and checksums of the dump
+                    ZipUtils.addDirectory(zipOutputStream, dumpWriter.getDirectory());
+                    zipOutputStream.close();
+                    zipOutputStream = null;
+                    FileUtils.deleteDirectory(new File(dbDumpPath));
+                }
+                else if (zip)
                 {
-                    final String dbDumpPath = outputDirectory + File.separator + opName;
-                    ZipUtils.zipDirectory(dbDumpPath);
+                    // gzipped files were already compressed in parallel, they are only stored
+                    ZipUtils.zipDirectory(dbDumpPath, compression == DumpCompression.GZIP ? 0 : compressionLevel);
                     FileUtils.deleteDirectory(new File(dbDumpPath));
                 }
             }
             catch (final InterruptedException ie)
             {
-                executor.shutdownNow();
                 Thread.currentThread().interrupt();
             }
+            finally
+            {
+                executor.shutdownNow();
+                dumpWriter.close();
+                if (zipOutputStream != null)
+                {
+                    zipOutputStream.close();
+                    zipOutputStream = null;
+                }
+            }
+        }
+    }
+
+    private DumpWriter createDumpWriter(final String outputDirectory, final String opName)
+    {
+        if (chunked)
+        {
+            final ChunkStore chunkStore = new ChunkStore(BackupUtils.getChunkStoreDirectory(outputDirectory),
+                compression == DumpCompression.GZIP ? compressionLevel : 0);
+            return new ChunkedDumpWriter(outputDirectory, opName, chunkStore);
+        }
+        if (compression == DumpCompression.GZIP)
+        {
+            return new GzipDumpWriter(outputDirectory, opName, compressionLevel);
+        }
+        return new BsonDumpWriter(outputDirectory, opName);
+    }
+
+    /**
+     * @return the collections selected by the collection filter
+     */
+    private Collection<String> filterCollections(final Collection<String> collections)
+    {
+        if (collections == null || collectionFilter.isEmpty())
+        {
+            return collections;
+        }
+        final List<String> filteredCollections = new ArrayList<String>();
+        for (final String collection : collections)
+        {
+            if (collectionFilter.accepts(collection))
+            {
+                filteredCollections.add(collection);
+            }
+            else
+            {
+                logger.debug("Skipping collection {}", collection);
+            }
+        }
+        return filteredCollections;
+    }
+
+    /**
+     * @return the condition on the namespace of the oplog entries to dump: the ones of the
+     *         database or, when collections are filtered, the ones of the dumped collections and
+     *         the commands and index builds of the database
+     */
+    private Object getOplogNamespaces(final String database, final Collection<String> collections)
+    {
+        if (collectionFilter.isEmpty())
+        {
+            return BackupUtils.getNamespacePattern(database);
+        }
+        final BasicDBList namespaces = new BasicDBList();
+        for (final String collection : collections)
+        {
+            namespaces.add(database + "." + collection);
+        }
+        namespaces.add(database + "." + BackupConstants.COMMAND_COLLECTION);
+        namespaces.add(database + "." + BackupConstants.INDEXES_COLLECTION);
+        return new BasicDBObject("$in", namespaces);
+    }
+
+    private DumpThrottle createThrottle()
+    {
+        final DumpThrottle throttle = new DumpThrottle(dbs.get(BackupConstants.ADMIN_DB), maxDocumentsPerSecond,
+            maxBytesPerSecond);
+        throttle.setMaxReplicationLag(maxReplicationLag);
+        throttle.setMaxLatency(maxLatency);
+        return throttle;
+    }
+
+    private List<MongoDumpCollection> getDumpCollections(final Collection<String> collections,
+                                                         final DumpWriter dumpWriter,
+                                                         final DumpThrottle throttle,
+                                                         final Map<String, List<MongoDumpCollection>> segmentedCollections)
+        throws IOException
+    {
+        final List<MongoDumpCollection> dumpCollections = new ArrayList<MongoDumpCollection>(collections.size());
+        for (final String collectionName : collections)
+        {
+            final DBCollection dbCollection = mongoClient.getCollection(collectionName);
+            final MongoDumpCollection dumpCollection = new MongoDumpCollection(dbCollection);
+            dumpCollection.setDumpWriter(dumpWriter);
+            dumpCollection.setReadPreference(getReadPreference().toMongoReadPreference());
+            dumpCollection.setThrottle(throttle);
+            // collections moved into the zip are gone from the directory, they can't be resumed
+            dumpCollection.setCheckpointInterval(zipOutputStream != null ? 0 : checkpointInterval);
+            dumpCollection.setIdIndexInterval(idIndexInterval);
+            dumpCollection.setResume(resume);
+            dumpCollection.setQuery(queries.get(collectionName));
+            dumpCollection.setFields(projections.get(collectionName));
+
+            final File manifestFile = BackupUtils.getManifestFile(dumpWriter.getDirectory(), collectionName);
+            final List<MongoDumpCollection> dumpSegments;
+            if (resume && manifestFile.exists())
+            {
+                dumpSegments = dumpCollection.split((List<?>) BackupUtils.readJsonFile(manifestFile).get("segments"));
+            }
+            else if (segments > 1 && !BackupUtils.isSystemCollection(collectionName))
+            {
+                dumpSegments = dumpCollection.split(segments);
+            }
+            else
+            {
+                dumpSegments = Collections.singletonList(dumpCollection);
+            }
+            if (dumpSegments.size() > 1)
+            {
+                segmentedCollections.put(collectionName, dumpSegments);
+            }
+            dumpCollections.addAll(dumpSegments);
+        }
+
+        // Largest collections first, so the longest dumps are not the last ones to start
+        Collections.sort(dumpCollections, new Comparator<MongoDumpCollection>()
+        {
+            public int compare(final MongoDumpCollection first, final MongoDumpCollection second)
+            {
+                final long firstSize = first.getEstimatedSize();
+                final long secondSize = second.getEstimatedSize();
+                return firstSize > secondSize ? -1 : (firstSize == secondSize ? 0 : 1);
+            }
+        });
+        return dumpCollections;
+    }
+
+    /**
+     * Dumps the given collections concurrently, closing the file of each collection as soon as it
+     * is done, and moving it into the zip when the dump is zipped as it goes. A failed collection
+     * doesn't stop the others: failures are reported once every collection has finished.
+     */
+    private void dumpCollections(final ExecutorService executor,
+                                 final DumpWriter dumpWriter,
+                                 final List<MongoDumpCollection> dumpCollections)
+        throws IOException, InterruptedException
+    {
+        final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+        final Map<Future<Void>, MongoDumpCollection> pending = new HashMap<Future<Void>, MongoDumpCollection>();
+        for (final MongoDumpCollection dumpCollection : dumpCollections)
+        {
+            pending.put(completionService.submit(dumpCollection), dumpCollection);
+        }
+
+        final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+        int completed = 0;
+        while (!pending.isEmpty())
+        {
+            final Future<Void> future = completionService.take();
+            final MongoDumpCollection dumpCollection = pending.remove(future);
+            completed++;
+            try
+            {
+                future.get();
+                logger.info("Finished dump of collection {} ({} of {})", new Object[]{dumpCollection.getName(),
+                    completed, dumpCollections.size()});
+            }
+            catch (final ExecutionException e)
+            {
+                logger.error("Failed dump of collection " + dumpCollection.getName(), e.getCause());
+                failures.put(dumpCollection.getName(), e.getCause());
+            }
+            finally
+            {
+                dumpWriter.close(dumpCollection.getName());
+            }
+            if (zipOutputStream != null && !failures.containsKey(dumpCollection.getName()))
+            {
+                moveToZip(dumpWriter, dumpCollection.getName());
+            }
+        }
+
+        if (!failures.isEmpty())
+        {
+            throw new IOException("Failed to dump collections " + failures.keySet(),
+                failures.values().iterator().next());
+        }
+    }
+
+    /**
+     * Moves the complete file of a collection into the zip, as a stored entry since it is
+     * already gzipped
+     */
+    private void moveToZip(final DumpWriter dumpWriter, final String collection) throws IOException
+    {
+        final File file = new File(dumpWriter.getFilePath(collection));
+        if (file.exists())
+        {
+            ZipUtils.addStoredFile(zipOutputStream, file, file.getName());
+            if (!file.delete())
+            {
+                throw new IOException("Couldn't delete zipped file " + file);
+            }
+        }
+    }
+
+    /**
+     * Writes, next to the segment files of each split collection, the manifest listing its
+     * segments and their _id ranges
+     */
+    private void writeManifests(final DumpWriter dumpWriter,
+                                final Map<String, List<MongoDumpCollection>> segmentedCollections)
+        throws IOException
+    {
+        if (!segmentedCollections.isEmpty())
+        {
+            dumpWriter.getDirectory().mkdirs();
+        }
+        for (final Map.Entry<String, List<MongoDumpCollection>> segmentedCollection : segmentedCollections.entrySet())
+        {
+            final BasicDBList segmentDescriptions = new BasicDBList();
+            for (final MongoDumpCollection segment : segmentedCollection.getValue())
+            {
+                segmentDescriptions.add(segment.getSegmentDescription());
+            }
+            final DBObject manifest = new BasicDBObject("collection", segmentedCollection.getKey());
+            manifest.put("segments", segmentDescriptions);
+            BackupUtils.writeJsonFile(
+                BackupUtils.getManifestFile(dumpWriter.getDirectory(), segmentedCollection.getKey()), manifest);
+        }
+    }
+
+    /**
+     * Writes, for each collection, its options and the specs of its indexes, for restore to
+     * recreate them after loading the data
+     */
+    private void writeMetadata(final DumpWriter dumpWriter, final Collection<String> collections) throws IOException
+    {
+        dumpWriter.getDirectory().mkdirs();
+        for (final String collectionName : collections)
+        {
+            if (BackupUtils.isSystemCollection(collectionName))
+            {
+                continue;
+            }
+            final DBCollection dbCollection = mongoClient.getCollection(collectionName);
+            final BasicDBList indexes = new BasicDBList();
+            indexes.addAll(BackupUtils.getIndexes(dbCollection));
+
+            final DBObject metadata = new BasicDBObject("collection", collectionName);
+            metadata.put("options", BackupUtils.getCollectionOptions(dbCollection));
+            metadata.put("indexes", indexes);
+            BackupUtils.writeJsonFile(BackupUtils.getMetadataFile(dumpWriter.getDirectory(), collectionName), metadata);
+        }
+    }
+
+    /**
+     * @return the fingerprints of the collections, which are the same as long as their content
+     *         is, or an empty map if they can't be taken
+     */
+    private Map<String, String> getFingerprints(final Collection<String> collections)
+    {
+        if (collections.isEmpty())
+        {
+            return new HashMap<String, String>();
+        }
+        return hashCollections ? getHashFingerprints(collections) : getStatsFingerprints(collections);
+    }
+
+    /**
+     * @return the fingerprints of the collections as hashed by the server. dbHash reads every
+     *         document of the database while holding its lock.
+     */
+    private Map<String, String> getHashFingerprints(final Collection<String> collections)
+    {
+        final Map<String, String> fingerprints = new HashMap<String, String>();
+        try
+        {
+            final DB db = mongoClient.getCollection(collections.iterator().next()).getDB();
+            final CommandResult result = db.command(new BasicDBObject("dbHash", 1));
+            if (result.ok() && result.get("collections") instanceof DBObject)
+            {
+                final DBObject hashes = (DBObject) result.get("collections");
+                for (final String collection : collections)
+                {
+                    if (hashes.get(collection) instanceof String)
+                    {
+                        fingerprints.put(collection, (String) hashes.get(collection));
+                    }
+                }
+            }
+            else
+            {
+                logger.info("Couldn't hash the collections, all of them are dumped: {}", result.getErrorMessage());
+            }
+        }
+        catch (final MongoException e)
+        {
+            logger.info("Couldn't hash the collections, all of them are dumped", e);
         }
+        return fingerprints;
     }
 
-    private void initOplog(final String database) throws IOException
+    /**
+     * @return the document count and size of the collections, from their statistics, along with
+     *         the last optime of the oplog, after which the next dump looks for writes to them.
+     *         Without an oplog, updates keeping the size of a collection would go unnoticed, so
+     *         no fingerprint is taken.
+     */
+    private Map<String, String> getStatsFingerprints(final Collection<String> collections)
+    {
+        final Map<String, String> fingerprints = new HashMap<String, String>();
+        try
+        {
+            // taken first, so that writes made while the statistics are read are looked for
+            final BSONTimestamp optime = getLastOptime();
+            if (optime == null)
+            {
+                logger.info("Without an oplog, unchanged collections are only recognized by hashing them, "
+                            + "all of them are dumped");
+                return fingerprints;
+            }
+            for (final String collection : collections)
+            {
+                final CommandResult stats = mongoClient.getCollection(collection).getStats();
+                if (stats.ok())
+                {
+                    fingerprints.put(collection, STATS_FINGERPRINT_PREFIX + stats.get("count") + ":" + stats.get("size"));
+                }
+            }
+            fingerprints.put(OPTIME_FINGERPRINT, optime.getTime() + ":" + optime.getInc());
+        }
+        catch (final MongoException e)
+        {
+            logger.info("Couldn't read the statistics of the collections, all of them are dumped", e);
+            fingerprints.clear();
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @return the oplog fingerprints look for writes in, or null if the server has none
+     */
+    private DBCollection getFingerprintOplog()
+    {
+        if (oplogCollection != null)
+        {
+            return oplogCollection;
+        }
+        if (dbs.get(BackupConstants.ADMIN_DB) == null || dbs.get(BackupConstants.LOCAL_DB) == null)
+        {
+            return null;
+        }
+        try
+        {
+            return new OplogCollection(dbs.get(BackupConstants.ADMIN_DB), dbs.get(BackupConstants.LOCAL_DB))
+                .getOplogCollection();
+        }
+        catch (final IOException e)
+        {
+            logger.debug("No oplog to fingerprint the collections with", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the timestamp of the first or last entry of the oplog, or null if it has none
+     */
+    private BSONTimestamp getOplogEnd(final DBCollection oplog, final int order)
+    {
+        final DBCursor oplogCursor = oplog.find().sort(new BasicDBObject("$natural", order)).limit(1);
+        try
+        {
+            return oplogCursor.hasNext()
+                ? (BSONTimestamp) oplogCursor.next().get(BackupConstants.TIMESTAMP_FIELD) : null;
+        }
+        finally
+        {
+            oplogCursor.close();
+        }
+    }
+
+    private BSONTimestamp getLastOptime()
+    {
+        final DBCollection oplog = getFingerprintOplog();
+        return oplog != null ? getOplogEnd(oplog, -1) : null;
+    }
+
+    /**
+     * @return the optime of the fingerprints of the previous dump, or null if it has none or the
+     *         oplog doesn't reach back to it anymore
+     */
+    private BSONTimestamp getPreviousOptime(final DBObject previousFingerprints)
+    {
+        final Object previousOptime = previousFingerprints.get(OPTIME_FINGERPRINT);
+        final DBCollection oplog = getFingerprintOplog();
+        if (!(previousOptime instanceof String) || oplog == null)
+        {
+            return null;
+        }
+        final String[] parts = ((String) previousOptime).split(":");
+        final BSONTimestamp optime = new BSONTimestamp(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        final BSONTimestamp first = getOplogEnd(oplog, 1);
+        return first != null && BackupUtils.compareTimestamps(first, optime) <= 0 ? optime : null;
+    }
+
+    /**
+     * @return whether the oplog holds writes to the collection, or commands on its database, after
+     *         the given optime
+     */
+    private boolean isWrittenSince(final String collection, final BSONTimestamp optime)
+    {
+        final DBCollection dbCollection = mongoClient.getCollection(collection);
+        final DBObject query = new BasicDBObject(BackupConstants.TIMESTAMP_FIELD, new BasicDBObject("$gt", optime));
+        query.put(BackupConstants.NAMESPACE_FIELD, new BasicDBObject("$in", new String[]{dbCollection.getFullName(),
+            dbCollection.getDB().getName() + ".$cmd"}));
+        final DBCursor oplogCursor = getFingerprintOplog().find(query).limit(1);
+        oplogCursor.addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+        try
+        {
+            return oplogCursor.hasNext();
+        }
+        finally
+        {
+            oplogCursor.close();
+        }
+    }
+
+    /**
+     * Links the collections that haven't changed since the previous chunked dump into this one, by
+     * copying the lists of their chunks, along with their checksums
+     * 
+     * @return the collections that changed, and have to be dumped
+     */
+    private Collection<String> getChangedCollections(final Collection<String> collections,
+                                                     final Map<String, String> fingerprints,
+                                                     final File directory,
+                                                     final String previousDump,
+                                                     final BasicDBList checksums) throws IOException
+    {
+        final File previousDirectory = previousDump != null ? new File(directory.getParentFile(), previousDump) : null;
+        if (previousDirectory == null || !BackupUtils.getFingerprintsFile(previousDirectory).exists())
+        {
+            return collections;
+        }
+
+        final DBObject previousFingerprints = BackupUtils.readJsonFile(BackupUtils.getFingerprintsFile(previousDirectory));
+        final BSONTimestamp previousOptime = getPreviousOptime(previousFingerprints);
+        final File previousChecksumsFile = BackupUtils.getChecksumsFile(previousDirectory);
+        final List<?> previousChecksums = previousChecksumsFile.exists()
+            ? (List<?>) BackupUtils.readJsonFile(previousChecksumsFile).get("files")
+            : Collections.emptyList();
+        final List<String> changedCollections = new ArrayList<String>();
+        for (final String collection : collections)
+        {
+            final String fingerprint = fingerprints.get(collection);
+            // filtered collections may have been dumped with other filters
+            // the statistics of a collection stay the same through updates that keep its size
+            if (fingerprint != null && fingerprint.equals(previousFingerprints.get(collection))
+                && (!fingerprint.startsWith(STATS_FINGERPRINT_PREFIX)
+                    || previousOptime != null && !isWrittenSince(collection, previousOptime))
+                && !queries.containsKey(collection) && !projections.containsKey(collection)
+                && copyChunkedFiles(previousDirectory, directory, collection))
+            {
+                logger.info("Collection {} is unchanged since dump {}", collection, previousDump);
+                for (final Object previousChecksum : previousChecksums)
+                {
+                    if (collection.equals(((DBObject) previousChecksum).get("collection")))
+                    {
+                        checksums.add(previousChecksum);
+                    }
+                }
+            }
+            else
+            {
+                changedCollections.add(collection);
+            }
+        }
+        return changedCollections;
+    }
+
+    /**
+     * Copies the chunked files of a collection, its segments and their _id indexes from a
+     * previous dump
+     * 
+     * @return false if the previous dump has no chunked file for the collection
+     */
+    private boolean copyChunkedFiles(final File previousDirectory, final File directory, final String collection)
+        throws IOException
+    {
+        final List<String> names = new ArrayList<String>();
+        final File manifestFile = BackupUtils.getManifestFile(previousDirectory, collection);
+        if (manifestFile.exists())
+        {
+            names.add(manifestFile.getName());
+            for (final Object segment : (List<?>) BackupUtils.readJsonFile(manifestFile).get("segments"))
+            {
+                names.add((String) ((DBObject) segment).get("file"));
+            }
+        }
+        else
+        {
+            names.add(collection + "." + BackupUtils.CHUNKED_BSON_EXTENSION);
+        }
+
+        for (final String name : new ArrayList<String>(names))
+        {
+            if (!new File(previousDirectory, name).exists())
+            {
+                return false;
+            }
+            if (BackupUtils.isChunkedBsonFile(name))
+            {
+                names.add(BackupUtils.getIdIndexName(BackupUtils.getCollectionName(name)));
+            }
+        }
+
+        directory.mkdirs();
+        for (final String name : names)
+        {
+            final File previousFile = new File(previousDirectory, name);
+            if (previousFile.exists())
+            {
+                FileUtils.copyFile(previousFile, new File(directory, name));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param before only dumps named before this one are considered, null to consider all of
+     *            them
+     * @return the name of the latest dump with the given output name, or null if there is none
+     */
+    private String getLatestDump(final String outputDirectory, final String outputName, final String before)
+    {
+        final File[] dumps = new File(outputDirectory).listFiles();
+        String latest = null;
+        if (dumps != null)
+        {
+            final int timestampLength = appendTimestamp().length();
+            for (final File dump : dumps)
+            {
+                final String name = dump.getName();
+                if (dump.isDirectory() && name.startsWith(outputName)
+                    && name.length() == outputName.length() + timestampLength
+                    && (before == null || name.compareTo(before) < 0)
+                    && (latest == null || name.compareTo(latest) > 0))
+                {
+                    latest = name;
+                }
+            }
+        }
+        return latest;
+    }
+
+    private void initOplog(final String database, final DumpWriter dumpWriter) throws IOException
     {
         if (oplog)
         {
             oplogCollection = new OplogCollection(dbs.get(BackupConstants.ADMIN_DB),
                 dbs.get(BackupConstants.LOCAL_DB)).getOplogCollection();
+
+            // a resumed dump replays the oplog from the start of the original dump
+            final File oplogCheckpoint = BackupUtils.getCheckpointFile(dumpWriter.getDirectory(), BackupConstants.OPLOG);
+            if (resume && oplogCheckpoint.exists())
+            {
+                oplogStart = (BSONTimestamp) BackupUtils.readJsonFile(oplogCheckpoint).get("start");
+                return;
+            }
+
             // Filter for oplogs for the given database
             final DBObject query = new BasicDBObject(BackupConstants.NAMESPACE_FIELD,
                 BackupUtils.getNamespacePattern(database));
             final DBCursor oplogCursor = oplogCollection.find(query);
+            oplogCursor.setReadPreference(com.mongodb.ReadPreference.primary());
             oplogCursor.sort(new BasicDBObject("$natural", -1));
             if (oplogCursor.hasNext())
             {
                 oplogStart = ((BSONTimestamp) oplogCursor.next().get("ts"));
             }
+            oplogCursor.close();
+            if (oplogStart != null)
+            {
+                dumpWriter.getDirectory().mkdirs();
+                BackupUtils.writeJsonFile(oplogCheckpoint, new BasicDBObject("start", oplogStart));
+            }
         }
     }
 
@@ -146,11 +809,176 @@ public class MongoDump extends AbstractMongoUtility
         this.zip = zip;
     }
 
+    /**
+     * @param compression how collection files are compressed while they are dumped
+     */
+    public void setCompression(final DumpCompression compression)
+    {
+        this.compression = compression;
+    }
+
+    /**
+     * @param compressionLevel the deflate level, from 1 (fastest) to 9 (smallest), 0 storing
+     *            the data uncompressed
+     */
+    public void setCompressionLevel(final int compressionLevel)
+    {
+        Validate.isTrue(compressionLevel >= 0 && compressionLevel <= 9, "Compression level must be between 0 and 9");
+        this.compressionLevel = compressionLevel;
+    }
+
     public void setOplog(final boolean oplog)
     {
         this.oplog = oplog;
     }
 
+    /**
+     * @param segments the number of segments big collections are split into, to be dumped
+     *            concurrently
+     */
+    public void setSegments(final int segments)
+    {
+        this.segments = segments;
+    }
+
+    /**
+     * @return the members collections are read from: the primary when the oplog is dumped, as it
+     *         is where the oplog start is read from, secondaries otherwise
+     */
+    private ReadPreference getReadPreference()
+    {
+        if (readPreference != null)
+        {
+            return readPreference;
+        }
+        return oplog ? ReadPreference.PRIMARY : ReadPreference.SECONDARY_PREFERRED;
+    }
+
+    /**
+     * @param readPreference the members collections are read from, secondaries by default, or the
+     *            primary when the oplog is dumped, which is the only one allowed with it
+     */
+    public void setReadPreference(final ReadPreference readPreference)
+    {
+        this.readPreference = readPreference;
+    }
+
+    /**
+     * @param maxDocumentsPerSecond the maximum documents read per second by all the dump threads,
+     *            0 for no limit
+     */
+    public void setMaxDocumentsPerSecond(final long maxDocumentsPerSecond)
+    {
+        this.maxDocumentsPerSecond = maxDocumentsPerSecond;
+    }
+
+    /**
+     * @param maxBytesPerSecond the maximum bytes read per second by all the dump threads, 0 for no
+     *            limit
+     */
+    public void setMaxBytesPerSecond(final long maxBytesPerSecond)
+    {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * @param maxReplicationLag the replication lag in seconds above which the dump backs off, 0 to
+     *            ignore it. Requires the admin database.
+     */
+    public void setMaxReplicationLag(final long maxReplicationLag)
+    {
+        this.maxReplicationLag = maxReplicationLag;
+    }
+
+    /**
+     * @param maxLatency the server latency in milliseconds above which the dump backs off, 0 to
+     *            ignore it. Requires the admin database.
+     */
+    public void setMaxLatency(final long maxLatency)
+    {
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * @param resume whether to continue the latest dump with the same output name from the
+     *            checkpoints of its collections, instead of starting a new one, unless that dump
+     *            completed
+     */
+    public void setResume(final boolean resume)
+    {
+        this.resume = resume;
+    }
+
+    /**
+     * @param checkpointInterval the milliseconds between checkpoints of each collection, 0 for no
+     *            checkpoints
+     */
+    public void setCheckpointInterval(final long checkpointInterval)
+    {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * @param chunked whether to store collections as content-defined chunks in a chunk store
+     *            shared by the dumps of the output directory, skipping the collections that
+     *            haven't changed since the previous dump
+     */
+    public void setChunked(final boolean chunked)
+    {
+        this.chunked = chunked;
+    }
+
+    /**
+     * @param hashCollections whether chunked dumps recognize unchanged collections by hashing
+     *            them with dbHash, which reads every document while holding the database lock,
+     *            instead of comparing their statistics and looking for writes in the oplog
+     */
+    public void setHashCollections(final boolean hashCollections)
+    {
+        this.hashCollections = hashCollections;
+    }
+
+    /**
+     * @param idIndexInterval the number of documents between the entries of the _id index written
+     *            next to each collection file, 0 for no index
+     */
+    public void setIdIndexInterval(final int idIndexInterval)
+    {
+        this.idIndexInterval = idIndexInterval;
+    }
+
+    /**
+     * @param collectionFilter selects the collections to dump, all of them by default
+     */
+    public void setCollectionFilter(final NamespaceFilter collectionFilter)
+    {
+        this.collectionFilter = collectionFilter;
+    }
+
+    /**
+     * @param queries the queries selecting the documents to dump, by collection. The other
+     *            collections are dumped whole.
+     */
+    public void setQueries(final Map<String, DBObject> queries)
+    {
+        this.queries = queries;
+    }
+
+    /**
+     * @param projections the projections of the dumped documents, by collection. They must keep
+     *            the _id field, which checkpoints and indexes rely on.
+     */
+    public void setProjections(final Map<String, DBObject> projections)
+    {
+        for (final Map.Entry<String, DBObject> projection : projections.entrySet())
+        {
+            final Object id = projection.getValue().get("_id");
+            Validate.isTrue(!(Boolean.FALSE.equals(id) || (id instanceof Number && ((Number) id).intValue() == 0)),
+                "The projection of collection " + projection.getKey() + " must keep the _id field");
+        }
+        this.projections = projections;
+    }
+
     public void addDB(final DB db)
     {
         dbs.put(db.getName(), db);
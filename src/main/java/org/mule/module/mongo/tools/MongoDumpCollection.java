@@ -8,22 +8,56 @@
 
 package org.mule.module.mongo.tools;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 
+import org.bson.types.BSONTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.CommandResult;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 
 public class MongoDumpCollection implements Callable<Void>
 {
+    private static final Logger logger = LoggerFactory.getLogger(MongoDumpCollection.class);
+    private static final long PROGRESS_INTERVAL = 10000;
+    private static final long MIN_SEGMENT_SIZE = 32 * 1024 * 1024;
+    private static final String ID_FIELD = "_id";
+
     private final DBCollection collection;
     private DumpWriter dumpWriter;
     private DBObject query;
+    private DBObject fields;
     private String name;
     private final List<Integer> options = new ArrayList<Integer>();
+    private ReadPreference readPreference;
+    private DumpThrottle throttle;
+    private OplogSegmentIndex oplogIndex;
+    private int idIndexInterval;
+    private IdIndex.Writer idIndex;
+    private Long idIndexOffset = 0L;
+    private Long estimatedSize;
+    private Object minId;
+    private Object maxId;
+    private Object lastId;
+    private long checkpointInterval;
+    private boolean resume;
+    private boolean naturalOrder;
+    private volatile long documents;
+    private volatile long bytes;
+    private boolean checksummed = true;
+    private Long checksum;
 
     public MongoDumpCollection(final DBCollection collection)
     {
@@ -32,22 +66,428 @@ public class MongoDumpCollection implements Callable<Void>
 
     public Void call() throws Exception
     {
-        final DBCursor cursor = query != null ? collection.find(query) : collection.find();
-        cursor.sort(new BasicDBObject("_id", 1));
+        if (resume && !loadCheckpoint())
+        {
+            logger.info("Collection {} was already dumped", getName());
+            return null;
+        }
+
+        final DBCursor cursor = collection.find(query != null ? query : new BasicDBObject(), fields);
+        if (!naturalOrder)
+        {
+            cursor.sort(new BasicDBObject(ID_FIELD, 1));
+            // resuming from the last document of a checkpoint, which is skipped as the bound includes it
+            BackupUtils.setIdRange(cursor, lastId != null ? lastId : minId, maxId);
+        }
 
         for (final Integer option : options)
         {
             cursor.addOption(option);
         }
+        if (readPreference != null)
+        {
+            cursor.setReadPreference(readPreference);
+            if (!ReadPreference.primary().equals(readPreference))
+            {
+                cursor.addOption(Bytes.QUERYOPTION_SLAVEOK);
+            }
+        }
 
-        while (cursor.hasNext())
+        if (idIndexInterval > 0 && idIndexOffset != null)
         {
-            final BasicDBObject dbObject = (BasicDBObject) cursor.next();
-            dumpWriter.writeObject(name != null ? name : collection.getName(), dbObject);
+            final File idIndexFile = getIdIndexFile();
+            if (!idIndexFile.getParentFile().exists() && !idIndexFile.getParentFile().mkdirs())
+            {
+                logger.info("Couldn't create dir: " + idIndexFile.getParentFile());
+            }
+            idIndex = new IdIndex.Writer(idIndexFile, idIndexInterval, idIndexOffset);
         }
+
+        final long start = System.currentTimeMillis();
+        try
+        {
+            dumpDocuments(cursor, start);
+            checksum = checksummed ? dumpWriter.getChecksum(getName()) : null;
+            if (checkpointInterval > 0)
+            {
+                saveCheckpoint(true);
+            }
+        }
+        finally
+        {
+            if (idIndex != null)
+            {
+                idIndex.close();
+            }
+        }
+        if (oplogIndex != null && !oplogIndex.isEmpty())
+        {
+            oplogIndex.write(BackupUtils.getOplogIndexFile(dumpWriter.getDirectory(), getName()));
+        }
+        logProgress("Dumped", System.currentTimeMillis() - start);
         return null;
     }
 
+    /**
+     * Writes the documents of the cursor, indexing and checkpointing them along the way
+     */
+    private void dumpDocuments(final DBCursor cursor, final long start) throws IOException, InterruptedException
+    {
+        long lastReport = start;
+        long lastCheckpoint = start;
+        final Object resumedId = lastId;
+        try
+        {
+            while (cursor.hasNext())
+            {
+                final BasicDBObject dbObject = (BasicDBObject) cursor.next();
+                if (resumedId != null && lastId == resumedId
+                    && BsonValueComparator.INSTANCE.compare(resumedId, dbObject.get(ID_FIELD)) == 0)
+                {
+                    continue;
+                }
+                lastId = dbObject.get(ID_FIELD);
+                if (oplogIndex != null)
+                {
+                    oplogIndex.add((BSONTimestamp) dbObject.get(BackupConstants.TIMESTAMP_FIELD), bytes);
+                }
+                if (idIndex != null)
+                {
+                    idIndex.add(lastId, bytes);
+                }
+                final int written = dumpWriter.writeObject(getName(), dbObject);
+                bytes += written;
+                documents++;
+                if (throttle != null)
+                {
+                    throttle.acquire(written);
+                }
+
+                final long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL)
+                {
+                    logProgress("Dumping", now - start);
+                    lastReport = now;
+                }
+                if (checkpointInterval > 0 && now - lastCheckpoint >= checkpointInterval)
+                {
+                    saveCheckpoint(false);
+                    lastCheckpoint = now;
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Restores the state of a previous dump of this collection, dropping whatever was written
+     * after its last checkpoint
+     * 
+     * @return false if the previous dump had already completed
+     */
+    private boolean loadCheckpoint() throws IOException
+    {
+        final File checkpointFile = getCheckpointFile();
+        long offset = 0;
+        Long resumedChecksum = 0L;
+        if (checkpointFile.exists())
+        {
+            final DBObject checkpoint = BackupUtils.readJsonFile(checkpointFile);
+            documents = ((Number) checkpoint.get("documents")).longValue();
+            bytes = ((Number) checkpoint.get("bytes")).longValue();
+            // a checkpoint without a checksum comes from a dump that didn't compute one
+            resumedChecksum = checkpoint.get("checksum") instanceof Number
+                ? ((Number) checkpoint.get("checksum")).longValue() : null;
+            if (Boolean.TRUE.equals(checkpoint.get("complete")))
+            {
+                checksum = resumedChecksum;
+                return false;
+            }
+            offset = ((Number) checkpoint.get("offset")).longValue();
+            lastId = checkpoint.get("lastId");
+            // a checkpoint without an _id index offset comes from a dump that wasn't indexed
+            idIndexOffset = checkpoint.get("idIndexOffset") instanceof Number
+                ? ((Number) checkpoint.get("idIndexOffset")).longValue() : null;
+            logger.info("Resuming dump of collection {} after {} documents", getName(), documents);
+        }
+        dumpWriter.truncate(getName(), offset);
+        checksummed = resumedChecksum != null;
+        dumpWriter.setChecksum(getName(), checksummed ? resumedChecksum : 0);
+        if (idIndexOffset == null && getIdIndexFile().exists() && !getIdIndexFile().delete())
+        {
+            logger.warn("Couldn't delete stale _id index of collection {}", getName());
+        }
+        return true;
+    }
+
+    /**
+     * Syncs the file of this collection and records, next to it, the last document it holds
+     */
+    private void saveCheckpoint(final boolean complete) throws IOException
+    {
+        final long offset = dumpWriter.checkpoint(getName());
+        if (offset < 0)
+        {
+            return;
+        }
+        final DBObject checkpoint = new BasicDBObject("collection", getName());
+        if (lastId != null)
+        {
+            checkpoint.put("lastId", lastId);
+        }
+        checkpoint.put("offset", offset);
+        if (idIndex != null)
+        {
+            checkpoint.put("idIndexOffset", idIndex.checkpoint());
+        }
+        checkpoint.put("documents", documents);
+        checkpoint.put("bytes", bytes);
+        if (checksummed)
+        {
+            checkpoint.put("checksum", dumpWriter.getChecksum(getName()));
+        }
+        checkpoint.put("complete", complete);
+        BackupUtils.writeJsonFile(getCheckpointFile(), checkpoint);
+    }
+
+    private File getCheckpointFile()
+    {
+        return BackupUtils.getCheckpointFile(dumpWriter.getDirectory(), getName());
+    }
+
+    private File getIdIndexFile()
+    {
+        return BackupUtils.getIdIndexFile(dumpWriter.getDirectory(), getName());
+    }
+
+    /**
+     * Splits the collection into consecutive _id ranges that can be dumped concurrently, each one
+     * into its own segment file. The ranges are bounds of the _id index, so they hold the _ids of
+     * every type. Split points are asked to the server with splitVector, falling back to sampling
+     * the _id index when the command is not available.
+     * 
+     * @param segments the maximum number of segments
+     * @return the segments, or just this dump if the collection is too small to be split
+     */
+    public List<MongoDumpCollection> split(final int segments)
+    {
+        final int maxSegments = (int) Math.min(segments, getEstimatedSize() / MIN_SEGMENT_SIZE + 1);
+        if (maxSegments <= 1)
+        {
+            return Collections.singletonList(this);
+        }
+
+        final List<Object> splitPoints = getSplitPoints(maxSegments);
+        if (splitPoints.isEmpty())
+        {
+            return Collections.singletonList(this);
+        }
+
+        final List<MongoDumpCollection> dumpSegments = new ArrayList<MongoDumpCollection>(splitPoints.size() + 1);
+        Object min = null;
+        for (int i = 0; i <= splitPoints.size(); i++)
+        {
+            final Object max = i < splitPoints.size() ? splitPoints.get(i) : null;
+            dumpSegments.add(createSegment(i, min, max, splitPoints.size() + 1));
+            min = max;
+        }
+        return dumpSegments;
+    }
+
+    /**
+     * Splits the collection into the segments described by the manifest of a previous dump, so
+     * that it can be resumed with the same _id ranges
+     */
+    public List<MongoDumpCollection> split(final List<?> segmentDescriptions)
+    {
+        final List<MongoDumpCollection> dumpSegments = new ArrayList<MongoDumpCollection>(segmentDescriptions.size());
+        for (int i = 0; i < segmentDescriptions.size(); i++)
+        {
+            final DBObject description = (DBObject) segmentDescriptions.get(i);
+            dumpSegments.add(createSegment(i, description.get("min"), description.get("max"),
+                segmentDescriptions.size()));
+        }
+        return dumpSegments;
+    }
+
+    private MongoDumpCollection createSegment(final int index, final Object min, final Object max, final int segments)
+    {
+        final MongoDumpCollection segment = new MongoDumpCollection(collection);
+        segment.setName(BackupUtils.getSegmentName(getName(), index));
+        segment.setDumpWriter(dumpWriter);
+        segment.setQuery(query);
+        segment.setFields(fields);
+        segment.options.addAll(options);
+        segment.readPreference = readPreference;
+        segment.throttle = throttle;
+        segment.checkpointInterval = checkpointInterval;
+        segment.idIndexInterval = idIndexInterval;
+        segment.resume = resume;
+        segment.estimatedSize = getEstimatedSize() / segments;
+        segment.minId = min;
+        segment.maxId = max;
+        return segment;
+    }
+
+    private List<Object> getSplitPoints(final int segments)
+    {
+        try
+        {
+            final DBObject splitVector = new BasicDBObject("splitVector", collection.getFullName());
+            splitVector.put("keyPattern", new BasicDBObject(ID_FIELD, 1));
+            splitVector.put("maxChunkSizeBytes", Math.max(getEstimatedSize() / segments, 1));
+            final CommandResult result = collection.getDB().command(splitVector);
+            if (result.ok() && result.get("splitKeys") instanceof List)
+            {
+                final List<?> splitKeys = (List<?>) result.get("splitKeys");
+                final List<Object> splitPoints = new ArrayList<Object>();
+                // the server may answer more split points than wanted, keep evenly spaced ones
+                for (int i = 1; i < segments && !splitKeys.isEmpty(); i++)
+                {
+                    final Object splitKey = splitKeys.get(Math.min(i * splitKeys.size() / segments, splitKeys.size() - 1));
+                    addSplitPoint(splitPoints, ((DBObject) splitKey).get(ID_FIELD));
+                }
+                return splitPoints;
+            }
+            logger.debug("splitVector failed for collection {}: {}", getName(), result.getErrorMessage());
+        }
+        catch (final MongoException e)
+        {
+            logger.debug("splitVector failed for collection " + getName(), e);
+        }
+        return sampleSplitPoints(segments);
+    }
+
+    private List<Object> sampleSplitPoints(final int segments)
+    {
+        final long count = collection.count();
+        final List<Object> splitPoints = new ArrayList<Object>();
+        for (int i = 1; i < segments; i++)
+        {
+            final DBCursor cursor = collection.find(new BasicDBObject(), new BasicDBObject(ID_FIELD, 1))
+                .sort(new BasicDBObject(ID_FIELD, 1))
+                .skip((int) Math.min(Integer.MAX_VALUE, i * count / segments))
+                .limit(1);
+            try
+            {
+                if (cursor.hasNext())
+                {
+                    addSplitPoint(splitPoints, cursor.next().get(ID_FIELD));
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+        return splitPoints;
+    }
+
+    private void addSplitPoint(final List<Object> splitPoints, final Object splitPoint)
+    {
+        if (splitPoint != null && (splitPoints.isEmpty() || !splitPoints.get(splitPoints.size() - 1).equals(splitPoint)))
+        {
+            splitPoints.add(splitPoint);
+        }
+    }
+
+    /**
+     * @return the description of this dump in the manifest of a segmented collection
+     */
+    public DBObject getSegmentDescription()
+    {
+        final String file = new File(dumpWriter.getFilePath(getName())).getName();
+        final DBObject description = new BasicDBObject("file", file);
+        if (minId != null)
+        {
+            description.put("min", minId);
+        }
+        if (maxId != null)
+        {
+            description.put("max", maxId);
+        }
+        description.put("documents", documents);
+        return description;
+    }
+
+    /**
+     * @return the description of the file of this dump in the checksums of the dump, with the
+     *         _id range of the collection it holds
+     */
+    public DBObject getChecksumDescription()
+    {
+        final DBObject description = getSegmentDescription();
+        description.put("collection", collection.getName());
+        if (query != null)
+        {
+            description.put("query", query);
+        }
+        if (fields != null)
+        {
+            description.put("fields", fields);
+        }
+        if (checksum != null)
+        {
+            description.put("crc32c", Crc32c.toHex(checksum));
+        }
+        return description;
+    }
+
+    private void logProgress(final String action, final long elapsed)
+    {
+        if (logger.isInfoEnabled())
+        {
+            final double seconds = Math.max(elapsed, 1) / 1000.0;
+            logger.info(String.format("%s collection %s: %d documents, %.1f MB in %.1f s (%.0f docs/s, %.2f MB/s)",
+                action, getName(), documents, bytes / 1048576.0, seconds, documents / seconds,
+                bytes / 1048576.0 / seconds));
+        }
+    }
+
+    /**
+     * @return the size of the collection data according to the server, 0 if unknown
+     */
+    public long getEstimatedSize()
+    {
+        if (estimatedSize == null)
+        {
+            long size = 0;
+            try
+            {
+                final CommandResult stats = collection.getStats();
+                final Object statsSize = stats != null ? stats.get("size") : null;
+                if (statsSize instanceof Number)
+                {
+                    size = ((Number) statsSize).longValue();
+                }
+            }
+            catch (final MongoException e)
+            {
+                logger.debug("Couldn't get the stats of collection " + collection.getName(), e);
+            }
+            estimatedSize = size;
+        }
+        return estimatedSize;
+    }
+
+    public String getName()
+    {
+        return name != null ? name : collection.getName();
+    }
+
+    public long getDocuments()
+    {
+        return documents;
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
     public void setDumpWriter(final DumpWriter dumpWriter)
     {
         this.dumpWriter = dumpWriter;
@@ -58,11 +498,83 @@ public class MongoDumpCollection implements Callable<Void>
         this.query = query;
     }
 
+    /**
+     * @param fields the projection of the dumped documents, null to dump them whole. The _id
+     *            field is needed to checkpoint and index the dump.
+     */
+    public void setFields(final DBObject fields)
+    {
+        this.fields = fields;
+    }
+
     public void setName(final String name)
     {
         this.name = name;
     }
 
+    /**
+     * @param readPreference the members the collection is read from, secondaries being read with
+     *            slaveOk
+     */
+    public void setReadPreference(final ReadPreference readPreference)
+    {
+        this.readPreference = readPreference;
+    }
+
+    /**
+     * @param throttle the throttle shared by all the collections of the dump
+     */
+    public void setThrottle(final DumpThrottle throttle)
+    {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param checkpointInterval the milliseconds between checkpoints of the dump of the
+     *            collection, 0 for no checkpoints. Checkpoints need documents with an _id.
+     */
+    public void setCheckpointInterval(final long checkpointInterval)
+    {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * @param resume whether to continue from the checkpoint of a previous dump of the collection
+     */
+    public void setResume(final boolean resume)
+    {
+        this.resume = resume;
+    }
+
+    /**
+     * @param oplogIndex the index to build while dumping oplog entries, written next to their
+     *            file
+     */
+    public void setOplogIndex(final OplogSegmentIndex oplogIndex)
+    {
+        this.oplogIndex = oplogIndex;
+    }
+
+    /**
+     * @param idIndexInterval the number of documents between the entries of the _id index written
+     *            next to the file of the collection, 0 for no index. The index needs documents
+     *            with an _id.
+     */
+    public void setIdIndexInterval(final int idIndexInterval)
+    {
+        this.idIndexInterval = idIndexInterval;
+    }
+
+    /**
+     * @param naturalOrder whether to read the collection in natural order, without sorting or
+     *            bounding it on _id. The oplog is read this way: its entries have no _id, and its
+     *            natural order is their ts order.
+     */
+    public void setNaturalOrder(final boolean naturalOrder)
+    {
+        this.naturalOrder = naturalOrder;
+    }
+
     public void addOption(final Integer option)
     {
         this.options.add(option);
@@ -13,11 +13,15 @@ package org.mule.module.mongo.tools;
 import org.mule.module.mongo.api.MongoClient;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.apache.commons.lang.Validate;
+import org.bson.types.BSONTimestamp;
 
 public class MongoRestore extends AbstractMongoUtility
 {
@@ -25,6 +29,14 @@ public class MongoRestore extends AbstractMongoUtility
     private boolean drop;
     private boolean oplogReplay;
     private String database;
+    private int batchSize = 1000;
+    private int collectionWorkers = 1;
+    private int insertersPerCollection = 1;
+    private boolean fastMode;
+    private BSONTimestamp oplogLimit;
+    private String sourceDatabase;
+    private NamespaceFilter collectionFilter = new NamespaceFilter(null, null);
+    private Map<String, String> collectionRenames = Collections.emptyMap();
 
     public MongoRestore(MongoClient mongoClient, String database)
     {
@@ -43,10 +55,36 @@ public class MongoRestore extends AbstractMongoUtility
         mongoRestoreDirectory.setDatabase(database);
         mongoRestoreDirectory.setDrop(drop);
         mongoRestoreDirectory.setOplogReplay(oplogReplay);
-        Future<Void> future = executor.submit(mongoRestoreDirectory);
-        propagateException(future);
+        mongoRestoreDirectory.setBatchSize(batchSize);
+        mongoRestoreDirectory.setCollectionWorkers(collectionWorkers);
+        mongoRestoreDirectory.setInsertersPerCollection(insertersPerCollection);
+        mongoRestoreDirectory.setFastMode(fastMode);
+        mongoRestoreDirectory.setOplogLimit(oplogLimit);
+        mongoRestoreDirectory.setSourceDatabase(sourceDatabase);
+        mongoRestoreDirectory.setCollectionFilter(collectionFilter);
+        mongoRestoreDirectory.setCollectionRenames(collectionRenames);
+        try
+        {
+            Future<Void> future = executor.submit(mongoRestoreDirectory);
+            propagateException(future);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
     }
 
+    /**
+     * Restores the documents of a collection with the given ids
+     *
+     * @return the number of documents restored
+     */
+    public int restoreDocuments(String inputPath, String collection, List<?> ids, boolean replace) throws IOException
+    {
+        MongoRestoreDocuments mongoRestoreDocuments = new MongoRestoreDocuments(mongoClient, inputPath, collection);
+        mongoRestoreDocuments.setReplace(replace);
+        return mongoRestoreDocuments.restore(ids);
+    }
 
     public void setDrop(boolean drop)
     {
@@ -57,4 +95,44 @@ public class MongoRestore extends AbstractMongoUtility
     {
         this.oplogReplay = oplogReplay;
     }
+
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    public void setCollectionWorkers(int collectionWorkers)
+    {
+        this.collectionWorkers = collectionWorkers;
+    }
+
+    public void setInsertersPerCollection(int insertersPerCollection)
+    {
+        this.insertersPerCollection = insertersPerCollection;
+    }
+
+    public void setFastMode(boolean fastMode)
+    {
+        this.fastMode = fastMode;
+    }
+
+    public void setOplogLimit(BSONTimestamp oplogLimit)
+    {
+        this.oplogLimit = oplogLimit;
+    }
+
+    public void setSourceDatabase(String sourceDatabase)
+    {
+        this.sourceDatabase = sourceDatabase;
+    }
+
+    public void setCollectionFilter(NamespaceFilter collectionFilter)
+    {
+        this.collectionFilter = collectionFilter;
+    }
+
+    public void setCollectionRenames(Map<String, String> collectionRenames)
+    {
+        this.collectionRenames = collectionRenames;
+    }
 }
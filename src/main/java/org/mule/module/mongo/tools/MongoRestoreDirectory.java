@@ -11,25 +11,68 @@ package org.mule.module.mongo.tools;
 import org.mule.module.mongo.api.MongoClient;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBEncoder;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.LazyDBEncoder;
+import com.mongodb.LazyDBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.Validate;
+import org.bson.types.BSONTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class MongoRestoreDirectory implements Callable<Void>
 {
+    private static final Logger logger = LoggerFactory.getLogger(MongoRestoreDirectory.class);
+    private static final String ID_INDEX = "_id_";
+    private static final String ID_FIELD = "_id";
+    private static final String OPLOG_OBJECT_FIELD = "o";
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final long BATCH_BYTES = 8 * 1024 * 1024;
+    private static final int QUEUED_BATCHES = 4;
+    // well below the maximum size of a command
+    private static final long APPLY_OPS_BYTES = 8 * 1024 * 1024;
+
     private MongoClient mongoClient;
     private boolean drop;
     private boolean oplogReplay;
     private String inputPath;
     private String database;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int collectionWorkers = 1;
+    private int insertersPerCollection = 1;
+    private boolean fastMode;
+    private BSONTimestamp oplogLimit;
+    private String sourceDatabase;
+    private NamespaceFilter collectionFilter = new NamespaceFilter(null, null);
+    private Map<String, String> collectionRenames = Collections.emptyMap();
 
     public Void call() throws Exception
     {
@@ -40,98 +83,905 @@ public class MongoRestoreDirectory implements Callable<Void>
     private void restore() throws IOException
     {
         Validate.notNull(inputPath);
-        List<RestoreFile> restoreFiles = getRestoreFiles(inputPath);
+        List<RestoreSource> sources = new ArrayList<RestoreSource>();
+        try
+        {
+            restore(RestoreFiles.find(new File(inputPath), sources));
+        }
+        finally
+        {
+            for(RestoreSource source : sources)
+            {
+                source.close();
+            }
+        }
+    }
+
+    private void restore(List<RestoreFile> restoreFiles) throws IOException
+    {
         List<RestoreFile> oplogRestores = new ArrayList<RestoreFile>();
+        Map<String, List<RestoreFile>> collectionRestores = new LinkedHashMap<String, List<RestoreFile>>();
+        Map<String, List<RestoreFile>> deltaRestores = new TreeMap<String, List<RestoreFile>>();
         for(RestoreFile restoreFile : restoreFiles)
         {
-            if(!isOplog(restoreFile.getCollection()))
+            if(!isOplog(restoreFile.getCollection()) && !collectionFilter.accepts(restoreFile.getCollection()))
+            {
+                logger.debug("Skipping {}", restoreFile);
+                continue;
+            }
+            if(restoreFile.isDelta())
+            {
+                List<RestoreFile> deltaFiles = deltaRestores.get(restoreFile.getCollection());
+                if(deltaFiles == null)
+                {
+                    deltaFiles = new ArrayList<RestoreFile>();
+                    deltaRestores.put(restoreFile.getCollection(), deltaFiles);
+                }
+                deltaFiles.add(restoreFile);
+            }
+            else if(!isOplog(restoreFile.getCollection()))
             {
-                if(drop && !BackupUtils.isSystemCollection(restoreFile.getCollection()))
+                List<RestoreFile> collectionFiles = collectionRestores.get(restoreFile.getCollection());
+                if(collectionFiles == null)
                 {
-                    mongoClient.dropCollection(restoreFile.getCollection());
+                    collectionFiles = new ArrayList<RestoreFile>();
+                    collectionRestores.put(restoreFile.getCollection(), collectionFiles);
                 }
+                collectionFiles.add(restoreFile);
+            }
+            else
+            {
+                oplogRestores.add(restoreFile);
+            }
+        }
 
-                DBCollection dbCollection = mongoClient.getCollection(restoreFile.getCollection());
-                List<DBObject> dbObjects = restoreFile.getCollectionObjects();
+        Map<DBCollection, List<DBObject>> indexes = Collections.synchronizedMap(new LinkedHashMap<DBCollection, List<DBObject>>());
+        restoreCollections(collectionRestores, indexes);
+        for(Map.Entry<String, List<RestoreFile>> deltaRestore : deltaRestores.entrySet())
+        {
+            applyDeltas(deltaRestore.getKey(), deltaRestore.getValue(),
+                !collectionRestores.containsKey(deltaRestore.getKey()), indexes);
+        }
+        buildIndexes(indexes);
 
-                if(BackupUtils.isUserCollection(restoreFile.getCollection()))
+        if(oplogReplay && !oplogRestores.isEmpty())
+        {
+            replayOplog(oplogRestores);
+        }
+    }
+
+    /**
+     * Restores the collections concurrently, by as many workers as configured
+     */
+    private void restoreCollections(Map<String, List<RestoreFile>> collectionRestores,
+                                    final Map<DBCollection, List<DBObject>> indexes) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(collectionWorkers,
+            collectionRestores.size())));
+        try
+        {
+            Map<String, Future<Void>> futures = new LinkedHashMap<String, Future<Void>>();
+            for(final Map.Entry<String, List<RestoreFile>> collectionRestore : collectionRestores.entrySet())
+            {
+                futures.put(collectionRestore.getKey(), executor.submit(new Callable<Void>()
                 {
-                    for(DBObject currentUser : dbCollection.find())
+                    public Void call() throws Exception
                     {
-                        if(!dbObjects.contains(currentUser))
-                        {
-                            dbCollection.remove(currentUser);
-                        }
+                        restoreCollection(collectionRestore.getKey(), collectionRestore.getValue(), indexes);
+                        return null;
                     }
+                }));
+            }
+
+            Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+            for(Map.Entry<String, Future<Void>> future : futures.entrySet())
+            {
+                try
+                {
+                    future.getValue().get();
                 }
+                catch(ExecutionException ee)
+                {
+                    logger.error("Failed restore of collection " + future.getKey(), ee.getCause());
+                    failures.put(future.getKey(), ee.getCause());
+                }
+            }
+            if(!failures.isEmpty())
+            {
+                throw new IOException("Failed to restore collections " + failures.keySet(),
+                    failures.values().iterator().next());
+            }
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Restores the files of a collection. The segments of a split collection are restored
+     * concurrently. The collection is created with the options of its metadata, while its
+     * indexes are only collected, to be built once all the data is loaded.
+     */
+    private void restoreCollection(String collection,
+                                   List<RestoreFile> collectionFiles,
+                                   Map<DBCollection, List<DBObject>> indexes) throws IOException
+    {
+        if(drop && !BackupUtils.isSystemCollection(collection))
+        {
+            mongoClient.dropCollection(getTargetCollection(collection));
+        }
+        final DBCollection dbCollection = mongoClient.getCollection(getTargetCollection(collection));
+
+        RestoreFile firstFile = collectionFiles.get(0);
+        String metadataName = firstFile.getSiblingName(BackupUtils.getMetadataName(collection));
+        if(firstFile.getSource().exists(metadataName))
+        {
+            DBObject metadata = firstFile.getSource().readJsonFile(metadataName);
+            createCollection(dbCollection, (DBObject) metadata.get("options"));
+            indexes.put(dbCollection, getIndexes(metadata));
+        }
+
+        final AtomicLong documents = new AtomicLong();
+        long start = System.currentTimeMillis();
+        boolean empty = fastMode && dbCollection.count() == 0;
+        if(collectionFiles.size() == 1)
+        {
+            restoreFile(dbCollection, collectionFiles.get(0), documents);
+            verifyCollection(dbCollection, documents.get(), empty, start);
+            return;
+        }
 
-                for(DBObject dbObject : dbObjects)
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(collectionFiles.size(),
+            Runtime.getRuntime().availableProcessors()));
+        try
+        {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for(final RestoreFile restoreFile : collectionFiles)
+            {
+                futures.add(executor.submit(new Callable<Void>()
                 {
-                    dbCollection.save(dbObject);
+                    public Void call() throws Exception
+                    {
+                        restoreFile(dbCollection, restoreFile, documents);
+                        return null;
+                    }
+                }));
+            }
+            for(Future<Void> future : futures)
+            {
+                future.get();
+            }
+            verifyCollection(dbCollection, documents.get(), empty, start);
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch(ExecutionException ee)
+        {
+            throw new IOException("Failed to restore collection " + collection, ee.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private void createCollection(DBCollection dbCollection, DBObject options)
+    {
+        if(options == null || options.keySet().isEmpty() || BackupUtils.collectionExists(dbCollection))
+        {
+            return;
+        }
+        try
+        {
+            dbCollection.getDB().createCollection(dbCollection.getName(), options);
+        }
+        catch(MongoException e)
+        {
+            logger.warn("Couldn't create collection " + dbCollection.getName() + " with options " + options, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<DBObject> getIndexes(DBObject metadata)
+    {
+        List<DBObject> indexes = new ArrayList<DBObject>();
+        List<DBObject> indexSpecs = (List<DBObject>) metadata.get("indexes");
+        if(indexSpecs != null)
+        {
+            for(DBObject indexSpec : indexSpecs)
+            {
+                // the _id index comes with the collection
+                if(!ID_INDEX.equals(indexSpec.get("name")))
+                {
+                    indexes.add(indexSpec);
                 }
             }
-            else
+        }
+        return indexes;
+    }
+
+    /**
+     * Builds the indexes of all the restored collections concurrently, which is much faster than
+     * maintaining them while loading the documents
+     */
+    private void buildIndexes(Map<DBCollection, List<DBObject>> indexes) throws IOException
+    {
+        List<Callable<Void>> builds = new ArrayList<Callable<Void>>();
+        for(final Map.Entry<DBCollection, List<DBObject>> collectionIndexes : indexes.entrySet())
+        {
+            for(final DBObject indexSpec : collectionIndexes.getValue())
             {
-                oplogRestores.add(restoreFile);
+                builds.add(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        buildIndex(collectionIndexes.getKey(), indexSpec);
+                        return null;
+                    }
+                });
             }
         }
-        if(oplogReplay && !oplogRestores.isEmpty())
+        if(builds.isEmpty())
+        {
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(builds.size(),
+            Runtime.getRuntime().availableProcessors()));
+        try
         {
-            for(RestoreFile oplogRestore : oplogRestores)
+            List<String> failures = new ArrayList<String>();
+            Throwable failure = null;
+            for(Future<Void> future : executor.invokeAll(builds))
             {
-                mongoClient.executeComamnd(new BasicDBObject("applyOps", filterOplogForDatabase(oplogRestore).toArray()));
+                try
+                {
+                    future.get();
+                }
+                catch(ExecutionException ee)
+                {
+                    failures.add(ee.getCause().getMessage());
+                    failure = failure != null ? failure : ee.getCause();
+                }
             }
+            if(failure != null)
+            {
+                throw new IOException("Failed to build indexes " + failures, failure);
+            }
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdownNow();
         }
     }
 
-    private List<DBObject> filterOplogForDatabase(RestoreFile oplogFile) throws IOException
+    private void buildIndex(DBCollection dbCollection, DBObject indexSpec)
     {
-        List<DBObject> oplogEntries = oplogFile.getCollectionObjects();
-        List<DBObject> dbOplogEntries = new ArrayList<DBObject>();
+        DBObject keys = (DBObject) indexSpec.get("key");
+        DBObject options = new BasicDBObject(indexSpec.toMap());
+        // the namespace and version of the index are the ones of the target server
+        options.removeField("key");
+        options.removeField("ns");
+        options.removeField("v");
+        long start = System.currentTimeMillis();
+        dbCollection.createIndex(keys, options);
+        logger.info("Built index {} of collection {} in {} ms", new Object[]{options.get("name"),
+            dbCollection.getName(), System.currentTimeMillis() - start});
+    }
 
-        for(DBObject oplogEntry : oplogEntries)
+    /**
+     * Logs the restore of a collection and, in fast mode, checks that it holds at least as many
+     * documents as were read, since unacknowledged inserts don't report failures. The check only
+     * holds for a collection that was empty before the restore: in one that already had
+     * documents, inserts skipped as duplicates can't be told from lost ones.
+     */
+    private void verifyCollection(DBCollection dbCollection, long documents, boolean empty, long start)
+        throws IOException
+    {
+        logger.info("Restored {} documents of collection {} in {} ms", new Object[]{documents,
+            dbCollection.getName(), System.currentTimeMillis() - start});
+        if(fastMode && !empty)
         {
-            if(((String)oplogEntry.get(BackupConstants.NAMESPACE_FIELD)).startsWith(database + "."))
+            logger.warn("Collection {} was not empty before the restore, its unacknowledged inserts are not verified",
+                dbCollection.getName());
+        }
+        else if(fastMode)
+        {
+            long count = dbCollection.count();
+            if(count < documents)
             {
-                dbOplogEntries.add(oplogEntry);
+                throw new IOException("Collection " + dbCollection.getName() + " has " + count
+                                      + " documents after restoring " + documents);
             }
         }
+    }
 
-        return dbOplogEntries;
+    /**
+     * Restores a file with bounded memory: a thread decodes its documents into batches, which
+     * are inserted as they come through a short queue by the configured number of inserters
+     */
+    private void restoreFile(final DBCollection dbCollection, final RestoreFile restoreFile, final AtomicLong documents)
+        throws IOException
+    {
+        final BlockingQueue<List<DBObject>> batches = new ArrayBlockingQueue<List<DBObject>>(QUEUED_BATCHES + insertersPerCollection);
+        final List<DBObject> users = BackupUtils.isUserCollection(restoreFile.getCollection())
+            ? Collections.synchronizedList(new ArrayList<DBObject>())
+            : null;
+        // users are saved one by one as they replace the existing ones, the other documents inserted in batches
+        final int inserters = users != null ? 1 : insertersPerCollection;
+
+        ExecutorService executor = Executors.newFixedThreadPool(inserters + 1);
+        CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+        try
+        {
+            completionService.submit(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    documents.addAndGet(readBatches(restoreFile, batches));
+                    return null;
+                }
+            });
+            for(int i = 0; i < inserters; i++)
+            {
+                completionService.submit(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        insertBatches(dbCollection, batches, users);
+                        return null;
+                    }
+                });
+            }
+            for(int i = 0; i < inserters + 1; i++)
+            {
+                completionService.take().get();
+            }
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch(ExecutionException ee)
+        {
+            throw new IOException("Failed to restore " + restoreFile, ee.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        if(users != null)
+        {
+            for(DBObject currentUser : dbCollection.find())
+            {
+                if(!users.contains(currentUser))
+                {
+                    dbCollection.remove(currentUser);
+                }
+            }
+        }
     }
 
-    private void processRestoreFiles(File input, List<RestoreFile> restoreFiles) throws IOException
+    /**
+     * Inserts batches until the end of the file. Documents that already exist are skipped, the
+     * restore only adds data. All the inserts of a thread go through the same connection, so
+     * that in fast mode a final getLastError waits for all of them.
+     */
+    private void insertBatches(DBCollection dbCollection, BlockingQueue<List<DBObject>> batches, List<DBObject> users)
+        throws InterruptedException
     {
-        File unzippedFolder;
-        if(ZipUtils.isZipFile(input))
+        WriteConcern writeConcern = (fastMode ? WriteConcern.UNACKNOWLEDGED : WriteConcern.ACKNOWLEDGED).continueOnError(true);
+        DBEncoder lazyEncoder = new LazyDBEncoder();
+        DB db = dbCollection.getDB();
+        db.requestStart();
+        try
         {
-            unzippedFolder = new File(BackupUtils.removeExtension(input.getPath()));
-            org.mule.util.FileUtils.unzip(input, unzippedFolder);
-    	}
-    	else
-    	{
-            unzippedFolder = input;
-    	}
-    	
-        if(unzippedFolder.isDirectory())
+            List<DBObject> batch;
+            while(!(batch = batches.take()).isEmpty())
+            {
+                if(users != null)
+                {
+                    for(DBObject user : batch)
+                    {
+                        dbCollection.save(user);
+                    }
+                    users.addAll(batch);
+                    continue;
+                }
+                try
+                {
+                    // lazy documents are sent as they were read, without encoding them again
+                    dbCollection.insert(batch, writeConcern,
+                        batch.get(0) instanceof LazyDBObject ? lazyEncoder : DefaultDBEncoder.FACTORY.create());
+                }
+                catch(MongoException.DuplicateKey e)
+                {
+                    logger.debug("Skipped existing documents of collection {}: {}", dbCollection.getName(), e.getMessage());
+                }
+            }
+            // lets the other inserters see the end of the file too
+            batches.put(batch);
+            if(fastMode)
+            {
+                try
+                {
+                    db.getLastError().throwOnError();
+                }
+                catch(MongoException.DuplicateKey e)
+                {
+                    logger.debug("Skipped existing documents of collection {}: {}", dbCollection.getName(), e.getMessage());
+                }
+            }
+        }
+        finally
+        {
+            db.requestDone();
+        }
+    }
+
+    /**
+     * Decodes the documents of a file into batches, always ending with an empty batch, even if
+     * the file can't be read
+     *
+     * @return the number of documents read
+     */
+    private long readBatches(RestoreFile restoreFile, BlockingQueue<List<DBObject>> batches)
+        throws IOException, InterruptedException
+    {
+        // users are compared with the existing ones, they are fully decoded
+        BsonReader reader = restoreFile.openReader(0, !BackupUtils.isUserCollection(restoreFile.getCollection()));
+        long documents = 0;
+        try
         {
-            for(File file : unzippedFolder.listFiles())
+            List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+            long batchStart = reader.getOffset();
+            DBObject dbObject;
+            while((dbObject = reader.next()) != null)
             {
-                processRestoreFiles(file, restoreFiles);
+                batch.add(dbObject);
+                documents++;
+                if(batch.size() >= batchSize || reader.getOffset() - batchStart >= BATCH_BYTES)
+                {
+                    batches.put(batch);
+                    batch = new ArrayList<DBObject>(batchSize);
+                    batchStart = reader.getOffset();
+                }
             }
+            if(!batch.isEmpty())
+            {
+                batches.put(batch);
+            }
+            return documents;
         }
-        else if(BackupUtils.isBsonFile(unzippedFolder))
+        finally
         {
-            restoreFiles.add(new RestoreFile(unzippedFolder));
+            reader.close();
+            batches.put(Collections.<DBObject>emptyList());
         }
     }
 
-    private List<RestoreFile> getRestoreFiles(String inputPath) throws IOException
+    /**
+     * Applies the delta files of a collection written by snapshot diff dumps, in the order of the
+     * runs that wrote them, as the names of their directories sort. The deletes of each file are
+     * applied before its inserts and updates, so that a document found both deleted and inserted
+     * by a run ends up inserted.
+     *
+     * @param deltasOnly whether the collection is only restored from deltas, in which case it is
+     *            dropped first if configured, and its indexes are the ones of its last delta
+     */
+    private void applyDeltas(String collection, List<RestoreFile> deltaFiles, boolean deltasOnly,
+                             Map<DBCollection, List<DBObject>> indexes) throws IOException
     {
-        List<RestoreFile> restoreFiles = new ArrayList<RestoreFile>();
-        processRestoreFiles(new File(inputPath), restoreFiles);
-        Collections.sort(restoreFiles);
-        return restoreFiles;
+        Collections.sort(deltaFiles, new Comparator<RestoreFile>()
+        {
+            public int compare(RestoreFile first, RestoreFile second)
+            {
+                return first.getName().compareTo(second.getName());
+            }
+        });
+        if(drop && deltasOnly)
+        {
+            mongoClient.dropCollection(getTargetCollection(collection));
+        }
+        DBCollection dbCollection = mongoClient.getCollection(getTargetCollection(collection));
+        if(deltasOnly)
+        {
+            RestoreFile lastFile = deltaFiles.get(deltaFiles.size() - 1);
+            String metadataName = lastFile.getSiblingName(BackupUtils.getMetadataName(collection));
+            if(lastFile.getSource().exists(metadataName))
+            {
+                indexes.put(dbCollection, getIndexes(lastFile.getSource().readJsonFile(metadataName)));
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        long deletes = 0;
+        long upserts = 0;
+        for(RestoreFile deltaFile : deltaFiles)
+        {
+            deletes += applyDeletes(dbCollection, deltaFile);
+            upserts += applyUpserts(dbCollection, deltaFile);
+        }
+        logger.info("Applied {} deletes and {} inserts and updates of {} deltas of collection {} in {} ms",
+            new Object[]{deletes, upserts, deltaFiles.size(), collection, System.currentTimeMillis() - start});
+    }
+
+    private long applyDeletes(DBCollection dbCollection, RestoreFile deltaFile) throws IOException
+    {
+        BsonReader reader = deltaFile.openReader(0, true);
+        long deletes = 0;
+        try
+        {
+            List<Object> ids = new ArrayList<Object>(batchSize);
+            DBObject change;
+            while((change = reader.next()) != null)
+            {
+                if(SnapshotDiffDump.DELETE.equals(change.get(SnapshotDiffDump.OPERATION_FIELD)))
+                {
+                    ids.add(change.get(ID_FIELD));
+                    deletes++;
+                }
+                if(ids.size() >= batchSize)
+                {
+                    removeIds(dbCollection, ids);
+                }
+            }
+            removeIds(dbCollection, ids);
+        }
+        finally
+        {
+            reader.close();
+        }
+        return deletes;
+    }
+
+    private void removeIds(DBCollection dbCollection, List<Object> ids)
+    {
+        if(!ids.isEmpty())
+        {
+            dbCollection.remove(new BasicDBObject(ID_FIELD, new BasicDBObject("$in", ids)), WriteConcern.ACKNOWLEDGED);
+            ids.clear();
+        }
+    }
+
+    /**
+     * Inserts the inserted documents in batches and replaces the updated ones. Inserted documents
+     * that already exist are replaced too, as a run that failed after writing its delta makes the
+     * next one insert them again, maybe with newer content.
+     */
+    private long applyUpserts(DBCollection dbCollection, RestoreFile deltaFile) throws IOException
+    {
+        BsonReader reader = deltaFile.openReader(0, true);
+        DBEncoder lazyEncoder = new LazyDBEncoder();
+        WriteConcern writeConcern = WriteConcern.ACKNOWLEDGED.continueOnError(true);
+        long upserts = 0;
+        try
+        {
+            List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+            DBObject change;
+            while((change = reader.next()) != null)
+            {
+                Object operation = change.get(SnapshotDiffDump.OPERATION_FIELD);
+                DBObject document = (DBObject) change.get(SnapshotDiffDump.DOCUMENT_FIELD);
+                if(SnapshotDiffDump.INSERT.equals(operation))
+                {
+                    batch.add(document);
+                    upserts++;
+                }
+                else if(SnapshotDiffDump.UPDATE.equals(operation))
+                {
+                    dbCollection.save(document);
+                    upserts++;
+                }
+                if(batch.size() >= batchSize)
+                {
+                    insertDeltaBatch(dbCollection, batch, writeConcern, lazyEncoder);
+                }
+            }
+            insertDeltaBatch(dbCollection, batch, writeConcern, lazyEncoder);
+        }
+        finally
+        {
+            reader.close();
+        }
+        return upserts;
+    }
+
+    private void insertDeltaBatch(DBCollection dbCollection, List<DBObject> batch, WriteConcern writeConcern,
+                                  DBEncoder lazyEncoder)
+    {
+        if(batch.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            dbCollection.insert(batch, writeConcern,
+                batch.get(0) instanceof LazyDBObject ? lazyEncoder : DefaultDBEncoder.FACTORY.create());
+        }
+        catch(MongoException.DuplicateKey e)
+        {
+            // the batch went on past the existing documents, replacing it all replaces them
+            logger.debug("Replacing existing documents of collection {}: {}", dbCollection.getName(), e.getMessage());
+            for(DBObject document : batch)
+            {
+                dbCollection.save(document);
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Replays the oplog entries of the database in timestamp order, in applyOps commands bounded
+     * by size. The timestamp of the last applied entry is checkpointed after each command, so that
+     * an interrupted replay resumes after it; the checkpoint is removed once the replay completes.
+     */
+    private void replayOplog(List<RestoreFile> oplogRestores) throws IOException
+    {
+        RestoreFile firstOplog = oplogRestores.get(0);
+        File checkpointFile = firstOplog.getSource().getReplayCheckpointFile(firstOplog.getName());
+        BSONTimestamp lastApplied = null;
+        if(checkpointFile.exists())
+        {
+            lastApplied = (BSONTimestamp) BackupUtils.readJsonFile(checkpointFile).get(BackupConstants.TIMESTAMP_FIELD);
+            logger.info("Resuming oplog replay after {}", lastApplied);
+        }
+
+        long applied = 0;
+        OplogSegments segments = new OplogSegments(oplogRestores);
+        for(int i = segments.getFirstAfter(lastApplied); i < oplogRestores.size(); i++)
+        {
+            RestoreFile oplogRestore = oplogRestores.get(i);
+            OplogSegmentIndex index = segments.getIndex(i);
+            long offset = 0;
+            if(index != null)
+            {
+                if(oplogLimit != null && BackupUtils.compareTimestamps(index.getFirst(), oplogLimit) >= 0)
+                {
+                    break;
+                }
+                if(lastApplied != null)
+                {
+                    if(BackupUtils.compareTimestamps(index.getLast(), lastApplied) <= 0)
+                    {
+                        continue;
+                    }
+                    offset = index.getOffset(lastApplied);
+                }
+            }
+
+            // only the timestamp and namespace of most entries are looked at
+            BsonReader reader = oplogRestore.openReader(offset, true);
+            try
+            {
+                List<DBObject> batch = new ArrayList<DBObject>();
+                long batchBytes = 0;
+                long entryStart = reader.getOffset();
+                DBObject oplogEntry;
+                while((oplogEntry = reader.next()) != null)
+                {
+                    long entryBytes = reader.getOffset() - entryStart;
+                    entryStart = reader.getOffset();
+                    BSONTimestamp timestamp = (BSONTimestamp) oplogEntry.get(BackupConstants.TIMESTAMP_FIELD);
+                    if(oplogLimit != null && BackupUtils.compareTimestamps(timestamp, oplogLimit) >= 0)
+                    {
+                        break;
+                    }
+                    DBObject restoredEntry = null;
+                    if((lastApplied == null || BackupUtils.compareTimestamps(timestamp, lastApplied) > 0)
+                       && ((String) oplogEntry.get(BackupConstants.NAMESPACE_FIELD)).startsWith(getSourceDatabase() + "."))
+                    {
+                        restoredEntry = mapOplogEntry(oplogEntry);
+                    }
+                    if(restoredEntry == null)
+                    {
+                        continue;
+                    }
+
+                    // the batch is applied before the entry would take it over the command size
+                    if(!batch.isEmpty() && (batchBytes + entryBytes > APPLY_OPS_BYTES || batch.size() >= batchSize))
+                    {
+                        lastApplied = applyOps(batch, checkpointFile);
+                        applied += batch.size();
+                        batch.clear();
+                        batchBytes = 0;
+                    }
+                    batch.add(restoredEntry);
+                    batchBytes += entryBytes;
+                }
+                if(!batch.isEmpty())
+                {
+                    lastApplied = applyOps(batch, checkpointFile);
+                    applied += batch.size();
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+
+        checkpointFile.delete();
+        logger.info("Replayed {} oplog entries up to {}", applied, lastApplied);
+    }
+
+    /**
+     * The oplog files of a dump with their sidecar indexes, read as they are needed
+     */
+    private static class OplogSegments
+    {
+        private final List<RestoreFile> files;
+        private final Map<Integer, OplogSegmentIndex> indexes = new HashMap<Integer, OplogSegmentIndex>();
+
+        OplogSegments(List<RestoreFile> files)
+        {
+            this.files = files;
+        }
+
+        OplogSegmentIndex getIndex(int i) throws IOException
+        {
+            if(!indexes.containsKey(i))
+            {
+                RestoreFile file = files.get(i);
+                String indexName = file.getSiblingName(BackupUtils.getOplogIndexName(file.getCollection()));
+                OplogSegmentIndex index = file.getSource().exists(indexName)
+                    ? OplogSegmentIndex.read(file.getSource().readJsonFile(indexName))
+                    : null;
+                indexes.put(i, index != null && !index.isEmpty() ? index : null);
+            }
+            return indexes.get(i);
+        }
+
+        /**
+         * Binary searches, when every file is indexed, the first file holding entries after the
+         * given timestamp
+         */
+        int getFirstAfter(BSONTimestamp timestamp) throws IOException
+        {
+            if(timestamp == null)
+            {
+                return 0;
+            }
+            int low = 0;
+            int high = files.size() - 1;
+            while(low <= high)
+            {
+                int middle = (low + high) >>> 1;
+                OplogSegmentIndex index = getIndex(middle);
+                if(index == null)
+                {
+                    // without indexes every file has to be looked at
+                    return 0;
+                }
+                if(BackupUtils.compareTimestamps(index.getLast(), timestamp) <= 0)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    private BSONTimestamp applyOps(List<DBObject> batch, File checkpointFile) throws IOException
+    {
+        DBObject result = mongoClient.executeComamnd(new BasicDBObject("applyOps", batch.toArray()));
+        if(result instanceof CommandResult && !((CommandResult) result).ok())
+        {
+            throw new IOException("Failed to replay oplog: " + ((CommandResult) result).getErrorMessage());
+        }
+        BSONTimestamp lastApplied = (BSONTimestamp) batch.get(batch.size() - 1).get(BackupConstants.TIMESTAMP_FIELD);
+        BackupUtils.writeJsonFile(checkpointFile, new BasicDBObject(BackupConstants.TIMESTAMP_FIELD, lastApplied));
+        return lastApplied;
+    }
+
+    /**
+     * Maps an oplog entry of the source database to the restored collections, following the
+     * collection filter and renames. Commands are mapped by the collection they name first, like
+     * create and drop do, and index builds by the namespace of the index.
+     *
+     * @return the entry to apply, or null if it is about a collection that isn't restored
+     */
+    private DBObject mapOplogEntry(DBObject oplogEntry)
+    {
+        String namespace = (String) oplogEntry.get(BackupConstants.NAMESPACE_FIELD);
+        String collection = namespace.substring(getSourceDatabase().length() + 1);
+        boolean renaming = !getSourceDatabase().equals(database) || !collectionRenames.isEmpty();
+        if(BackupConstants.COMMAND_COLLECTION.equals(collection))
+        {
+            DBObject command = (DBObject) oplogEntry.get(OPLOG_OBJECT_FIELD);
+            String commandName = command.keySet().iterator().next();
+            Object commandCollection = command.get(commandName);
+            if(!(commandCollection instanceof String))
+            {
+                return renaming ? copyOplogEntry(oplogEntry, collection, command) : oplogEntry;
+            }
+            if(!collectionFilter.accepts((String) commandCollection))
+            {
+                return null;
+            }
+            if(!renaming)
+            {
+                return oplogEntry;
+            }
+            DBObject renamedCommand = copy(command);
+            renamedCommand.put(commandName, getTargetCollection((String) commandCollection));
+            return copyOplogEntry(oplogEntry, collection, renamedCommand);
+        }
+        if(BackupConstants.INDEXES_COLLECTION.equals(collection))
+        {
+            DBObject index = (DBObject) oplogEntry.get(OPLOG_OBJECT_FIELD);
+            String indexCollection = ((String) index.get(BackupConstants.NAMESPACE_FIELD)).substring(
+                getSourceDatabase().length() + 1);
+            if(!collectionFilter.accepts(indexCollection))
+            {
+                return null;
+            }
+            if(!renaming)
+            {
+                return oplogEntry;
+            }
+            DBObject renamedIndex = copy(index);
+            renamedIndex.put(BackupConstants.NAMESPACE_FIELD, database + "." + getTargetCollection(indexCollection));
+            return copyOplogEntry(oplogEntry, collection, renamedIndex);
+        }
+        if(!collectionFilter.accepts(collection))
+        {
+            return null;
+        }
+        return renaming ? copyOplogEntry(oplogEntry, getTargetCollection(collection), null) : oplogEntry;
+    }
+
+    /**
+     * @return a copy of the entry, as read entries can't be changed, in the given collection of
+     *         the target database and with the given object, if any
+     */
+    private DBObject copyOplogEntry(DBObject oplogEntry, String collection, DBObject object)
+    {
+        DBObject copy = copy(oplogEntry);
+        copy.put(BackupConstants.NAMESPACE_FIELD, database + "." + collection);
+        if(object != null)
+        {
+            copy.put(OPLOG_OBJECT_FIELD, object);
+        }
+        return copy;
+    }
+
+    private DBObject copy(DBObject dbObject)
+    {
+        DBObject copy = new BasicDBObject();
+        for(String key : dbObject.keySet())
+        {
+            copy.put(key, dbObject.get(key));
+        }
+        return copy;
+    }
+
+    private String getTargetCollection(String collection)
+    {
+        String target = collectionRenames.get(collection);
+        return target != null ? target : collection;
+    }
+
+    private String getSourceDatabase()
+    {
+        return sourceDatabase != null ? sourceDatabase : database;
     }
 
     private boolean isOplog(String collection)
@@ -139,6 +989,32 @@ public class MongoRestoreDirectory implements Callable<Void>
         return collection.startsWith(BackupConstants.OPLOG);
     }
 
+    /**
+     * @param sourceDatabase the database the dump was taken from, whose oplog entries are
+     *            replayed, the target database by default
+     */
+    public void setSourceDatabase(String sourceDatabase)
+    {
+        this.sourceDatabase = sourceDatabase;
+    }
+
+    /**
+     * @param collectionFilter selects the collections to restore, all of them by default
+     */
+    public void setCollectionFilter(NamespaceFilter collectionFilter)
+    {
+        this.collectionFilter = collectionFilter;
+    }
+
+    /**
+     * @param collectionRenames the names the collections of the dump are restored as, by their
+     *            name in the dump
+     */
+    public void setCollectionRenames(Map<String, String> collectionRenames)
+    {
+        this.collectionRenames = collectionRenames;
+    }
+
     public void setDrop(boolean drop)
     {
         this.drop = drop;
@@ -154,6 +1030,51 @@ public class MongoRestoreDirectory implements Callable<Void>
         this.inputPath = inputPath;
     }
 
+    /**
+     * @param batchSize the maximum number of documents sent in each insert
+     */
+    public void setBatchSize(int batchSize)
+    {
+        Validate.isTrue(batchSize > 0, "Batch size must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param collectionWorkers the number of collections restored concurrently
+     */
+    public void setCollectionWorkers(int collectionWorkers)
+    {
+        this.collectionWorkers = collectionWorkers;
+    }
+
+    /**
+     * @param insertersPerCollection the number of threads inserting the documents of each file
+     */
+    public void setInsertersPerCollection(int insertersPerCollection)
+    {
+        Validate.isTrue(insertersPerCollection > 0, "Inserters per collection must be positive");
+        this.insertersPerCollection = insertersPerCollection;
+    }
+
+    /**
+     * @param fastMode whether to insert without waiting for acknowledgements, checking instead
+     *            the document count of each collection once restored, which is only possible
+     *            for collections that were empty or dropped before
+     */
+    public void setFastMode(boolean fastMode)
+    {
+        this.fastMode = fastMode;
+    }
+
+    /**
+     * @param oplogLimit the timestamp from which oplog entries are no longer replayed, for a
+     *            point-in-time restore, or null to replay the whole oplog
+     */
+    public void setOplogLimit(BSONTimestamp oplogLimit)
+    {
+        this.oplogLimit = oplogLimit;
+    }
+
     public void setMongoClient(MongoClient mongoClient)
     {
         this.mongoClient = mongoClient;
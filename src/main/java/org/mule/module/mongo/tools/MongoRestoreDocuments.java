@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import org.mule.module.mongo.api.MongoClient;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBEncoder;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.Validate;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Restores single documents of a collection from a dump. Uncompressed files on the local file
+ * system are read at the offsets their _id index points to, reading at most one interval of
+ * documents per _id. Other files, and files without an index, are scanned once for all the ids.
+ */
+public class MongoRestoreDocuments
+{
+    private static final Logger logger = LoggerFactory.getLogger(MongoRestoreDocuments.class);
+    private static final String ID_FIELD = "_id";
+
+    private final MongoClient mongoClient;
+    private final String inputPath;
+    private final String collection;
+    private boolean replace;
+
+    public MongoRestoreDocuments(MongoClient mongoClient, String inputPath, String collection)
+    {
+        Validate.notNull(mongoClient);
+        Validate.notNull(inputPath);
+        Validate.notNull(collection);
+        this.mongoClient = mongoClient;
+        this.inputPath = inputPath;
+        this.collection = collection;
+    }
+
+    /**
+     * @param ids the _ids of the documents to restore. Strings that are valid object ids also
+     *            stand for the corresponding object ids.
+     * @return the number of documents restored
+     */
+    public int restore(Collection<?> ids) throws IOException
+    {
+        TreeSet<Object> remaining = new TreeSet<Object>(BsonValueComparator.INSTANCE);
+        for(Object id : ids)
+        {
+            remaining.add(id);
+            if(id instanceof String && ObjectId.isValid((String) id))
+            {
+                remaining.add(new ObjectId((String) id));
+            }
+        }
+
+        List<RestoreSource> sources = new ArrayList<RestoreSource>();
+        List<DBObject> documents = new ArrayList<DBObject>();
+        try
+        {
+            for(RestoreFile restoreFile : RestoreFiles.find(new File(inputPath), sources))
+            {
+                if(remaining.isEmpty())
+                {
+                    break;
+                }
+                if(!collection.equals(restoreFile.getCollection()) || restoreFile.isDelta())
+                {
+                    continue;
+                }
+                IdIndex index = readIndex(restoreFile);
+                if(index != null && restoreFile.isRandomAccess())
+                {
+                    seekDocuments(restoreFile, index, remaining, documents);
+                }
+                else
+                {
+                    scanDocuments(restoreFile, remaining, documents);
+                }
+            }
+            if(!remaining.isEmpty())
+            {
+                logger.warn("Documents {} of collection {} were not found in {}", remaining, collection, inputPath);
+            }
+            return insertDocuments(documents);
+        }
+        finally
+        {
+            for(RestoreSource source : sources)
+            {
+                source.close();
+            }
+        }
+    }
+
+    private IdIndex readIndex(RestoreFile restoreFile) throws IOException
+    {
+        String indexName = restoreFile.getSiblingName(BackupUtils.getIdIndexName(restoreFile.getBaseName()));
+        if(!restoreFile.getSource().exists(indexName))
+        {
+            return null;
+        }
+        return IdIndex.read(restoreFile.getSource().openInputStream(indexName),
+            restoreFile.getSource().getDescription(indexName));
+    }
+
+    /**
+     * Reads, for each id, the interval of documents of the file where the index places it
+     */
+    private void seekDocuments(RestoreFile restoreFile, IdIndex index, Collection<Object> remaining,
+                               List<DBObject> documents) throws IOException
+    {
+        for(Object id : new ArrayList<Object>(remaining))
+        {
+            BsonReader reader = restoreFile.openReader(index.getOffset(id), true);
+            try
+            {
+                DBObject document;
+                for(int i = 0; i < index.getInterval() && (document = reader.next()) != null; i++)
+                {
+                    if(BsonValueComparator.INSTANCE.compare(document.get(ID_FIELD), id) == 0)
+                    {
+                        documents.add(document);
+                        markFound(id, remaining);
+                        break;
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+    }
+
+    private void scanDocuments(RestoreFile restoreFile, Collection<Object> remaining, List<DBObject> documents)
+        throws IOException
+    {
+        BsonReader reader = restoreFile.openReader(0, true);
+        try
+        {
+            DBObject document;
+            while(!remaining.isEmpty() && (document = reader.next()) != null)
+            {
+                if(remaining.contains(document.get(ID_FIELD)))
+                {
+                    documents.add(document);
+                    markFound(document.get(ID_FIELD), remaining);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Removes a found id from the remaining ones, along with its string or object id form
+     */
+    private void markFound(Object id, Collection<Object> remaining)
+    {
+        remaining.remove(id);
+        if(id instanceof ObjectId)
+        {
+            remaining.remove(id.toString());
+        }
+        else if(id instanceof String && ObjectId.isValid((String) id))
+        {
+            remaining.remove(new ObjectId((String) id));
+        }
+    }
+
+    /**
+     * Inserts the documents, skipping those that already exist unless they are to be replaced
+     */
+    private int insertDocuments(List<DBObject> documents)
+    {
+        if(documents.isEmpty())
+        {
+            return 0;
+        }
+        DBCollection dbCollection = mongoClient.getCollection(collection);
+        if(replace)
+        {
+            for(DBObject document : documents)
+            {
+                dbCollection.save(document);
+            }
+            return documents.size();
+        }
+
+        DBEncoder encoder = new LazyDBEncoder();
+        int restored = 0;
+        for(DBObject document : documents)
+        {
+            try
+            {
+                // lazy documents are sent as they were read, without encoding them again
+                dbCollection.insert(Collections.singletonList(document), WriteConcern.ACKNOWLEDGED, encoder);
+                restored++;
+            }
+            catch(MongoException.DuplicateKey e)
+            {
+                logger.info("Document {} of collection {} already exists", document.get(ID_FIELD), collection);
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * @param replace whether to replace the documents that still exist, instead of leaving them
+     *            as they are
+     */
+    public void setReplace(boolean replace)
+    {
+        this.replace = replace;
+    }
+}
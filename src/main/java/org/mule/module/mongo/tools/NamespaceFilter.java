@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects collections by name through include and exclude patterns, where * stands for any
+ * characters and ? for a single one. A collection is selected when it matches an include
+ * pattern, or there are none, and matches no exclude pattern.
+ */
+public class NamespaceFilter
+{
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+
+    /**
+     * @param includes the patterns of the collections to select, null or empty for all of them
+     * @param excludes the patterns of the collections not to select, null for none
+     */
+    public NamespaceFilter(Collection<String> includes, Collection<String> excludes)
+    {
+        this.includes = compile(includes);
+        this.excludes = compile(excludes);
+    }
+
+    public boolean accepts(String collection)
+    {
+        return (includes.isEmpty() || matches(includes, collection)) && !matches(excludes, collection);
+    }
+
+    /**
+     * @return whether the filter selects every collection
+     */
+    public boolean isEmpty()
+    {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    private static boolean matches(List<Pattern> patterns, String collection)
+    {
+        for(Pattern pattern : patterns)
+        {
+            if(pattern.matcher(collection).matches())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Pattern> compile(Collection<String> globs)
+    {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        if(globs != null)
+        {
+            for(String glob : globs)
+            {
+                StringBuilder regex = new StringBuilder();
+                StringBuilder literal = new StringBuilder();
+                for(char c : glob.toCharArray())
+                {
+                    if(c == '*' || c == '?')
+                    {
+                        if(literal.length() > 0)
+                        {
+                            regex.append(Pattern.quote(literal.toString()));
+                            literal.setLength(0);
+                        }
+                        regex.append(c == '*' ? ".*" : ".");
+                    }
+                    else
+                    {
+                        literal.append(c);
+                    }
+                }
+                if(literal.length() > 0)
+                {
+                    regex.append(Pattern.quote(literal.toString()));
+                }
+                patterns.add(Pattern.compile(regex.toString()));
+            }
+        }
+        return patterns;
+    }
+}
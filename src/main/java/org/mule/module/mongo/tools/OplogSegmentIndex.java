@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.BSONTimestamp;
+
+/**
+ * The sidecar index of an oplog segment file: the timestamps of its first and last entries, and
+ * the offsets of one entry every interval, so that a replay can skip whole segments and seek
+ * close to a timestamp without decoding what comes before.
+ */
+public class OplogSegmentIndex
+{
+    public static final int DEFAULT_INTERVAL = 1000;
+
+    private final int interval;
+    private final List<BSONTimestamp> timestamps = new ArrayList<BSONTimestamp>();
+    private final List<Long> offsets = new ArrayList<Long>();
+    private BSONTimestamp first;
+    private BSONTimestamp last;
+    private long documents;
+
+    public OplogSegmentIndex(int interval)
+    {
+        this.interval = interval;
+    }
+
+    /**
+     * Indexes the next entry of the segment
+     *
+     * @param offset the offset in the segment where the entry starts
+     */
+    public void add(BSONTimestamp timestamp, long offset)
+    {
+        if(first == null)
+        {
+            first = timestamp;
+        }
+        last = timestamp;
+        if(documents % interval == 0)
+        {
+            timestamps.add(timestamp);
+            offsets.add(offset);
+        }
+        documents++;
+    }
+
+    /**
+     * @return the offset of the last indexed entry at or before the given timestamp, from where
+     *         reading finds every later entry, or 0 if there is none
+     */
+    public long getOffset(BSONTimestamp timestamp)
+    {
+        int low = 0;
+        int high = timestamps.size() - 1;
+        long offset = 0;
+        while(low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            if(BackupUtils.compareTimestamps(timestamps.get(middle), timestamp) <= 0)
+            {
+                offset = offsets.get(middle);
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+        return offset;
+    }
+
+    public BSONTimestamp getFirst()
+    {
+        return first;
+    }
+
+    public BSONTimestamp getLast()
+    {
+        return last;
+    }
+
+    public long getDocuments()
+    {
+        return documents;
+    }
+
+    public boolean isEmpty()
+    {
+        return documents == 0;
+    }
+
+    public void write(File file) throws IOException
+    {
+        BasicDBList entries = new BasicDBList();
+        for(int i = 0; i < timestamps.size(); i++)
+        {
+            DBObject entry = new BasicDBObject(BackupConstants.TIMESTAMP_FIELD, timestamps.get(i));
+            entry.put("offset", offsets.get(i));
+            entries.add(entry);
+        }
+        DBObject index = new BasicDBObject("first", first);
+        index.put("last", last);
+        index.put("documents", documents);
+        index.put("interval", interval);
+        index.put("entries", entries);
+        BackupUtils.writeJsonFile(file, index);
+    }
+
+    public static OplogSegmentIndex read(DBObject index)
+    {
+        OplogSegmentIndex segmentIndex = new OplogSegmentIndex(((Number) index.get("interval")).intValue());
+        segmentIndex.first = (BSONTimestamp) index.get("first");
+        segmentIndex.last = (BSONTimestamp) index.get("last");
+        segmentIndex.documents = ((Number) index.get("documents")).longValue();
+        for(Object entry : (List<?>) index.get("entries"))
+        {
+            segmentIndex.timestamps.add((BSONTimestamp) ((DBObject) entry).get(BackupConstants.TIMESTAMP_FIELD));
+            segmentIndex.offsets.add(((Number) ((DBObject) entry).get("offset")).longValue());
+        }
+        return segmentIndex;
+    }
+
+    /**
+     * @return the index of a segment that is appended to, or a new one if it has none
+     */
+    public static OplogSegmentIndex open(File file, int interval) throws IOException
+    {
+        return file.exists() ? read(BackupUtils.readJsonFile(file)) : new OplogSegmentIndex(interval);
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzip output stream that compresses fixed size blocks concurrently, the way pigz does. Each
+ * block is written as an independent gzip member, in order; concatenated members are a valid gzip
+ * file that any gzip reader decompresses as a single stream.
+ */
+public class ParallelGzipOutputStream extends OutputStream
+{
+    private final OutputStream out;
+    private final ExecutorService compressors;
+    private final int level;
+    private final int maxPendingBlocks;
+    private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+    private byte[] block;
+    private int blockLength;
+
+    /**
+     * @param out the stream receiving the compressed data
+     * @param compressors the executor compressing the blocks, usually shared by several streams
+     * @param level the deflate compression level, 0 just stores the data
+     * @param blockSize the size of the blocks compressed independently
+     * @param maxPendingBlocks how many blocks can be waiting for compression before writes block
+     */
+    public ParallelGzipOutputStream(OutputStream out,
+                                    ExecutorService compressors,
+                                    int level,
+                                    int blockSize,
+                                    int maxPendingBlocks)
+    {
+        this.out = out;
+        this.compressors = compressors;
+        this.level = level;
+        this.maxPendingBlocks = maxPendingBlocks;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if(blockLength == block.length)
+        {
+            submitBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+        while(length > 0)
+        {
+            if(blockLength == block.length)
+            {
+                submitBlock();
+            }
+            int chunk = Math.min(length, block.length - blockLength);
+            System.arraycopy(bytes, offset, block, blockLength, chunk);
+            blockLength += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Compresses the data written so far and writes it to the underlying stream. The output is
+     * then a complete gzip file.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if(blockLength > 0)
+        {
+            submitBlock();
+        }
+        while(!pendingBlocks.isEmpty())
+        {
+            writeNextBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException
+    {
+        final byte[] data = block;
+        final int length = blockLength;
+        pendingBlocks.add(compressors.submit(new Callable<byte[]>()
+        {
+            public byte[] call() throws Exception
+            {
+                return compress(data, length);
+            }
+        }));
+        block = new byte[data.length];
+        blockLength = 0;
+
+        while(pendingBlocks.size() > maxPendingBlocks)
+        {
+            writeNextBlock();
+        }
+    }
+
+    private void writeNextBlock() throws IOException
+    {
+        try
+        {
+            out.write(pendingBlocks.removeFirst().get());
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        }
+        catch(ExecutionException ee)
+        {
+            throw new IOException("Failed to compress block", ee.getCause());
+        }
+    }
+
+    private byte[] compress(byte[] data, int length) throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(length / 2, 64));
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed, 64 * 1024)
+        {
+            {
+                def.setLevel(level);
+            }
+        };
+        gzipOutputStream.write(data, 0, length);
+        gzipOutputStream.close();
+        return compressed.toByteArray();
+    }
+}
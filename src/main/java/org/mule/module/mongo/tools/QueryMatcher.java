@@ -0,0 +1,495 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.ObjectId;
+
+/**
+ * Evaluates a query on documents locally, without a server. It supports the common subset of
+ * the query language: equality, dotted paths through subdocuments and arrays, the comparison
+ * operators, $in, $nin, $exists, $regex, $not, $size, $all, $elemMatch, $mod, $type and the
+ * logical operators $and, $or and $nor. Other operators are rejected.
+ */
+public class QueryMatcher
+{
+    private final DBObject query;
+
+    public QueryMatcher(DBObject query)
+    {
+        this.query = query != null ? query : new BasicDBObject();
+    }
+
+    public boolean matches(DBObject document)
+    {
+        return matchesDocument(document, query);
+    }
+
+    private boolean matchesDocument(BSONObject document, BSONObject query)
+    {
+        for(String key : query.keySet())
+        {
+            Object condition = query.get(key);
+            if("$and".equals(key))
+            {
+                for(Object subquery : getList(key, condition))
+                {
+                    if(!matchesDocument(document, (BSONObject) subquery))
+                    {
+                        return false;
+                    }
+                }
+            }
+            else if("$or".equals(key) || "$nor".equals(key))
+            {
+                boolean any = false;
+                for(Object subquery : getList(key, condition))
+                {
+                    if(matchesDocument(document, (BSONObject) subquery))
+                    {
+                        any = true;
+                        break;
+                    }
+                }
+                if(any != "$or".equals(key))
+                {
+                    return false;
+                }
+            }
+            else if(key.startsWith("$"))
+            {
+                throw new IllegalArgumentException("Unsupported query operator " + key);
+            }
+            else if(!matchesField(getValues(document, key), condition))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param values the values the path of the field leads to, empty if it is missing
+     */
+    private boolean matchesField(List<Object> values, Object condition)
+    {
+        if(isOperatorDocument(condition))
+        {
+            BSONObject operators = (BSONObject) condition;
+            for(String operator : operators.keySet())
+            {
+                if(!matchesOperator(values, operator, operators.get(operator), operators))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if(condition instanceof Pattern)
+        {
+            return matchesPattern(values, (Pattern) condition);
+        }
+        return isEqual(values, condition);
+    }
+
+    private boolean matchesOperator(List<Object> values, String operator, Object argument, BSONObject operators)
+    {
+        if("$eq".equals(operator))
+        {
+            return isEqual(values, argument);
+        }
+        if("$ne".equals(operator))
+        {
+            return !isEqual(values, argument);
+        }
+        if("$gt".equals(operator) || "$gte".equals(operator) || "$lt".equals(operator) || "$lte".equals(operator))
+        {
+            return matchesComparison(values, operator, argument);
+        }
+        if("$in".equals(operator))
+        {
+            return isIn(values, getList(operator, argument));
+        }
+        if("$nin".equals(operator))
+        {
+            return !isIn(values, getList(operator, argument));
+        }
+        if("$exists".equals(operator))
+        {
+            return !values.isEmpty() == isTrue(argument);
+        }
+        if("$regex".equals(operator))
+        {
+            return matchesPattern(values, toPattern(argument, operators.get("$options")));
+        }
+        if("$options".equals(operator))
+        {
+            // applied along with $regex
+            return true;
+        }
+        if("$not".equals(operator))
+        {
+            return !matchesField(values, argument);
+        }
+        if("$size".equals(operator))
+        {
+            for(Object value : values)
+            {
+                if(value instanceof List && ((List<?>) value).size() == ((Number) argument).intValue())
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if("$all".equals(operator))
+        {
+            List<?> required = getList(operator, argument);
+            for(Object element : required)
+            {
+                if(!(element instanceof Pattern ? matchesPattern(values, (Pattern) element) : isEqual(values, element)))
+                {
+                    return false;
+                }
+            }
+            return !required.isEmpty();
+        }
+        if("$elemMatch".equals(operator))
+        {
+            return matchesElement(values, (BSONObject) argument);
+        }
+        if("$mod".equals(operator))
+        {
+            List<?> divisorAndRemainder = getList(operator, argument);
+            long divisor = ((Number) divisorAndRemainder.get(0)).longValue();
+            long remainder = ((Number) divisorAndRemainder.get(1)).longValue();
+            for(Object value : expand(values))
+            {
+                if(value instanceof Number && ((Number) value).longValue() % divisor == remainder)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if("$type".equals(operator))
+        {
+            int type = ((Number) argument).intValue();
+            for(Object value : expand(values))
+            {
+                if(getType(value) == type)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        throw new IllegalArgumentException("Unsupported query operator " + operator);
+    }
+
+    /**
+     * Comparisons only match values of the same type as the argument, numbers with numbers
+     */
+    private boolean matchesComparison(List<Object> values, String operator, Object argument)
+    {
+        for(Object value : expand(values))
+        {
+            if(BsonValueComparator.getTypeOrder(value) != BsonValueComparator.getTypeOrder(argument))
+            {
+                continue;
+            }
+            int comparison = BsonValueComparator.INSTANCE.compare(value, argument);
+            if("$gt".equals(operator) && comparison > 0 || "$gte".equals(operator) && comparison >= 0
+                || "$lt".equals(operator) && comparison < 0 || "$lte".equals(operator) && comparison <= 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesElement(List<Object> values, BSONObject condition)
+    {
+        for(Object value : values)
+        {
+            if(!(value instanceof List))
+            {
+                continue;
+            }
+            for(Object element : (List<?>) value)
+            {
+                boolean matches = isOperatorDocument(condition)
+                    ? matchesField(Collections.singletonList(element), condition)
+                    : element instanceof BSONObject && !(element instanceof List)
+                      && matchesDocument((BSONObject) element, condition);
+                if(matches)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isIn(List<Object> values, List<?> candidates)
+    {
+        for(Object candidate : candidates)
+        {
+            if(candidate instanceof Pattern ? matchesPattern(values, (Pattern) candidate) : isEqual(values, candidate))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A missing field equals null, and an array equals both itself and each of its elements
+     */
+    private boolean isEqual(List<Object> values, Object expected)
+    {
+        if(values.isEmpty())
+        {
+            return expected == null;
+        }
+        for(Object value : values)
+        {
+            if(isSameValue(value, expected))
+            {
+                return true;
+            }
+            if(value instanceof List)
+            {
+                for(Object element : (List<?>) value)
+                {
+                    if(isSameValue(element, expected))
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isSameValue(Object value, Object expected)
+    {
+        return BsonValueComparator.getTypeOrder(value) == BsonValueComparator.getTypeOrder(expected)
+               && BsonValueComparator.INSTANCE.compare(value, expected) == 0;
+    }
+
+    private boolean matchesPattern(List<Object> values, Pattern pattern)
+    {
+        for(Object value : expand(values))
+        {
+            if(value instanceof String && pattern.matcher((String) value).find())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Pattern toPattern(Object regex, Object options)
+    {
+        if(regex instanceof Pattern)
+        {
+            return (Pattern) regex;
+        }
+        int flags = 0;
+        String optionFlags = options != null ? options.toString() : "";
+        if(optionFlags.indexOf('i') >= 0)
+        {
+            flags |= Pattern.CASE_INSENSITIVE;
+        }
+        if(optionFlags.indexOf('m') >= 0)
+        {
+            flags |= Pattern.MULTILINE;
+        }
+        if(optionFlags.indexOf('s') >= 0)
+        {
+            flags |= Pattern.DOTALL;
+        }
+        if(optionFlags.indexOf('x') >= 0)
+        {
+            flags |= Pattern.COMMENTS;
+        }
+        return Pattern.compile(regex.toString(), flags);
+    }
+
+    /**
+     * @return the values and the elements of the values that are arrays
+     */
+    private List<Object> expand(List<Object> values)
+    {
+        List<Object> expanded = new ArrayList<Object>(values);
+        for(Object value : values)
+        {
+            if(value instanceof List)
+            {
+                expanded.addAll((List<?>) value);
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * @return the values a dotted path leads to, going through the documents of arrays
+     */
+    static List<Object> getValues(BSONObject document, String path)
+    {
+        List<Object> values = new ArrayList<Object>();
+        collectValues(document, path.split("\\."), 0, values);
+        return values;
+    }
+
+    private static void collectValues(Object current, String[] path, int depth, List<Object> values)
+    {
+        if(depth == path.length)
+        {
+            values.add(current);
+            return;
+        }
+        if(current instanceof List)
+        {
+            List<?> elements = (List<?>) current;
+            if(isIndex(path[depth]) && Integer.parseInt(path[depth]) < elements.size())
+            {
+                collectValues(elements.get(Integer.parseInt(path[depth])), path, depth + 1, values);
+            }
+            for(Object element : elements)
+            {
+                if(element instanceof BSONObject && !(element instanceof List))
+                {
+                    collectValues(element, path, depth, values);
+                }
+            }
+        }
+        else if(current instanceof BSONObject && ((BSONObject) current).containsField(path[depth]))
+        {
+            collectValues(((BSONObject) current).get(path[depth]), path, depth + 1, values);
+        }
+    }
+
+    private static boolean isIndex(String part)
+    {
+        for(int i = 0; i < part.length(); i++)
+        {
+            if(!Character.isDigit(part.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return part.length() > 0;
+    }
+
+    private boolean isOperatorDocument(Object condition)
+    {
+        if(!(condition instanceof BSONObject) || condition instanceof List)
+        {
+            return false;
+        }
+        for(String key : ((BSONObject) condition).keySet())
+        {
+            return key.startsWith("$");
+        }
+        return false;
+    }
+
+    private List<?> getList(String operator, Object argument)
+    {
+        if(argument instanceof List)
+        {
+            return (List<?>) argument;
+        }
+        if(argument instanceof Object[])
+        {
+            List<Object> list = new ArrayList<Object>();
+            Collections.addAll(list, (Object[]) argument);
+            return list;
+        }
+        throw new IllegalArgumentException(operator + " needs an array");
+    }
+
+    private boolean isTrue(Object argument)
+    {
+        return argument instanceof Boolean ? (Boolean) argument
+                                           : argument instanceof Number && ((Number) argument).intValue() != 0;
+    }
+
+    /**
+     * @return the BSON type number of a value
+     */
+    private int getType(Object value)
+    {
+        if(value instanceof Double || value instanceof Float)
+        {
+            return 1;
+        }
+        if(value instanceof String)
+        {
+            return 2;
+        }
+        if(value instanceof List)
+        {
+            return 4;
+        }
+        if(value instanceof BSONObject)
+        {
+            return 3;
+        }
+        if(value instanceof byte[])
+        {
+            return 5;
+        }
+        if(value instanceof ObjectId)
+        {
+            return 7;
+        }
+        if(value instanceof Boolean)
+        {
+            return 8;
+        }
+        if(value instanceof Date)
+        {
+            return 9;
+        }
+        if(value == null)
+        {
+            return 10;
+        }
+        if(value instanceof Pattern)
+        {
+            return 11;
+        }
+        if(value instanceof Integer)
+        {
+            return 16;
+        }
+        if(value instanceof BSONTimestamp)
+        {
+            return 17;
+        }
+        if(value instanceof Long)
+        {
+            return 18;
+        }
+        return -1;
+    }
+}
@@ -9,68 +9,199 @@
 
 package org.mule.module.mongo.tools;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.DefaultDBDecoder;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
-
-import org.bson.BSONDecoder;
-import org.bson.BSONObject;
-import org.bson.BasicBSONObject;
+import java.util.regex.Matcher;
+import java.util.zip.GZIPInputStream;
 
 public class RestoreFile implements Comparable<RestoreFile>
 {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final RestoreSource source;
+    private final String name;
     private String collection;
-    private File file;
+    private int segment = -1;
+
+    /**
+     * @param source where the file is read from
+     * @param name the path of the file within the source
+     */
+    public RestoreFile(RestoreSource source, String name)
+    {
+        this.source = source;
+        this.name = name;
+        this.collection = BackupUtils.getCollectionName(name.substring(name.lastIndexOf('/') + 1));
+
+        // segments of a split collection are listed by the manifest of the collection
+        Matcher segmentMatcher = BackupUtils.matchSegment(collection);
+        if(segmentMatcher != null && source.exists(getSiblingName(BackupUtils.getManifestName(segmentMatcher.group(1)))))
+        {
+            this.collection = segmentMatcher.group(1);
+            this.segment = Integer.parseInt(segmentMatcher.group(2));
+        }
+    }
 
-    public RestoreFile(File file)
+    /**
+     * @return a reader of the documents of the file, to be closed by the caller
+     */
+    public BsonReader openReader() throws IOException
     {
-        this.file = file;
-        this.collection = BackupUtils.getCollectionName(file.getName());
+        return openReader(0, false);
     }
 
-    public List<DBObject> getCollectionObjects() throws IOException
+    /**
+     * @param offset where to start reading in the BSON content, which must be the start of a
+     *            document
+     * @param lazy whether to read lazily decoded documents. Plain BSON files on the local file
+     *            system are then memory mapped.
+     * @return a reader of the documents of the file from the offset, to be closed by the caller
+     */
+    public BsonReader openReader(long offset, boolean lazy) throws IOException
     {
-        BSONDecoder bsonDecoder = new DefaultDBDecoder();
-        BufferedInputStream inputStream = null;
-        List<DBObject> dbObjects = new ArrayList<DBObject>();
+        if(lazy && isRandomAccess())
+        {
+            return new MappedBsonReader(source.getLocalFile(name), offset);
+        }
 
+        InputStream inputStream = openInputStream();
         try
         {
-            inputStream = new BufferedInputStream(new FileInputStream(file));
-            while(inputStream.available() != 0)
+            long skipped = 0;
+            while(skipped < offset)
             {
-                BSONObject bsonObject = bsonDecoder.readObject(inputStream);
-                if(bsonObject != null)
+                long skip = inputStream.skip(offset - skipped);
+                if(skip <= 0)
                 {
-                    dbObjects.add(new BasicDBObject((BasicBSONObject) bsonObject));
+                    throw new EOFException("Offset " + offset + " is beyond the end of " + this);
                 }
+                skipped += skip;
             }
-            return dbObjects;
         }
-        finally
+        catch(IOException e)
         {
-            if(inputStream != null)
+            inputStream.close();
+            throw e;
+        }
+        return new BsonDocumentReader(inputStream, toString(), offset, lazy);
+    }
+
+    /**
+     * @return the raw BSON content of the file, decompressing it if it was dumped with gzip
+     */
+    public InputStream openInputStream() throws IOException
+    {
+        if(BackupUtils.isChunkedBsonFile(name))
+        {
+            return openChunks();
+        }
+        InputStream inputStream = source.openInputStream(name);
+        if(BackupUtils.isGzipBsonFile(name))
+        {
+            try
+            {
+                return new GZIPInputStream(inputStream, BUFFER_SIZE);
+            }
+            catch(IOException e)
             {
                 inputStream.close();
+                throw e;
             }
         }
+        return inputStream;
+    }
+
+    /**
+     * Chunked files list the chunks of the collection in a chunk store on the local file system,
+     * given relative to the file
+     */
+    private InputStream openChunks() throws IOException
+    {
+        File localFile = source.getLocalFile(name);
+        if(localFile == null)
+        {
+            throw new IOException("The chunks of " + this + " can only be read from a directory");
+        }
+        DBObject manifest = source.readJsonFile(name);
+        ChunkStore chunkStore = new ChunkStore(new File(localFile.getParentFile(), (String) manifest.get("store")), 0);
+        List<String> chunks = new ArrayList<String>();
+        for(Object chunk : (List<?>) manifest.get("chunks"))
+        {
+            chunks.add((String) chunk);
+        }
+        return chunkStore.openInputStream(chunks);
+    }
+
+    /**
+     * @return the name within the source of a file next to this one
+     */
+    public String getSiblingName(String fileName)
+    {
+        return RestoreSource.getSiblingName(name, fileName);
+    }
+
+    /**
+     * @return the name of the collection, or of the segment of a collection, the file was
+     *         dumped as
+     */
+    public String getBaseName()
+    {
+        return BackupUtils.getCollectionName(name.substring(name.lastIndexOf('/') + 1));
+    }
+
+    /**
+     * @return whether reading from an offset of the file is immediate, rather than going
+     *         through everything before it
+     */
+    public boolean isRandomAccess()
+    {
+        return source.getLocalFile(name) != null && !BackupUtils.isGzipBsonFile(name)
+               && !BackupUtils.isChunkedBsonFile(name);
+    }
+
+    /**
+     * @return whether the file holds the changes of the collection since a previous snapshot,
+     *         rather than its documents
+     */
+    public boolean isDelta()
+    {
+        return BackupUtils.isDeltaBsonFile(name);
+    }
+
+    public RestoreSource getSource()
+    {
+        return source;
+    }
+
+    public String getName()
+    {
+        return name;
     }
 
     public String getCollection()
     {
         return collection;
     }
-    
+
+    /**
+     * @return the segment of the collection this file holds, or -1 if it holds the whole
+     *         collection
+     */
+    public int getSegment()
+    {
+        return segment;
+    }
+
     public int compareTo(RestoreFile restoreFile)
     {
-        return collection.compareTo(restoreFile.getCollection());
+        int comparison = collection.compareTo(restoreFile.getCollection());
+        return comparison != 0 ? comparison : segment - restoreFile.getSegment();
     }
     
     @Override
@@ -87,7 +218,8 @@ public class RestoreFile implements Comparable<RestoreFile>
         RestoreFile that = (RestoreFile)obj;
         return
         areEqual(this.collection, that.collection) &&
-        areEqual(this.file, that.file);
+        areEqual(this.source, that.source) &&
+        areEqual(this.name, that.name);
     }
       
     private boolean areEqual(Object oThis, Object oThat)
@@ -95,6 +227,12 @@ public class RestoreFile implements Comparable<RestoreFile>
         return oThis == null ? oThat == null : oThis.equals(oThat);
     }
     
+    @Override
+    public String toString()
+    {
+        return source.getDescription(name);
+    }
+
     @Override
     public int hashCode()
     {
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the files of a dump
+ */
+public class RestoreFiles
+{
+    private RestoreFiles()
+    {
+    }
+
+    /**
+     * @param input a directory, a zip archive or a single BSON file
+     * @param sources collects the sources opened to read the files, to be closed by the caller
+     *            once done with them
+     * @return the files of the dump, sorted by collection and segment
+     */
+    public static List<RestoreFile> find(File input, List<RestoreSource> sources) throws IOException
+    {
+        List<RestoreFile> restoreFiles = new ArrayList<RestoreFile>();
+        processRestoreFiles(input, restoreFiles, sources);
+        Collections.sort(restoreFiles);
+        return restoreFiles;
+    }
+
+    /**
+     * Collects the files to restore from the input, which can be a directory, a zip archive or a
+     * single BSON file. Archives found in directories are restored too.
+     */
+    private static void processRestoreFiles(File input, List<RestoreFile> restoreFiles, List<RestoreSource> sources)
+        throws IOException
+    {
+        if(ZipUtils.isZipFile(input))
+        {
+            addRestoreFiles(new ZipRestoreSource(input), restoreFiles, sources);
+        }
+        else if(input.isDirectory())
+        {
+            addRestoreFiles(new DirectoryRestoreSource(input), restoreFiles, sources);
+            for(File file : input.listFiles())
+            {
+                if(file.isDirectory() || ZipUtils.isZipFile(file))
+                {
+                    processArchives(file, restoreFiles, sources);
+                }
+            }
+        }
+        else if(BackupUtils.isBsonFile(input))
+        {
+            restoreFiles.add(new RestoreFile(new DirectoryRestoreSource(input.getParentFile()), input.getName()));
+        }
+    }
+
+    private static void processArchives(File input, List<RestoreFile> restoreFiles, List<RestoreSource> sources)
+        throws IOException
+    {
+        if(ZipUtils.isZipFile(input))
+        {
+            addRestoreFiles(new ZipRestoreSource(input), restoreFiles, sources);
+        }
+        else if(input.isDirectory())
+        {
+            for(File file : input.listFiles())
+            {
+                processArchives(file, restoreFiles, sources);
+            }
+        }
+    }
+
+    private static void addRestoreFiles(RestoreSource source, List<RestoreFile> restoreFiles, List<RestoreSource> sources)
+        throws IOException
+    {
+        sources.add(source);
+        for(String name : source.getBsonFiles())
+        {
+            restoreFiles.add(new RestoreFile(source, name));
+        }
+    }
+}
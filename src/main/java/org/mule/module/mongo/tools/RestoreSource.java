@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Where the files of a dump are restored from. Files are named by their path within the source,
+ * with '/' separators, and read as streams, so that archives are restored without being
+ * extracted. Sources allow reading several files concurrently.
+ */
+public abstract class RestoreSource implements Closeable
+{
+    private static final String JSON_ENCODING = "UTF-8";
+
+    /**
+     * @return the names of the BSON files of the source
+     */
+    public abstract List<String> getBsonFiles() throws IOException;
+
+    public abstract boolean exists(String name);
+
+    public abstract InputStream openInputStream(String name) throws IOException;
+
+    /**
+     * @return the local file where the progress of an oplog replay from the given file is kept
+     */
+    public abstract File getReplayCheckpointFile(String oplogName);
+
+    /**
+     * @return how a file of the source is referred to in messages
+     */
+    public abstract String getDescription(String name);
+
+    /**
+     * @return the file on the local file system holding the named file as it is, or null if
+     *         there is none
+     */
+    public File getLocalFile(String name)
+    {
+        return null;
+    }
+
+    public DBObject readJsonFile(String name) throws IOException
+    {
+        InputStream inputStream = openInputStream(name);
+        try
+        {
+            return (DBObject) JSON.parse(IOUtils.toString(inputStream, JSON_ENCODING));
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+
+    public void close() throws IOException
+    {
+        // NOOP
+    }
+
+    /**
+     * @return the name of the file with the given file name in the same directory as the named
+     *         file
+     */
+    public static String getSiblingName(String name, String fileName)
+    {
+        return name.substring(0, name.lastIndexOf('/') + 1) + fileName;
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.lang.Validate;
+import org.bson.BasicBSONEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Incremental dump for servers without an oplog. The digest of each collection maps the _id of
+ * every document to the hash of its content as of the last run, sorted by _id. Each run streams
+ * the collections in _id order and merges them with their digests, writing the documents
+ * inserted, changed and deleted since into a delta file per collection, and the new digests.
+ * Neither side is ever held in memory, only the current document and digest entry are.
+ * <p/>
+ * The first run finds every document inserted, so its deltas are the base snapshot. Delta
+ * files are replaced into place before the digests, so a run that fails makes the next one
+ * write its changes again, with the content the documents have by then. Restore applies the
+ * deltas in order and replaces existing documents on insert, so the latest content wins.
+ */
+public class SnapshotDiffDump implements Callable<Void>
+{
+    public static final String OPERATION_FIELD = "op";
+    public static final String DOCUMENT_FIELD = "o";
+    public static final String INSERT = "i";
+    public static final String UPDATE = "u";
+    public static final String DELETE = "d";
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotDiffDump.class);
+    private static final String DELTA_DIRECTORY_PREFIX = "delta";
+    private static final String DELTA_TIMESTAMP_FORMAT = "'.'yyyy-MM-dd-HH-mm-ss-SSS";
+    private static final String ID_FIELD = "_id";
+    private static final String HASH_FIELD = "h";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DB db;
+    private String outputDirectory;
+
+    public Void call() throws Exception
+    {
+        dump();
+        return null;
+    }
+
+    private void dump() throws IOException
+    {
+        Validate.notNull(db);
+        Validate.notNull(outputDirectory);
+
+        File digestDirectory = BackupUtils.getDigestDirectory(outputDirectory);
+        if(!digestDirectory.exists() && !digestDirectory.mkdirs())
+        {
+            throw new IOException("Couldn't create dir: " + digestDirectory);
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DELTA_TIMESTAMP_FORMAT);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        File deltaDirectory = new File(outputDirectory, DELTA_DIRECTORY_PREFIX + dateFormat.format(new Date()));
+
+        // collections dropped since the last run still have a digest, all their documents are deleted
+        Set<String> collections = new TreeSet<String>();
+        for(String collection : db.getCollectionNames())
+        {
+            if(!BackupUtils.isSystemCollection(collection))
+            {
+                collections.add(collection);
+            }
+        }
+        for(File digestFile : digestDirectory.listFiles())
+        {
+            if(BackupUtils.isDigestFile(digestFile))
+            {
+                collections.add(BackupUtils.removeExtension(digestFile.getName()));
+            }
+        }
+
+        for(String collection : collections)
+        {
+            diffCollection(collection, digestDirectory, deltaDirectory);
+        }
+    }
+
+    /**
+     * Merges the collection, read in _id order, with its digest from the last run
+     */
+    private void diffCollection(String collection, File digestDirectory, File deltaDirectory) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        File digestFile = BackupUtils.getDigestFile(digestDirectory, collection);
+        File newDigestFile = new File(digestDirectory, digestFile.getName() + TEMP_SUFFIX);
+        DBCollection dbCollection = db.getCollection(collection);
+        DeltaFile delta = new DeltaFile(BackupUtils.getDeltaFile(deltaDirectory, collection));
+        BsonFileWriter newDigest = new BsonFileWriter(newDigestFile);
+        BsonReader digest = digestFile.exists()
+            ? new BsonDocumentReader(new FileInputStream(digestFile), digestFile.getPath())
+            : null;
+        DBCursor cursor = dbCollection.find().sort(new BasicDBObject(ID_FIELD, 1));
+        cursor.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+        long documents = 0;
+        try
+        {
+            BasicBSONEncoder encoder = new BasicBSONEncoder();
+            MessageDigest messageDigest = getMessageDigest();
+            DBObject entry = digest != null ? digest.next() : null;
+            while(cursor.hasNext())
+            {
+                DBObject document = cursor.next();
+                Object id = document.get(ID_FIELD);
+                byte[] hash = messageDigest.digest(encoder.encode(document));
+
+                // entries before the document are of documents deleted since
+                while(entry != null && BsonValueComparator.INSTANCE.compare(entry.get(ID_FIELD), id) < 0)
+                {
+                    delta.delete(entry.get(ID_FIELD));
+                    entry = digest.next();
+                }
+                if(entry != null && BsonValueComparator.INSTANCE.compare(entry.get(ID_FIELD), id) == 0)
+                {
+                    if(!Arrays.equals(hash, (byte[]) entry.get(HASH_FIELD)))
+                    {
+                        delta.write(UPDATE, document);
+                    }
+                    entry = digest.next();
+                }
+                else
+                {
+                    // also covers ids the server orders differently than the comparator: they
+                    // are deleted and inserted again, which restore applies in that order
+                    delta.write(INSERT, document);
+                }
+
+                DBObject newEntry = new BasicDBObject(ID_FIELD, id);
+                newEntry.put(HASH_FIELD, hash);
+                newDigest.write(newEntry);
+                documents++;
+            }
+            while(entry != null)
+            {
+                delta.delete(entry.get(ID_FIELD));
+                entry = digest.next();
+            }
+
+            if(delta.close())
+            {
+                writeMetadata(dbCollection, deltaDirectory);
+            }
+            newDigest.close();
+        }
+        finally
+        {
+            cursor.close();
+            if(digest != null)
+            {
+                digest.close();
+            }
+            delta.abort();
+            newDigest.abort();
+        }
+
+        if(documents > 0)
+        {
+            BackupUtils.replaceFile(newDigestFile, digestFile);
+        }
+        else if(digestFile.exists() && !digestFile.delete())
+        {
+            throw new IOException("Couldn't delete the digest of collection " + collection);
+        }
+        logger.info("Diffed {} documents of collection {} in {} ms: {}", new Object[]{documents, collection,
+            System.currentTimeMillis() - start, delta});
+    }
+
+    /**
+     * Writes the indexes of a collection next to its delta file, for restore to build them
+     */
+    private void writeMetadata(DBCollection dbCollection, File deltaDirectory) throws IOException
+    {
+        BasicDBList indexes = new BasicDBList();
+        indexes.addAll(BackupUtils.getIndexes(dbCollection));
+        DBObject metadata = new BasicDBObject("collection", dbCollection.getName());
+        metadata.put("indexes", indexes);
+        BackupUtils.writeJsonFile(BackupUtils.getMetadataFile(deltaDirectory, dbCollection.getName()), metadata);
+    }
+
+    private static MessageDigest getMessageDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Writes BSON documents to a temporary file, made durable when closed
+     */
+    private static class BsonFileWriter
+    {
+        private final File file;
+        private final BasicBSONEncoder encoder = new BasicBSONEncoder();
+        private FileOutputStream fileOutputStream;
+        private OutputStream outputStream;
+
+        BsonFileWriter(File file)
+        {
+            this.file = file;
+        }
+
+        void write(DBObject dbObject) throws IOException
+        {
+            if(outputStream == null)
+            {
+                if(!file.getParentFile().exists() && !file.getParentFile().mkdirs())
+                {
+                    throw new IOException("Couldn't create dir: " + file.getParentFile());
+                }
+                fileOutputStream = new FileOutputStream(file);
+                outputStream = new BufferedOutputStream(fileOutputStream, BUFFER_SIZE);
+            }
+            outputStream.write(encoder.encode(dbObject));
+        }
+
+        /**
+         * @return whether anything was written
+         */
+        boolean close() throws IOException
+        {
+            if(outputStream == null)
+            {
+                return false;
+            }
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+            outputStream.close();
+            outputStream = null;
+            return true;
+        }
+
+        /**
+         * Closes the file if it is still open, after a failure
+         */
+        void abort() throws IOException
+        {
+            if(outputStream != null)
+            {
+                outputStream.close();
+                outputStream = null;
+            }
+        }
+    }
+
+    /**
+     * The delta file of a collection, only created along with its first change and renamed to its
+     * final name once complete
+     */
+    private static class DeltaFile extends BsonFileWriter
+    {
+        private final File target;
+        private long inserted;
+        private long updated;
+        private long deleted;
+
+        DeltaFile(File target)
+        {
+            super(new File(target.getPath() + TEMP_SUFFIX));
+            this.target = target;
+        }
+
+        void write(String operation, DBObject document) throws IOException
+        {
+            DBObject change = new BasicDBObject(OPERATION_FIELD, operation);
+            change.put(ID_FIELD, document.get(ID_FIELD));
+            change.put(DOCUMENT_FIELD, document);
+            write(change);
+            if(INSERT.equals(operation))
+            {
+                inserted++;
+            }
+            else
+            {
+                updated++;
+            }
+        }
+
+        void delete(Object id) throws IOException
+        {
+            DBObject change = new BasicDBObject(OPERATION_FIELD, DELETE);
+            change.put(ID_FIELD, id);
+            write(change);
+            deleted++;
+        }
+
+        @Override
+        boolean close() throws IOException
+        {
+            if(!super.close())
+            {
+                return false;
+            }
+            BackupUtils.replaceFile(new File(target.getPath() + TEMP_SUFFIX), target);
+            return true;
+        }
+
+        @Override
+        public String toString()
+        {
+            return inserted + " inserted, " + updated + " updated, " + deleted + " deleted";
+        }
+    }
+
+    public void setDB(DB db)
+    {
+        this.db = db;
+    }
+
+    public void setOutputDirectory(String outputDirectory)
+    {
+        this.outputDirectory = outputDirectory;
+    }
+}
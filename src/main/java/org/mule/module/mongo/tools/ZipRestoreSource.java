@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Restores the BSON entries of a zip archive, reading them in place. The central directory of
+ * the archive gives random access to its entries, so that they can be read concurrently.
+ */
+public class ZipRestoreSource extends RestoreSource
+{
+    private final File file;
+    private final ZipFile zipFile;
+
+    public ZipRestoreSource(File file) throws IOException
+    {
+        this.file = file;
+        this.zipFile = new ZipFile(file);
+    }
+
+    @Override
+    public List<String> getBsonFiles()
+    {
+        List<String> names = new ArrayList<String>();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while(entries.hasMoreElements())
+        {
+            ZipEntry entry = entries.nextElement();
+            if(!entry.isDirectory() && BackupUtils.isBsonFile(entry.getName()))
+            {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public boolean exists(String name)
+    {
+        return zipFile.getEntry(name) != null;
+    }
+
+    @Override
+    public InputStream openInputStream(String name) throws IOException
+    {
+        ZipEntry entry = zipFile.getEntry(name);
+        if(entry == null)
+        {
+            throw new IOException("No entry " + name + " in " + file);
+        }
+        return zipFile.getInputStream(entry);
+    }
+
+    /**
+     * The archive is never modified, the checkpoint is kept next to it
+     */
+    @Override
+    public File getReplayCheckpointFile(String oplogName)
+    {
+        File checkpointFile = BackupUtils.getReplayCheckpointFile(file.getParentFile());
+        return new File(checkpointFile.getParentFile(),
+            BackupUtils.removeExtension(file.getName()) + "." + checkpointFile.getName());
+    }
+
+    @Override
+    public String getDescription(String name)
+    {
+        return file.getPath() + "!" + name;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        zipFile.close();
+    }
+}
@@ -12,45 +12,114 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 public class ZipUtils
 {
     private static final String ZIP_EXTENSION = "zip";
+    private static final int BUFFER_SIZE = 64 * 1024;
     
     private ZipUtils() {
     }
     
-    public static void zipDirectory(String dbDumpPath) throws IOException
+    /**
+     * Zips the directory into a sibling zip file. Entries are deflated by the calling thread, at
+     * the given level, 0 storing them as they are.
+     */
+    public static void zipDirectory(String dbDumpPath, int level) throws IOException
     {
-        FileOutputStream fileOutputStream = new FileOutputStream(dbDumpPath + ".zip");
-        ZipOutputStream zipOutputStream = new ZipOutputStream(fileOutputStream);
+        ZipOutputStream zipOutputStream = createZip(dbDumpPath, level);
 
         File dumpDirectory = new File(dbDumpPath);
 
-        addDirectory(zipOutputStream, dumpDirectory);
+        addDirectory(zipOutputStream, dumpDirectory, "");
 
         zipOutputStream.close();
 
     }
 
-    private static void addDirectory(ZipOutputStream zipOutputStream, File dumpDirectory) throws IOException
+    /**
+     * Opens the sibling zip file of a dump directory, for its files to be added as they are
+     * completed. Entries are deflated at the given level unless they are added as stored ones.
+     */
+    public static ZipOutputStream createZip(String dbDumpPath, int level) throws IOException
+    {
+        ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(dbDumpPath + ".zip"));
+        zipOutputStream.setLevel(level);
+        return zipOutputStream;
+    }
+
+    /**
+     * Adds every file of the directory and of its subdirectories, named by their path relative to
+     * it
+     */
+    public static void addDirectory(ZipOutputStream zipOutputStream, File directory) throws IOException
+    {
+        addDirectory(zipOutputStream, directory, "");
+    }
+
+    /**
+     * Adds an already compressed file as a stored entry, copying it as it is. Its checksum is
+     * computed first, as stored entries need it before their content.
+     */
+    public static void addStoredFile(ZipOutputStream zipOutputStream, File file, String name) throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try
+        {
+            int length;
+            while((length = fileInputStream.read(buffer)) > 0)
+            {
+                crc.update(buffer, 0, length);
+            }
+        }
+        finally
+        {
+            fileInputStream.close();
+        }
+
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(file.length());
+        entry.setCompressedSize(file.length());
+        entry.setCrc(crc.getValue());
+        fileInputStream = new FileInputStream(file);
+        try
+        {
+            zipOutputStream.putNextEntry(entry);
+            int length;
+            while((length = fileInputStream.read(buffer)) > 0)
+            {
+                zipOutputStream.write(buffer, 0, length);
+            }
+            zipOutputStream.closeEntry();
+        }
+        finally
+        {
+            fileInputStream.close();
+        }
+    }
+
+    private static void addDirectory(ZipOutputStream zipOutputStream, File dumpDirectory, String path) throws IOException
     {
         File[] files = dumpDirectory.listFiles();
+        byte[] buffer = new byte[BUFFER_SIZE];
 
         for(File file : files)
         {
             if(file.isDirectory())
             {
-                addDirectory(zipOutputStream, file);
+                addDirectory(zipOutputStream, file, path + file.getName() + "/");
                 continue;
             }
             FileInputStream fileInputStream = new FileInputStream(file);
             try
             {
-                byte[] buffer = new byte[1024];
-                zipOutputStream.putNextEntry(new ZipEntry(file.getName()));
+                zipOutputStream.putNextEntry(new ZipEntry(path + file.getName()));
 
                 int length;
                 while((length = fileInputStream.read(buffer)) > 0)
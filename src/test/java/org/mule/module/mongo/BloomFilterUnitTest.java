@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo;
+
+import static org.junit.Assert.assertTrue;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+public class BloomFilterUnitTest
+{
+    @Category({RegressionTests.class})
+    @Test
+    public void addedKeysAreAlwaysFound()
+    {
+        final BloomFilter filter = new BloomFilter(1000, 0.01);
+        final byte[][] keys = new byte[1000][];
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = new ObjectId().toByteArray();
+            filter.add(keys[i]);
+        }
+        for (final byte[] key : keys)
+        {
+            assertTrue(filter.mightContain(key));
+        }
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void falsePositiveRateIsBounded()
+    {
+        final BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++)
+        {
+            filter.add(new ObjectId().toByteArray());
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++)
+        {
+            if (filter.mightContain(new ObjectId().toByteArray()))
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 300);
+    }
+}
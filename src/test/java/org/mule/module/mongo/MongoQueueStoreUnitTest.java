@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mule.api.MuleContext;
+import org.mule.module.mongo.api.MongoClient;
+import org.mule.module.mongo.api.WriteConcern;
+import org.mule.module.mongo.automation.RegressionTests;
+import org.mule.util.SerializationUtils;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+public class MongoQueueStoreUnitTest
+{
+    private static final String QUEUE = "orders";
+    private static final DBObject SEQUENCE_ORDER = new BasicDBObject("_id", 1);
+
+    private DBCollection queueCollection;
+    private DBCollection sequencesCollection;
+    private MongoQueueStore store;
+
+    @Before
+    public void setup() throws Exception
+    {
+        queueCollection = mock(DBCollection.class);
+        sequencesCollection = mock(DBCollection.class);
+        final MongoClient mongoClient = mock(MongoClient.class);
+        when(mongoClient.getCollection("mule.queuestore." + QUEUE)).thenReturn(queueCollection);
+        when(mongoClient.getCollection("mule.queuestore_sequences")).thenReturn(sequencesCollection);
+        final MuleContext muleContext = mock(MuleContext.class);
+        when(muleContext.getExecutionClassLoader()).thenReturn(getClass().getClassLoader());
+
+        store = new MongoQueueStore();
+        store.setQueueName(QUEUE);
+        store.setSequenceBlockSize(1);
+        store.setLeaseTime(60000);
+        store.setWriteConcern(WriteConcern.SAFE);
+        store.setMongoClient(mongoClient);
+        store.setMuleContext(muleContext);
+        store.initialize();
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void eachOfferReservesTheNextSharedSequence() throws Exception
+    {
+        when(sequencesCollection.findAndModify(eq(new BasicDBObject("_id", QUEUE)), (DBObject) isNull(),
+            (DBObject) isNull(), eq(false), eq(increment(1)), eq(true), eq(true))).thenReturn(
+            new BasicDBObject("_id", QUEUE).append("next", 1L), new BasicDBObject("_id", QUEUE).append("next", 2L));
+
+        store.store("a", "1");
+        store.store("b", "2");
+
+        final ArgumentCaptor<DBObject> inserted = ArgumentCaptor.forClass(DBObject.class);
+        verify(queueCollection, times(2)).insert(inserted.capture(), any(com.mongodb.WriteConcern.class));
+        assertEquals(0L, inserted.getAllValues().get(0).get("_id"));
+        assertEquals("a", SerializationUtils.deserialize((byte[]) inserted.getAllValues().get(0).get("key")));
+        assertEquals(1L, inserted.getAllValues().get(1).get("_id"));
+        assertEquals("b", SerializationUtils.deserialize((byte[]) inserted.getAllValues().get(1).get("key")));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void keysArePagedAfterTheLastSequence() throws Exception
+    {
+        final DBCursor cursor = cursor(entry(3, "c", "3"), entry(4, "d", "4"));
+        when(queueCollection.find(eq(new BasicDBObject("_id", new BasicDBObject("$gt", 2L))),
+            eq(new BasicDBObject("key", 1)))).thenReturn(cursor);
+
+        final KeysPage page = store.allKeys("2", 2);
+
+        assertEquals(Arrays.<Serializable> asList("c", "d"), page.getKeys());
+        assertEquals("4", page.getLastId());
+        assertTrue(page.hasMore());
+        verify(cursor).sort(SEQUENCE_ORDER);
+        verify(cursor).limit(2);
+        verify(cursor).close();
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void claimTakesTheHeadOfTheQueue() throws Exception
+    {
+        when(queueCollection.findAndModify(eq(new BasicDBObject("state", 0)), (DBObject) isNull(),
+            eq(SEQUENCE_ORDER), eq(false), any(DBObject.class), eq(true), eq(false))).thenReturn(
+            entry(7, "a", "1"));
+
+        final long before = System.currentTimeMillis();
+        final MongoQueueEntry claimed = store.claim("node1");
+
+        assertEquals(7, claimed.getSequence());
+        assertEquals("node1", claimed.getConsumer());
+        assertEquals("a", claimed.getKey());
+        assertEquals("1", claimed.getValue());
+
+        final DBObject set = (DBObject) claimUpdate().get("$set");
+        assertEquals(1, set.get("state"));
+        assertEquals("node1", set.get("owner"));
+        assertTrue((Long) set.get("lease") >= before + 60000);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void expiredClaimIsTakenOver() throws Exception
+    {
+        when(queueCollection.findAndModify(any(DBObject.class), (DBObject) isNull(), eq(SEQUENCE_ORDER),
+            eq(false), any(DBObject.class), eq(true), eq(false))).thenReturn(entry(7, "a", "1"));
+        when(queueCollection.findAndModify(eq(new BasicDBObject("state", 0)), (DBObject) isNull(),
+            eq(SEQUENCE_ORDER), eq(false), any(DBObject.class), eq(true), eq(false))).thenReturn(null);
+
+        final long before = System.currentTimeMillis();
+        final MongoQueueEntry takenOver = store.claim("node2");
+        assertEquals(7, takenOver.getSequence());
+        assertEquals("node2", takenOver.getConsumer());
+
+        final ArgumentCaptor<DBObject> query = ArgumentCaptor.forClass(DBObject.class);
+        verify(queueCollection, times(2)).findAndModify(query.capture(), (DBObject) isNull(), eq(SEQUENCE_ORDER),
+            eq(false), any(DBObject.class), eq(true), eq(false));
+        final DBObject expired = query.getAllValues().get(1);
+        assertEquals(1, expired.get("state"));
+        assertTrue((Long) ((DBObject) expired.get("lease")).get("$lt") >= before);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void emptyQueueHasNothingToClaim() throws Exception
+    {
+        assertNull(store.claim("node1"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void onlyTheClaimingConsumerAcknowledges() throws Exception
+    {
+        when(queueCollection.findAndModify(eq(claim(7, "node1")), eq(new BasicDBObject("_id", 1)),
+            (DBObject) isNull(), eq(true), (DBObject) isNull(), eq(false), eq(false))).thenReturn(
+            new BasicDBObject("_id", 7L));
+
+        assertFalse(store.acknowledge(new MongoQueueEntry(7, "node2", "a", "1")));
+        assertTrue(store.acknowledge(new MongoQueueEntry(7, "node1", "a", "1")));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void releasedEntryIsReadyAgain() throws Exception
+    {
+        final DBObject update = new BasicDBObject("$set", new BasicDBObject("state", 0)).append("$unset",
+            new BasicDBObject("owner", "").append("lease", ""));
+        when(queueCollection.findAndModify(eq(claim(7, "node1")), eq(new BasicDBObject("_id", 1)),
+            (DBObject) isNull(), eq(false), eq(update), eq(false), eq(false))).thenReturn(
+            new BasicDBObject("_id", 7L));
+
+        assertTrue(store.release(new MongoQueueEntry(7, "node1", "a", "1")));
+        // only the consumer holding the claim can release it
+        assertFalse(store.release(new MongoQueueEntry(7, "node2", "a", "1")));
+    }
+
+    private DBObject claimUpdate()
+    {
+        final ArgumentCaptor<DBObject> update = ArgumentCaptor.forClass(DBObject.class);
+        verify(queueCollection).findAndModify(any(DBObject.class), (DBObject) isNull(), eq(SEQUENCE_ORDER),
+            eq(false), update.capture(), eq(true), eq(false));
+        return update.getValue();
+    }
+
+    private DBObject increment(final long count)
+    {
+        return new BasicDBObject("$inc", new BasicDBObject("next", count));
+    }
+
+    private DBObject claim(final long sequence, final String consumer)
+    {
+        return new BasicDBObject("_id", sequence).append("state", 1).append("owner", consumer);
+    }
+
+    private DBObject entry(final long sequence, final String key, final String value)
+    {
+        final DBObject entry = new BasicDBObject("_id", sequence);
+        entry.put("key", SerializationUtils.serialize(key));
+        entry.put("value", SerializationUtils.serialize(value));
+        return entry;
+    }
+
+    private DBCursor cursor(final DBObject... entries)
+    {
+        final List<DBObject> found = Arrays.asList(entries);
+        final DBCursor cursor = mock(DBCursor.class);
+        when(cursor.sort(any(DBObject.class))).thenReturn(cursor);
+        when(cursor.batchSize(anyInt())).thenReturn(cursor);
+        when(cursor.limit(anyInt())).thenReturn(cursor);
+        final Iterator<?>[] iterator = new Iterator<?>[1];
+        when(cursor.hasNext()).thenAnswer(new Answer<Boolean>()
+        {
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable
+            {
+                if (iterator[0] == null)
+                {
+                    iterator[0] = found.iterator();
+                }
+                return iterator[0].hasNext();
+            }
+        });
+        when(cursor.next()).thenAnswer(new Answer<DBObject>()
+        {
+            public DBObject answer(final InvocationOnMock invocation) throws Throwable
+            {
+                return (DBObject) iterator[0].next();
+            }
+        });
+        return cursor;
+    }
+}
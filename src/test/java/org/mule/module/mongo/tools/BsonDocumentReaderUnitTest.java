@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.bson.BasicBSONEncoder;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+import com.mongodb.BasicDBObject;
+
+public class BsonDocumentReaderUnitTest
+{
+    @Category({RegressionTests.class})
+    @Test
+    public void documentsAreReadUpToTheEnd() throws IOException
+    {
+        byte[] content = encode(1, 2);
+        BsonDocumentReader reader = new BsonDocumentReader(new ByteArrayInputStream(content), "test");
+        assertEquals(1, reader.next().get("_id"));
+        assertEquals(2, reader.next().get("_id"));
+        assertNull(reader.next());
+        assertEquals(content.length, reader.getOffset());
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void truncatedTrailingDocumentIsReported() throws IOException
+    {
+        byte[] content = encode(1, 2);
+        assertTruncated(Arrays.copyOf(content, content.length - 1), false);
+        assertTruncated(Arrays.copyOf(content, content.length - 1), true);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void truncatedLengthPrefixIsReported() throws IOException
+    {
+        byte[] content = encode(1, 2);
+        int firstSize = encode(1).length;
+        assertTruncated(Arrays.copyOf(content, firstSize + 2), false);
+    }
+
+    /**
+     * Asserts that only the first document of the content is read before the truncated one is
+     * reported
+     */
+    private void assertTruncated(byte[] content, boolean lazy) throws IOException
+    {
+        BsonDocumentReader reader = new BsonDocumentReader(new ByteArrayInputStream(content), "test", 0, lazy);
+        assertEquals(1, reader.next().get("_id"));
+        long offset = reader.getOffset();
+        try
+        {
+            reader.next();
+            fail("Truncated document was read");
+        }
+        catch(EOFException e)
+        {
+            assertEquals(offset, reader.getOffset());
+        }
+    }
+
+    private byte[] encode(int... ids) throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for(int id : ids)
+        {
+            outputStream.write(new BasicBSONEncoder().encode(new BasicDBObject("_id", id).append("name", "user" + id)));
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+import com.mongodb.util.JSON;
+
+public class BsonValueComparatorUnitTest
+{
+    @Category({RegressionTests.class})
+    @Test
+    public void subdocumentsCompareByFieldNameBeforeValue()
+    {
+        assertTrue(compare("{ a : 2 }", "{ b : 1 }") < 0);
+        assertTrue(compare("{ b : 1 }", "{ a : 2 }") > 0);
+        assertTrue(compare("{ a : 1, b : 2 }", "{ a : 1, c : 0 }") < 0);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void subdocumentsCompareByValueTypeBeforeFieldName()
+    {
+        assertTrue(compare("{ b : 1 }", "{ a : 'x' }") < 0);
+        assertTrue(compare("{ z : null }", "{ a : 1 }") < 0);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void compoundIdsSortInServerOrder()
+    {
+        List<Object> ids = new ArrayList<Object>();
+        for(String id : Arrays.asList("{ a : 'x' }", "{ b : 1 }", "{ a : 2 }", "{ a : 1, b : 1 }", "{ a : 1 }",
+            "{ a : { c : 1 } }", "{ a : { b : 5 } }"))
+        {
+            ids.add(JSON.parse(id));
+        }
+        Collections.sort(ids, BsonValueComparator.INSTANCE);
+
+        assertEquals(JSON.parse("[ { a : 1 }, { a : 1, b : 1 }, { a : 2 }, { b : 1 }, { a : 'x' }, "
+                                + "{ a : { b : 5 } }, { a : { c : 1 } } ]"), ids);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void equalSubdocumentsCompareEqual()
+    {
+        assertEquals(0, compare("{ a : 1, b : { c : 'x' } }", "{ a : 1.0, b : { c : 'x' } }"));
+    }
+
+    private int compare(String first, String second)
+    {
+        return BsonValueComparator.INSTANCE.compare(JSON.parse(first), JSON.parse(second));
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.bson.BasicBSONEncoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class ChunkedDumpWriterUnitTest
+{
+    private static final int DOCUMENTS = 10000;
+    private static final int CHANGED_DOCUMENT = DOCUMENTS / 2;
+
+    private File directory;
+    private ChunkStore chunkStore;
+
+    @Before
+    public void setup() throws IOException
+    {
+        directory = File.createTempFile("dump", "");
+        directory.delete();
+        directory.mkdirs();
+        chunkStore = new ChunkStore(new File(directory, "chunks"), 0);
+    }
+
+    @After
+    public void cleanup() throws IOException
+    {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void changedDocumentOnlyChangesTheChunksAroundIt() throws IOException
+    {
+        List<DBObject> documents = documents(new Random(42));
+        List<String> first = dump("first", documents);
+        int storedChunks = countStoredChunks();
+
+        documents.set(CHANGED_DOCUMENT, document(CHANGED_DOCUMENT, new Random(7)));
+        List<String> second = dump("second", documents);
+
+        // about 10 MB cut every MB or so past the 256 KB minimum
+        assertTrue("Too few chunks to tell: " + first.size(), first.size() >= 4);
+
+        int prefix = 0;
+        while(prefix < Math.min(first.size(), second.size()) && first.get(prefix).equals(second.get(prefix)))
+        {
+            prefix++;
+        }
+        int suffix = 0;
+        while(suffix < Math.min(first.size(), second.size()) - prefix
+              && first.get(first.size() - 1 - suffix).equals(second.get(second.size() - 1 - suffix)))
+        {
+            suffix++;
+        }
+        assertTrue("Changed chunks " + first + " " + second, first.size() - prefix - suffix <= 2);
+        assertTrue("Changed chunks " + first + " " + second, second.size() - prefix - suffix <= 2);
+        assertTrue(prefix > 0 && suffix > 0);
+
+        // only the new chunks were stored
+        assertEquals(storedChunks + second.size() - prefix - suffix, countStoredChunks());
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void chunksRebuildTheCollectionStream() throws IOException
+    {
+        List<DBObject> documents = documents(new Random(42));
+        List<String> chunks = dump("test", documents);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for(DBObject document : documents)
+        {
+            expected.write(new BasicBSONEncoder().encode(document));
+        }
+        InputStream inputStream = chunkStore.openInputStream(chunks);
+        try
+        {
+            assertArrayEquals(expected.toByteArray(), IOUtils.toByteArray(inputStream));
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Dumps the documents as a collection of a new dump sharing the chunk store
+     *
+     * @return the chunks of the collection
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> dump(String name, List<DBObject> documents) throws IOException
+    {
+        ChunkedDumpWriter dumpWriter = new ChunkedDumpWriter(new File(directory, name).getPath(), "db", chunkStore);
+        for(DBObject document : documents)
+        {
+            dumpWriter.writeObject("collection", document);
+        }
+        dumpWriter.close("collection");
+
+        DBObject manifest = BackupUtils.readJsonFile(new File(dumpWriter.getFilePath("collection")));
+        return new ArrayList<String>((List<String>) manifest.get("chunks"));
+    }
+
+    private List<DBObject> documents(Random random)
+    {
+        List<DBObject> documents = new ArrayList<DBObject>(DOCUMENTS);
+        for(int i = 0; i < DOCUMENTS; i++)
+        {
+            documents.add(document(i, random));
+        }
+        return documents;
+    }
+
+    private DBObject document(int id, Random random)
+    {
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        return new BasicDBObject("_id", id).append("data", data);
+    }
+
+    private int countStoredChunks()
+    {
+        return FileUtils.listFiles(chunkStore.getDirectory(), null, true).size();
+    }
+}
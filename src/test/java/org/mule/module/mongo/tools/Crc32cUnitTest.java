@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+public class Crc32cUnitTest
+{
+    @Category({RegressionTests.class})
+    @Test
+    public void matchesTheCheckValue() throws Exception
+    {
+        Crc32c crc = new Crc32c();
+        crc.update("123456789".getBytes("US-ASCII"));
+        assertEquals("e3069283", Crc32c.toHex(crc.getValue()));
+        assertEquals(0, new Crc32c().getValue());
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void blocksAndBytesGiveTheSameChecksum()
+    {
+        byte[] data = randomBytes(10007);
+        Crc32c blocks = new Crc32c();
+        blocks.update(data, 0, 13);
+        blocks.update(data, 13, data.length - 13);
+        Crc32c bytes = new Crc32c();
+        for(byte b : data)
+        {
+            bytes.update(b);
+        }
+        assertEquals(bytes.getValue(), blocks.getValue());
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void continuesFromAPreviousValue()
+    {
+        byte[] data = randomBytes(4096);
+        Crc32c whole = new Crc32c();
+        whole.update(data);
+        Crc32c first = new Crc32c();
+        first.update(data, 0, 1000);
+        Crc32c rest = new Crc32c(first.getValue());
+        rest.update(data, 1000, data.length - 1000);
+        assertEquals(whole.getValue(), rest.getValue());
+    }
+
+    private byte[] randomBytes(int length)
+    {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
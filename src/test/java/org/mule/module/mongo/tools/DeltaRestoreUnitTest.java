@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.bson.BasicBSONEncoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mule.module.mongo.api.MongoClient;
+import org.mule.module.mongo.automation.RegressionTests;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+public class DeltaRestoreUnitTest
+{
+    private static final String COLLECTION = "users";
+
+    private final Map<Object, DBObject> documents = new HashMap<Object, DBObject>();
+    private File directory;
+    private MongoClient mongoClient;
+
+    @Before
+    public void setup() throws Exception
+    {
+        directory = File.createTempFile("deltas", "");
+        directory.delete();
+        directory.mkdirs();
+
+        DBCollection dbCollection = mock(DBCollection.class);
+        when(dbCollection.getName()).thenReturn(COLLECTION);
+        when(dbCollection.insert(anyListOf(DBObject.class), any(WriteConcern.class), any(DBEncoder.class))).thenAnswer(
+            new Answer<Object>()
+            {
+                public Object answer(InvocationOnMock invocation) throws Throwable
+                {
+                    boolean duplicate = false;
+                    for(Object document : (List<?>) invocation.getArguments()[0])
+                    {
+                        Object id = ((DBObject) document).get("_id");
+                        duplicate |= documents.containsKey(id);
+                        if(!documents.containsKey(id))
+                        {
+                            documents.put(id, (DBObject) document);
+                        }
+                    }
+                    if(duplicate)
+                    {
+                        throw mock(MongoException.DuplicateKey.class);
+                    }
+                    return null;
+                }
+            });
+        when(dbCollection.save(any(DBObject.class))).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                DBObject document = (DBObject) invocation.getArguments()[0];
+                documents.put(document.get("_id"), document);
+                return null;
+            }
+        });
+        when(dbCollection.remove(any(DBObject.class), any(WriteConcern.class))).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                DBObject query = (DBObject) invocation.getArguments()[0];
+                for(Object id : (List<?>) ((DBObject) query.get("_id")).get("$in"))
+                {
+                    documents.remove(id);
+                }
+                return null;
+            }
+        });
+        mongoClient = mock(MongoClient.class);
+        when(mongoClient.getCollection(anyString())).thenReturn(dbCollection);
+    }
+
+    @After
+    public void cleanup() throws IOException
+    {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void insertRepeatedByALaterDeltaReplacesTheDocument() throws Exception
+    {
+        // a run that failed after writing its delta makes the next one insert the same documents
+        writeDelta("delta.2014-01-01-00-00-00-000", change("i", 1, "old"), change("i", 2, "kept"));
+        writeDelta("delta.2014-01-02-00-00-00-000", change("i", 1, "new"));
+        restore();
+
+        assertEquals(2, documents.size());
+        assertEquals("new", documents.get(1).get("v"));
+        assertEquals("kept", documents.get(2).get("v"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void deletesOfADeltaApplyBeforeItsInserts() throws Exception
+    {
+        // the merge may write the insert of a document before its delete
+        writeDelta("delta.2014-01-01-00-00-00-000", change("i", 1, "first"), change("i", 2, "deleted"));
+        writeDelta("delta.2014-01-02-00-00-00-000", change("i", 1, "second"), delete(1), delete(2),
+            change("u", 3, "updated"));
+        restore();
+
+        assertEquals(2, documents.size());
+        assertEquals("second", documents.get(1).get("v"));
+        assertFalse(documents.containsKey(2));
+        assertEquals("updated", documents.get(3).get("v"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void deltasApplyTheSameTwice() throws Exception
+    {
+        writeDelta("delta.2014-01-01-00-00-00-000", change("i", 1, "old"), change("i", 2, "deleted"));
+        writeDelta("delta.2014-01-02-00-00-00-000", change("u", 1, "new"), delete(2));
+        restore();
+        restore();
+
+        assertEquals(1, documents.size());
+        assertEquals("new", documents.get(1).get("v"));
+    }
+
+    private void restore() throws Exception
+    {
+        MongoRestoreDirectory restoreDirectory = new MongoRestoreDirectory();
+        restoreDirectory.setMongoClient(mongoClient);
+        restoreDirectory.setDatabase("test");
+        restoreDirectory.setInputPath(directory.getPath());
+        restoreDirectory.setBatchSize(2);
+        restoreDirectory.call();
+    }
+
+    private DBObject change(String operation, int id, String value)
+    {
+        DBObject change = new BasicDBObject(SnapshotDiffDump.OPERATION_FIELD, operation);
+        change.put("_id", id);
+        DBObject document = new BasicDBObject("_id", id);
+        document.put("v", value);
+        change.put(SnapshotDiffDump.DOCUMENT_FIELD, document);
+        return change;
+    }
+
+    private DBObject delete(int id)
+    {
+        DBObject change = new BasicDBObject(SnapshotDiffDump.OPERATION_FIELD, SnapshotDiffDump.DELETE);
+        change.put("_id", id);
+        return change;
+    }
+
+    private void writeDelta(String run, DBObject... changes) throws IOException
+    {
+        File deltaDirectory = new File(directory, run);
+        deltaDirectory.mkdirs();
+        OutputStream outputStream = new FileOutputStream(BackupUtils.getDeltaFile(deltaDirectory, COLLECTION));
+        try
+        {
+            for(DBObject change : changes)
+            {
+                outputStream.write(new BasicBSONEncoder().encode(change));
+            }
+        }
+        finally
+        {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+public class DumpThrottleUnitTest
+{
+    @Category({RegressionTests.class})
+    @Test
+    public void bytesAreReadAtTheConfiguredRate() throws InterruptedException
+    {
+        // the bucket starts with one second worth of bytes, the other two take two seconds
+        DumpThrottle throttle = new DumpThrottle(null, 0, 1000000);
+        long elapsed = time(throttle, 3000, 1000);
+
+        assertTrue("Took " + elapsed + " ms", elapsed >= 1900);
+        assertTrue("Took " + elapsed + " ms", elapsed < 5000);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void documentsAreReadAtTheConfiguredRate() throws InterruptedException
+    {
+        DumpThrottle throttle = new DumpThrottle(null, 1000, 0);
+        long elapsed = time(throttle, 2000, 1);
+
+        assertTrue("Took " + elapsed + " ms", elapsed >= 900);
+        assertTrue("Took " + elapsed + " ms", elapsed < 4000);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void slowestRateWins() throws InterruptedException
+    {
+        DumpThrottle throttle = new DumpThrottle(null, 1000000, 100000);
+        long elapsed = time(throttle, 200, 1000);
+
+        assertTrue("Took " + elapsed + " ms", elapsed >= 900);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void unlimitedThrottleDoesNotWait() throws InterruptedException
+    {
+        DumpThrottle throttle = new DumpThrottle(null, 0, 0);
+        long elapsed = time(throttle, 100000, 1000);
+
+        assertTrue("Took " + elapsed + " ms", elapsed < 1000);
+    }
+
+    /**
+     * @return the milliseconds taken to acquire the documents
+     */
+    private long time(DumpThrottle throttle, int documents, int bytes) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        for(int i = 0; i < documents; i++)
+        {
+            throttle.acquire(bytes);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.bson.BasicBSONEncoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mule.module.mongo.api.MongoClient;
+import org.mule.module.mongo.automation.RegressionTests;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+public class DumpVerifierUnitTest
+{
+    private static final String COLLECTION = "users";
+    private static final DBObject FIELDS = new BasicDBObject("name", 1);
+
+    private File directory;
+    private DBCollection dbCollection;
+    private MongoClient mongoClient;
+
+    @Before
+    public void setup() throws Exception
+    {
+        directory = File.createTempFile("dump", "");
+        directory.delete();
+        directory.mkdirs();
+        dbCollection = mock(DBCollection.class);
+        mongoClient = mock(MongoClient.class);
+        when(mongoClient.getCollection(COLLECTION)).thenReturn(dbCollection);
+    }
+
+    @After
+    public void cleanup() throws IOException
+    {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void projectedCollectionIsHashedWithItsProjection() throws Exception
+    {
+        writeDump(user(1, "ann", null), user(2, "bob", null));
+        whenFound(FIELDS, user(1, "ann", null), user(2, "bob", null));
+        whenFound(null, user(1, "ann", "ann@example.com"), user(2, "bob", "bob@example.com"));
+
+        List<String> problems = verify();
+        assertTrue(problems.toString(), problems.isEmpty());
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void changedProjectedFieldIsReported() throws Exception
+    {
+        writeDump(user(1, "ann", null), user(2, "bob", null));
+        whenFound(FIELDS, user(1, "ann", null), user(2, "robert", null));
+
+        List<String> problems = verify();
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0), problems.get(0).contains("collection documents differ"));
+    }
+
+    private List<String> verify() throws IOException
+    {
+        DumpVerifier verifier = new DumpVerifier(mongoClient, directory.getPath());
+        verifier.setCompareHashes(true);
+        return verifier.verify();
+    }
+
+    private DBObject user(int id, String name, String email)
+    {
+        DBObject user = new BasicDBObject("_id", id);
+        user.put("name", name);
+        if(email != null)
+        {
+            user.put("email", email);
+        }
+        return user;
+    }
+
+    /**
+     * Writes the documents as a collection file dumped with the projection, along with its
+     * checksum
+     */
+    private void writeDump(DBObject... documents) throws IOException
+    {
+        Crc32c checksum = new Crc32c();
+        OutputStream outputStream = new FileOutputStream(new File(directory, COLLECTION + ".bson"));
+        try
+        {
+            for(DBObject document : documents)
+            {
+                byte[] bytes = new BasicBSONEncoder().encode(document);
+                checksum.update(bytes);
+                outputStream.write(bytes);
+            }
+        }
+        finally
+        {
+            outputStream.close();
+        }
+
+        DBObject file = new BasicDBObject("file", COLLECTION + ".bson");
+        file.put("documents", documents.length);
+        file.put("collection", COLLECTION);
+        file.put("fields", FIELDS);
+        file.put("crc32c", Crc32c.toHex(checksum.getValue()));
+        BasicDBList files = new BasicDBList();
+        files.add(file);
+        BackupUtils.writeJsonFile(BackupUtils.getChecksumsFile(directory), new BasicDBObject("files", files));
+    }
+
+    private void whenFound(DBObject fields, DBObject... documents)
+    {
+        final List<DBObject> found = Arrays.asList(documents);
+        final DBCursor cursor = mock(DBCursor.class);
+        when(cursor.sort(any(DBObject.class))).thenReturn(cursor);
+        final Iterator<?>[] iterator = new Iterator<?>[1];
+        when(cursor.hasNext()).thenAnswer(new Answer<Boolean>()
+        {
+            public Boolean answer(InvocationOnMock invocation) throws Throwable
+            {
+                if(iterator[0] == null)
+                {
+                    iterator[0] = found.iterator();
+                }
+                return iterator[0].hasNext();
+            }
+        });
+        when(cursor.next()).thenAnswer(new Answer<DBObject>()
+        {
+            public DBObject answer(InvocationOnMock invocation) throws Throwable
+            {
+                return (DBObject) iterator[0].next();
+            }
+        });
+        if(fields != null)
+        {
+            when(dbCollection.find(any(DBObject.class), eq(fields))).thenReturn(cursor);
+        }
+        else
+        {
+            when(dbCollection.find(any(DBObject.class), (DBObject) isNull())).thenReturn(cursor);
+        }
+    }
+}
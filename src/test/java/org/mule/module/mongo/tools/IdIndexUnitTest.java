@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+public class IdIndexUnitTest
+{
+    private File directory;
+
+    @Before
+    public void setup() throws IOException
+    {
+        directory = File.createTempFile("index", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void cleanup() throws IOException
+    {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void offsetsAreFoundAtTheIndexBoundaries() throws IOException
+    {
+        File file = new File(directory, "users.idx");
+        IdIndex.Writer writer = new IdIndex.Writer(file, 2, 0);
+        for(int i = 1; i <= 5; i++)
+        {
+            writer.add(i * 10, (i - 1) * 100L);
+        }
+        writer.close();
+
+        // entries for _ids 10, 30 and 50
+        IdIndex index = read(file);
+        assertEquals(2, index.getInterval());
+        assertEquals(0, index.getOffset(5));
+        assertEquals(0, index.getOffset(10));
+        assertEquals(0, index.getOffset(20));
+        assertEquals(200, index.getOffset(30));
+        assertEquals(200, index.getOffset(45));
+        assertEquals(400, index.getOffset(50));
+        assertEquals(400, index.getOffset(99));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void emptyIndexStartsFromTheBeginning() throws IOException
+    {
+        File file = new File(directory, "users.idx");
+        new IdIndex.Writer(file, 2, 0).close();
+
+        assertEquals(0, read(file).getOffset(10));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void resumedWriterDropsEntriesPastTheCheckpoint() throws IOException
+    {
+        File expected = new File(directory, "expected.idx");
+        IdIndex.Writer writer = new IdIndex.Writer(expected, 2, 0);
+        for(int i = 1; i <= 4; i++)
+        {
+            writer.add(i * 10, (i - 1) * 100L);
+        }
+        writer.close();
+
+        File resumed = new File(directory, "resumed.idx");
+        writer = new IdIndex.Writer(resumed, 2, 0);
+        writer.add(10, 0);
+        writer.add(20, 100);
+        long checkpoint = writer.checkpoint();
+        // indexed after the checkpoint, by a dump that then failed
+        writer.add(60, 999);
+        writer.close();
+
+        writer = new IdIndex.Writer(resumed, 2, checkpoint);
+        writer.add(30, 200);
+        writer.add(40, 300);
+        writer.close();
+
+        assertArrayEquals(FileUtils.readFileToByteArray(expected), FileUtils.readFileToByteArray(resumed));
+        assertEquals(200, read(resumed).getOffset(45));
+    }
+
+    private IdIndex read(File file) throws IOException
+    {
+        return IdIndex.read(new FileInputStream(file), file.getPath());
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.lang.StringUtils;
+import org.bson.BasicBSONEncoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class MappedBsonReaderUnitTest
+{
+    private File file;
+
+    @Before
+    public void setup() throws IOException
+    {
+        file = File.createTempFile("collection", ".bson");
+    }
+
+    @After
+    public void cleanup()
+    {
+        file.delete();
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void windowMovesAcrossDocumentBoundaries() throws IOException
+    {
+        int[] sizes = write(document(1, 40), document(2, 40), document(3, 40), document(4, 40));
+
+        // every document but the first one starts inside a window and ends after it
+        MappedBsonReader reader = new MappedBsonReader(file, 0, sizes[0] + 10);
+        try
+        {
+            long offset = 0;
+            for(int i = 0; i < sizes.length; i++)
+            {
+                assertEquals(i + 1, reader.next().get("_id"));
+                offset += sizes[i];
+                assertEquals(offset, reader.getOffset());
+            }
+            assertNull(reader.next());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void windowIsWidenedForLargerDocuments() throws IOException
+    {
+        write(document(1, 10), document(2, 500), document(3, 10));
+
+        MappedBsonReader reader = new MappedBsonReader(file, 0, 16);
+        try
+        {
+            assertEquals(1, reader.next().get("_id"));
+            assertEquals(StringUtils.repeat("x", 500), reader.next().get("padding"));
+            assertEquals(3, reader.next().get("_id"));
+            assertNull(reader.next());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void readingStartsAtTheGivenOffset() throws IOException
+    {
+        int[] sizes = write(document(1, 40), document(2, 40));
+
+        MappedBsonReader reader = new MappedBsonReader(file, sizes[0], 32);
+        try
+        {
+            assertEquals(2, reader.next().get("_id"));
+            assertNull(reader.next());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void truncatedTrailingDocumentIsReported() throws IOException
+    {
+        int[] sizes = write(document(1, 40), document(2, 40));
+        truncate(sizes[0] + sizes[1] - 1);
+
+        MappedBsonReader reader = new MappedBsonReader(file, 0, 32);
+        try
+        {
+            assertEquals(1, reader.next().get("_id"));
+            reader.next();
+            fail("Truncated document was read");
+        }
+        catch(EOFException e)
+        {
+            assertEquals(sizes[0], reader.getOffset());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private DBObject document(int id, int padding)
+    {
+        return new BasicDBObject("_id", id).append("padding", StringUtils.repeat("x", padding));
+    }
+
+    /**
+     * @return the sizes of the written documents
+     */
+    private int[] write(DBObject... documents) throws IOException
+    {
+        int[] sizes = new int[documents.length];
+        OutputStream outputStream = new FileOutputStream(file);
+        try
+        {
+            for(int i = 0; i < documents.length; i++)
+            {
+                byte[] bytes = new BasicBSONEncoder().encode(documents[i]);
+                outputStream.write(bytes);
+                sizes[i] = bytes.length;
+            }
+        }
+        finally
+        {
+            outputStream.close();
+        }
+        return sizes;
+    }
+
+    private void truncate(long length) throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            randomAccessFile.setLength(length);
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+}
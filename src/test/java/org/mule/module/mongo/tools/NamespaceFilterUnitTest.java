@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+public class NamespaceFilterUnitTest
+{
+    @Category({RegressionTests.class})
+    @Test
+    public void emptyFilterAcceptsEverything()
+    {
+        NamespaceFilter filter = new NamespaceFilter(null, Collections.<String>emptyList());
+        assertTrue(filter.isEmpty());
+        assertTrue(filter.accepts("users"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void includesSelectMatchingCollections()
+    {
+        NamespaceFilter filter = new NamespaceFilter(Arrays.asList("users", "orders.*"), null);
+        assertTrue(filter.accepts("users"));
+        assertTrue(filter.accepts("orders.2014"));
+        assertFalse(filter.accepts("orders"));
+        assertFalse(filter.accepts("usersX"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void excludesWinOverIncludes()
+    {
+        NamespaceFilter filter = new NamespaceFilter(Arrays.asList("*"), Arrays.asList("log?", "*.audit"));
+        assertFalse(filter.accepts("logs"));
+        assertFalse(filter.accepts("events.audit"));
+        assertTrue(filter.accepts("logins"));
+        assertTrue(filter.accepts("events"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void patternCharactersAreLiteral()
+    {
+        NamespaceFilter filter = new NamespaceFilter(Arrays.asList("a.b$c"), null);
+        assertTrue(filter.accepts("a.b$c"));
+        assertFalse(filter.accepts("aXb$c"));
+    }
+}
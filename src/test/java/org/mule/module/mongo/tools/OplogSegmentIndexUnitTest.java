@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.bson.types.BSONTimestamp;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+public class OplogSegmentIndexUnitTest
+{
+    @Category({RegressionTests.class})
+    @Test
+    public void offsetsAreFoundAtTheIndexBoundaries()
+    {
+        OplogSegmentIndex index = newIndex();
+
+        assertEquals(0, index.getOffset(new BSONTimestamp(99, 0)));
+        assertEquals(0, index.getOffset(new BSONTimestamp(100, 1)));
+        assertEquals(0, index.getOffset(new BSONTimestamp(100, 2)));
+        assertEquals(20, index.getOffset(new BSONTimestamp(101, 1)));
+        assertEquals(20, index.getOffset(new BSONTimestamp(102, 5)));
+        assertEquals(40, index.getOffset(new BSONTimestamp(103, 1)));
+        assertEquals(40, index.getOffset(new BSONTimestamp(200, 0)));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void emptyIndexStartsFromTheBeginning()
+    {
+        OplogSegmentIndex index = new OplogSegmentIndex(2);
+        assertTrue(index.isEmpty());
+        assertEquals(0, index.getOffset(new BSONTimestamp(100, 1)));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void indexIsReadAsItWasWritten() throws IOException
+    {
+        File file = File.createTempFile("oplog", ".json");
+        try
+        {
+            newIndex().write(file);
+            OplogSegmentIndex index = OplogSegmentIndex.open(file, 1000);
+
+            assertEquals(0, BackupUtils.compareTimestamps(new BSONTimestamp(100, 1), index.getFirst()));
+            assertEquals(0, BackupUtils.compareTimestamps(new BSONTimestamp(103, 1), index.getLast()));
+            assertEquals(5, index.getDocuments());
+            assertEquals(20, index.getOffset(new BSONTimestamp(102, 5)));
+            assertEquals(40, index.getOffset(new BSONTimestamp(200, 0)));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * @return an index with entries for (100, 1), (101, 1) and (103, 1)
+     */
+    private OplogSegmentIndex newIndex()
+    {
+        OplogSegmentIndex index = new OplogSegmentIndex(2);
+        index.add(new BSONTimestamp(100, 1), 0);
+        index.add(new BSONTimestamp(100, 2), 10);
+        index.add(new BSONTimestamp(101, 1), 20);
+        index.add(new BSONTimestamp(102, 1), 30);
+        index.add(new BSONTimestamp(103, 1), 40);
+        return index;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+public class ParallelGzipOutputStreamUnitTest
+{
+    private ExecutorService compressors;
+
+    @Before
+    public void setup()
+    {
+        compressors = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void cleanup()
+    {
+        compressors.shutdownNow();
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void blocksDecompressAsASingleStream() throws IOException
+    {
+        // compressible data, so that blocks compress to different sizes
+        Random random = new Random(42);
+        byte[] data = new byte[100000];
+        for(int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte) ('a' + random.nextInt(random.nextBoolean() ? 2 : 26));
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelGzipOutputStream outputStream = new ParallelGzipOutputStream(compressed, compressors, 6, 1000, 2);
+        int offset = 0;
+        while(offset < data.length)
+        {
+            // writes across block boundaries, and single bytes
+            int length = Math.min(random.nextInt(2500), data.length - offset);
+            outputStream.write(data, offset, length);
+            offset += length;
+            if(offset < data.length)
+            {
+                outputStream.write(data[offset++]);
+            }
+        }
+        outputStream.close();
+
+        assertArrayEquals(data, decompress(compressed.toByteArray()));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void flushedOutputIsACompleteGzipFile() throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelGzipOutputStream outputStream = new ParallelGzipOutputStream(compressed, compressors, 1, 16, 1);
+        outputStream.write("first part of the stream,".getBytes("UTF-8"));
+        outputStream.flush();
+
+        assertArrayEquals("first part of the stream,".getBytes("UTF-8"), decompress(compressed.toByteArray()));
+
+        outputStream.write(" then the rest".getBytes("UTF-8"));
+        outputStream.close();
+
+        assertArrayEquals("first part of the stream, then the rest".getBytes("UTF-8"),
+            decompress(compressed.toByteArray()));
+    }
+
+    private byte[] decompress(byte[] compressed) throws IOException
+    {
+        InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try
+        {
+            return IOUtils.toByteArray(inputStream);
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) MuleSoft, Inc. All rights reserved. http://www.mulesoft.com
+ *
+ * The software in this package is published under the terms of the CPAL v1.0
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.md file.
+ */
+
+package org.mule.module.mongo.tools;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.mule.module.mongo.automation.RegressionTests;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class QueryMatcherUnitTest
+{
+    private static final DBObject DOCUMENT = (DBObject) JSON.parse(
+        "{ _id : 1, name : 'Alice', age : 34, tags : ['a', 'b'], "
+        + "address : { city : 'Paris', zip : '75001' }, "
+        + "orders : [ { item : 'pen', qty : 2 }, { item : 'ink', qty : 10 } ] }");
+
+    @Category({RegressionTests.class})
+    @Test
+    public void emptyQueryMatchesEverything()
+    {
+        assertTrue(matches("{}"));
+        assertTrue(new QueryMatcher(null).matches(DOCUMENT));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void equalityMatchesFieldsPathsAndArrayElements()
+    {
+        assertTrue(matches("{ name : 'Alice' }"));
+        assertTrue(matches("{ age : 34.0 }"));
+        assertTrue(matches("{ 'address.city' : 'Paris' }"));
+        assertTrue(matches("{ tags : 'b' }"));
+        assertTrue(matches("{ 'orders.item' : 'ink' }"));
+        assertTrue(matches("{ missing : null }"));
+        assertFalse(matches("{ name : 'Bob' }"));
+        assertFalse(matches("{ age : '34' }"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void comparisonOperatorsOnlyMatchTheSameType()
+    {
+        assertTrue(matches("{ age : { $gt : 30, $lte : 34 } }"));
+        assertTrue(matches("{ 'orders.qty' : { $gte : 10 } }"));
+        assertFalse(matches("{ age : { $lt : 34 } }"));
+        assertFalse(matches("{ age : { $gt : '1' } }"));
+        assertTrue(matches("{ age : { $ne : 35 } }"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void setAndExistenceOperators()
+    {
+        assertTrue(matches("{ name : { $in : ['Bob', 'Alice'] } }"));
+        assertTrue(matches("{ tags : { $nin : ['c'] } }"));
+        assertTrue(matches("{ tags : { $all : ['a', 'b'], $size : 2 } }"));
+        assertTrue(matches("{ address : { $exists : true }, phone : { $exists : false } }"));
+        assertFalse(matches("{ tags : { $all : ['a', 'c'] } }"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void regexAndNegation()
+    {
+        assertTrue(matches("{ name : { $regex : '^al', $options : 'i' } }"));
+        assertTrue(matches("{ name : { $not : { $regex : '^B' } } }"));
+        assertFalse(matches("{ name : { $regex : '^al' } }"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void logicalOperatorsAndElementMatch()
+    {
+        assertTrue(matches("{ $or : [ { name : 'Bob' }, { age : 34 } ] }"));
+        assertFalse(matches("{ $and : [ { name : 'Alice' }, { age : 35 } ] }"));
+        assertTrue(matches("{ $nor : [ { name : 'Bob' } ] }"));
+        assertTrue(matches("{ orders : { $elemMatch : { item : 'ink', qty : { $gt : 5 } } } }"));
+        assertFalse(matches("{ orders : { $elemMatch : { item : 'pen', qty : { $gt : 5 } } } }"));
+    }
+
+    @Category({RegressionTests.class})
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedOperatorsAreRejected()
+    {
+        matches("{ $where : 'this.age > 1' }");
+    }
+
+    @Category({RegressionTests.class})
+    @Test
+    public void projectionKeepsIdAndEnclosingDocuments()
+    {
+        final DBObject projected = DumpQuery.project(DOCUMENT, Arrays.asList("name", "address.city"));
+        assertTrue(projected.equals(new BasicDBObject("_id", 1).append("name", "Alice")
+            .append("address", new BasicDBObject("city", "Paris"))));
+    }
+
+    private boolean matches(final String query)
+    {
+        return new QueryMatcher((DBObject) JSON.parse(query)).matches(DOCUMENT);
+    }
+}